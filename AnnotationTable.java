@@ -0,0 +1,402 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+  /**
+   * The letters the user has assigned to positions in the image: the contents of the "Key mapping table" window,
+   * or of a results.txt file saved from it.
+   *
+   * The table is tab-separated, one letter per line. If the first line is a heading ("x  y  letter"), the columns are
+   * found by their names and other columns are ignored; otherwise the first three columns are x, y and letter.
+   * The table of a stack has a "slice" column as well, the number of the slice the position is on, see PuzzleStack;
+   * without it, every position is on slice 1.
+   * The text is read as a stream, a block of characters at a time, and the numbers are parsed straight from the
+   * characters. The positions are kept in int arrays, and each letter as a number into a short list of distinct letters,
+   * so a large table takes little memory. Lines that cannot be read are skipped and listed in getErrors().
+   */
+
+public class AnnotationTable {
+
+  //positions, letter numbers and slices of the rows
+  protected int[] x = new int[64], y = new int[64], labelIds = new int[64], slices = new int[64];
+  protected int size;
+
+  //the distinct letters, in the order they first appear
+  protected ArrayList<String> labelNames = new ArrayList<String>();
+
+  //the lines that were skipped, with the reason
+  protected ArrayList<String> errors = new ArrayList<String>();
+
+  //column numbers of x, y, letter and slice, -1 if there is no slice column
+  protected int xColumn = 0, yColumn = 1, labelColumn = 2, sliceColumn = -1;
+
+  /**
+   * Read a table from text.
+   *
+   * @param String text The table
+   * @return AnnotationTable The table
+   */
+
+  public static AnnotationTable parse(String text) {
+    try
+    {
+      return parse(new StringReader(text));
+    } catch (IOException e)
+    {
+      //a StringReader does not throw
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Read a table from a file, e.g. tmp/[image name]/results.txt.
+   *
+   * @param File file The file
+   * @return AnnotationTable The table
+   */
+
+  public static AnnotationTable read(File file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try
+    {
+      return parse(in);
+    } finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Read a table from a stream of characters.
+   *
+   * @param Reader in The stream; it is not closed
+   * @return AnnotationTable The table
+   */
+
+  public static AnnotationTable parse(Reader in) throws IOException {
+    AnnotationTable table = new AnnotationTable();
+    char[] buffer = new char[8192];
+    //the current line; lines are short, so it is only copied when it spans two blocks
+    StringBuilder line = new StringBuilder();
+    int lineNumber = 0;
+    int n;
+    while ((n = in.read(buffer)) != -1)
+    {
+      int start = 0;
+      for (int k = 0; k < n; k++)
+      {
+        if (buffer[k] == '\n')
+        {
+          lineNumber++;
+          if (line.length() > 0)
+          {
+            line.append(buffer, start, k - start);
+            table.addLine(line, 0, line.length(), lineNumber);
+            line.setLength(0);
+          } else
+          {
+            table.addLine(buffer, start, k, lineNumber);
+          }
+          start = k + 1;
+        }
+      }
+      line.append(buffer, start, n - start);
+    }
+    if (line.length() > 0)
+    {
+      table.addLine(line, 0, line.length(), lineNumber + 1);
+    }
+    return table;
+  }
+
+  /**
+   * Read one line of the table.
+   *
+   * @param CharSequence/Array chars The characters holding the line
+   * @param int start Position of the first character of the line
+   * @param int end Position after the last character of the line
+   * @param int lineNumber Line number, for error messages
+   */
+
+  protected void addLine(char[] chars, int start, int end, int lineNumber) {
+    addLine(java.nio.CharBuffer.wrap(chars), start, end, lineNumber);
+  }
+
+  protected void addLine(CharSequence chars, int start, int end, int lineNumber) {
+    if (end > start && chars.charAt(end - 1) == '\r')
+    {
+      end--;
+    }
+    if (end == start)
+    {
+      return;
+    }
+
+    //the first line may be the heading
+    if (lineNumber == 1 && !isNumber(chars, start, fieldEnd(chars, start, end)))
+    {
+      readHeading(chars, start, end);
+      return;
+    }
+
+    int px = 0, py = 0, label = -1, slice = 1;
+    boolean hasX = false, hasY = false;
+    int column = 0;
+    for (int field = start; field <= end; column++)
+    {
+      int fieldEnd = fieldEnd(chars, field, end);
+      if (column == xColumn || column == yColumn || column == sliceColumn)
+      {
+        if (!isNumber(chars, field, fieldEnd))
+        {
+          errors.add("line " + lineNumber + ": " + (column == xColumn ? "x" : column == yColumn ? "y" : "slice") + " is not a number");
+          return;
+        }
+        int value = parseInt(chars, field, fieldEnd);
+        if (column == xColumn)
+        {
+          px = value;
+          hasX = true;
+        } else if (column == yColumn)
+        {
+          py = value;
+          hasY = true;
+        } else
+        {
+          slice = value;
+        }
+      } else if (column == labelColumn && fieldEnd > field)
+      {
+        label = getLabelId(chars, field, fieldEnd);
+      }
+      field = fieldEnd + 1;
+    }
+    if (!hasX || !hasY || label == -1)
+    {
+      errors.add("line " + lineNumber + ": missing " + (!hasX ? "x" : !hasY ? "y" : "letter"));
+      return;
+    }
+    add(px, py, label, slice);
+  }
+
+  /**
+   * Add a row.
+   */
+
+  protected void add(int px, int py, int label, int slice) {
+    if (size == x.length)
+    {
+      x = java.util.Arrays.copyOf(x, 2 * size);
+      y = java.util.Arrays.copyOf(y, 2 * size);
+      labelIds = java.util.Arrays.copyOf(labelIds, 2 * size);
+      slices = java.util.Arrays.copyOf(slices, 2 * size);
+    }
+    x[size] = px;
+    y[size] = py;
+    labelIds[size] = label;
+    slices[size] = slice;
+    size++;
+  }
+
+  /**
+   * Find the columns by their names in the heading line.
+   */
+
+  protected void readHeading(CharSequence chars, int start, int end) {
+    xColumn = yColumn = labelColumn = sliceColumn = -1;
+    int column = 0;
+    for (int field = start; field <= end; column++)
+    {
+      int fieldEnd = fieldEnd(chars, field, end);
+      String name = chars.subSequence(field, fieldEnd).toString().trim();
+      if (name.equals("x")) xColumn = column;
+      else if (name.equals("y")) yColumn = column;
+      else if (name.equals("letter")) labelColumn = column;
+      else if (name.equals("slice")) sliceColumn = column;
+      field = fieldEnd + 1;
+    }
+    //a heading without these names: fall back to the default columns
+    if (xColumn == -1 || yColumn == -1 || labelColumn == -1)
+    {
+      xColumn = 0;
+      yColumn = 1;
+      labelColumn = 2;
+      sliceColumn = -1;
+    }
+  }
+
+  /**
+   * @return int Position of the tab ending the field that starts at start, or end
+   */
+
+  private static int fieldEnd(CharSequence chars, int start, int end) {
+    int k = start;
+    while (k < end && chars.charAt(k) != '\t')
+    {
+      k++;
+    }
+    return k;
+  }
+
+  /**
+   * @return boolean True if the field is an integer, optionally negative
+   */
+
+  private static boolean isNumber(CharSequence chars, int start, int end) {
+    if (start < end && chars.charAt(start) == '-')
+    {
+      start++;
+    }
+    if (start == end || end - start > 9)
+    {
+      return false;
+    }
+    for (int k = start; k < end; k++)
+    {
+      if (chars.charAt(k) < '0' || chars.charAt(k) > '9')
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parse a field that isNumber() accepted.
+   */
+
+  private static int parseInt(CharSequence chars, int start, int end) {
+    boolean negative = chars.charAt(start) == '-';
+    int value = 0;
+    for (int k = negative ? start + 1 : start; k < end; k++)
+    {
+      value = 10 * value + (chars.charAt(k) - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Get the number of a letter, adding it to the list if it is new; only new letters create a String.
+   */
+
+  protected int getLabelId(CharSequence chars, int start, int end) {
+    for (int id = 0; id < labelNames.size(); id++)
+    {
+      String name = labelNames.get(id);
+      if (name.length() != end - start)
+      {
+        continue;
+      }
+      int k = 0;
+      while (k < name.length() && name.charAt(k) == chars.charAt(start + k))
+      {
+        k++;
+      }
+      if (k == name.length())
+      {
+        return id;
+      }
+    }
+    labelNames.add(chars.subSequence(start, end).toString());
+    return labelNames.size() - 1;
+  }
+
+  /**
+   * @return int The number of letters in the table
+   */
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return int x-position of a letter
+   */
+
+  public int getX(int i) {
+    return x[i];
+  }
+
+  /**
+   * @return int y-position of a letter
+   */
+
+  public int getY(int i) {
+    return y[i];
+  }
+
+  /**
+   * @return String A letter
+   */
+
+  public String getLabel(int i) {
+    return labelNames.get(labelIds[i]);
+  }
+
+  /**
+   * @return int The slice a letter is on, 1 if the table has no slice column
+   */
+
+  public int getSlice(int i) {
+    return slices[i];
+  }
+
+  /**
+   * Get the rows of one slice, without the slice column.
+   *
+   * @param int slice The slice number, starting at 1
+   * @return AnnotationTable The rows on that slice; the letters have the same numbers as in this table
+   */
+
+  public AnnotationTable getSliceTable(int slice) {
+    AnnotationTable table = new AnnotationTable();
+    table.labelNames = labelNames;
+    for (int i = 0; i < size; i++)
+    {
+      if (slices[i] == slice)
+      {
+        table.add(x[i], y[i], labelIds[i], 1);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Write the table the way the "Key mapping table" window shows it, without the slice column.
+   *
+   * @return String The text, with a heading line
+   */
+
+  public String getText() {
+    StringBuilder text = new StringBuilder("x\ty\tletter\t\n");
+    for (int i = 0; i < size; i++)
+    {
+      text.append(x[i]).append('\t').append(y[i]).append('\t').append(getLabel(i)).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * @return int The number of a letter in getLabelNames()
+   */
+
+  public int getLabelId(int i) {
+    return labelIds[i];
+  }
+
+  /**
+   * @return List The distinct letters in the table
+   */
+
+  public List<String> getLabelNames() {
+    return labelNames;
+  }
+
+  /**
+   * @return List The lines that were skipped, with the reason
+   */
+
+  public List<String> getErrors() {
+    return errors;
+  }
+}
@@ -0,0 +1,201 @@
+import ij.*;
+import ij.process.*;
+import ij.plugin.PNG_Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+  /**
+   * Saves the 12x12 letter images as PNG files on background threads.
+   *
+   * The letters are put in a bounded queue; when the queue is full, save() waits, so the letters cannot pile up in
+   * memory faster than they are written. Several encoder threads take the letters off the queue in batches and write them.
+   * Errors are collected instead of being shown one by one, and the progress is shown in the ImageJ status bar.
+   */
+
+public class AsyncGlyphWriter {
+
+  //the largest number of letters an encoder thread takes off the queue at once
+  protected static final int BATCH_SIZE = 32;
+
+  //a letter that is waiting to be written; an entry without a path tells an encoder thread to stop
+  protected static class Job {
+    byte[] pixels;
+    String path;
+  }
+
+  protected BlockingQueue<Job> queue;
+  protected Thread[] encoders;
+
+  //number of letters queued, written and failed, and the number expected in total, for the progress bar
+  protected AtomicInteger queued = new AtomicInteger(), written = new AtomicInteger(), failed = new AtomicInteger();
+  protected volatile int expected;
+
+  //the errors that occurred while saving
+  protected List<String> errors = new ArrayList<String>();
+
+  /**
+   * Constructor: start the encoder threads.
+   *
+   * @param int threads Number of encoder threads
+   * @param int capacity Number of letters the queue can hold
+   */
+
+  public AsyncGlyphWriter(int threads, int capacity) {
+    queue = new ArrayBlockingQueue<Job>(capacity);
+    encoders = new Thread[threads];
+    for (int t = 0; t < threads; t++)
+    {
+      encoders[t] = new Thread(new Runnable() {
+        public void run() {
+          encode();
+        }
+      }, "Letter encoder " + (t + 1));
+      encoders[t].start();
+    }
+  }
+
+  /**
+   * Set the number of letters that will be saved, for the progress bar.
+   *
+   * @param int expected Number of letters
+   */
+
+  public void setExpected(int expected) {
+    this.expected = expected;
+  }
+
+  /**
+   * Queue a letter image to be saved as a PNG file, waiting if the queue is full.
+   *
+   * @param Array pixels Pixels of the 12x12 letter; they are copied, so the array can be reused
+   * @param String path Path of the PNG file
+   */
+
+  public void save(byte[] pixels, String path) {
+    Job job = new Job();
+    job.pixels = pixels.clone();
+    job.path = path;
+    queued.incrementAndGet();
+    try
+    {
+      queue.put(job);
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      reportError(path + ": interrupted");
+    }
+  }
+
+  /**
+   * Encoder thread: write letters until told to stop.
+   */
+
+  protected void encode() {
+    ArrayList<Job> batch = new ArrayList<Job>(BATCH_SIZE);
+    PNG_Writer pngWriter = new PNG_Writer();
+    while (true)
+    {
+      try
+      {
+        batch.add(queue.take());
+      } catch (InterruptedException e)
+      {
+        return;
+      }
+      queue.drainTo(batch, BATCH_SIZE - 1);
+
+      for (int k = 0; k < batch.size(); k++)
+      {
+        Job job = batch.get(k);
+        if (job.path == null)
+        {
+          //the stop entries come after all the letters; hand the others back to the other encoder threads
+          for (int rest = k + 1; rest < batch.size(); rest++)
+          {
+            queue.add(batch.get(rest));
+          }
+          return;
+        }
+        try
+        {
+          ImagePlus letterIm = new ImagePlus("", new ByteProcessor(GlyphExtractor.SIZE, GlyphExtractor.SIZE, job.pixels));
+          pngWriter.writeImage(letterIm, job.path, Prefs.getTransparentIndex());
+        } catch (Exception e)
+        {
+          reportError(job.path + ": " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+          failed.incrementAndGet();
+        }
+        int n = written.incrementAndGet();
+        IJ.showProgress(n, Math.max(expected, queued.get()));
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Record an error, e.g. a file that could not be written.
+   *
+   * @param String message Description of the error
+   */
+
+  public synchronized void reportError(String message) {
+    errors.add(message);
+  }
+
+  /**
+   * Wait until all queued letters are written and stop the encoder threads.
+   */
+
+  public void finish() {
+    for (int t = 0; t < encoders.length; t++)
+    {
+      //an empty job stops one encoder thread
+      try
+      {
+        queue.put(new Job());
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    for (Thread encoder : encoders)
+    {
+      try
+      {
+        encoder.join();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    IJ.showProgress(1.0);
+  }
+
+  /**
+   * @return int Number of letter images written, including the ones that failed
+   */
+
+  public int getWritten() {
+    return written.get();
+  }
+
+  /**
+   * @return int Number of letter images that could not be written
+   */
+
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return List The errors that occurred
+   */
+
+  public synchronized List<String> getErrors() {
+    return new ArrayList<String>(errors);
+  }
+}
@@ -0,0 +1,151 @@
+import ij.*;
+import ij.process.*;
+
+  /**
+   * The black and white version of a page, packed as one bit per pixel.
+   *
+   * A set bit is a pixel within the threshold levels, i.e. part of a letter. Each row starts at a new long, so a row
+   * takes (width + 63) / 64 longs. This is 1/8 of the memory of an 8-bit image and 1/32 of an RGB image.
+   * When shown as an image, letter pixels are black and the rest white, as with ImageProcessor.BLACK_AND_WHITE_LUT
+   * (the other way around if "black background" is set in the binary options).
+   */
+
+public class BinaryMask {
+
+  //dimensions of the page, and the number of longs per row
+  protected int width, height, stride;
+
+  //the bits, row by row
+  protected long[] bits;
+
+  //pixel values of the letters and of the background when shown as an image
+  protected int foreground, background;
+
+  /**
+   * Constructor: an empty mask.
+   *
+   * @param int width Width of the page
+   * @param int height Height of the page
+   */
+
+  public BinaryMask(int width, int height) {
+    this.width = width;
+    this.height = height;
+    stride = (width + 63) >>> 6;
+    bits = new long[stride * height];
+    foreground = Prefs.blackBackground ? 255 : 0;
+    background = 255 - foreground;
+  }
+
+  /**
+   * Create the mask of a thresholded 8-bit image.
+   *
+   * @param Array pixels Pixels of the image
+   * @param int width Width of the image
+   * @param int height Height of the image
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param ThresholdKernel kernel The kernel that compares the pixels, see ThresholdKernel.getInstance()
+   * @return BinaryMask The mask
+   */
+
+  public static BinaryMask threshold(byte[] pixels, int width, int height, int lower, int upper, ThresholdKernel kernel) {
+    return threshold(pixels, width, height, lower, upper, kernel, null);
+  }
+
+  /**
+   * Create the mask of a thresholded 8-bit image in the bits of an earlier mask, if there are enough of them, e.g. for
+   * one letter after another.
+   *
+   * @param Array pixels Pixels of the image
+   * @param int width Width of the image
+   * @param int height Height of the image
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param ThresholdKernel kernel The kernel that compares the pixels, see ThresholdKernel.getInstance()
+   * @param BinaryMask mask The mask to reuse, or null
+   * @return BinaryMask The mask: the one given, now with the dimensions of the image, or a new one if it was too small
+   */
+
+  public static BinaryMask threshold(byte[] pixels, int width, int height, int lower, int upper, ThresholdKernel kernel, BinaryMask mask) {
+    if (mask == null || mask.bits.length < ((width + 63) >>> 6) * height)
+    {
+      mask = new BinaryMask(width, height);
+    } else
+    {
+      //every word of every row is written by the kernel, so the old bits need not be cleared
+      mask.width = width;
+      mask.height = height;
+      mask.stride = (width + 63) >>> 6;
+      mask.foreground = Prefs.blackBackground ? 255 : 0;
+      mask.background = 255 - mask.foreground;
+    }
+    for (int y = 0; y < height; y++)
+    {
+      kernel.threshold(pixels, y * width, width, lower, upper, mask.bits, y * mask.stride);
+    }
+    return mask;
+  }
+
+  /**
+   * @return boolean True if the pixel is part of a letter; false for pixels outside the page
+   */
+
+  public boolean get(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height)
+    {
+      return false;
+    }
+    return (bits[y * stride + (x >>> 6)] & (1L << x)) != 0;
+  }
+
+  /**
+   * Mark a pixel as part of a letter.
+   */
+
+  public void set(int x, int y) {
+    bits[y * stride + (x >>> 6)] |= 1L << x;
+  }
+
+  /**
+   * Get the value a pixel has when the mask is shown as an image.
+   *
+   * @return int The foreground or the background value; 0 for pixels outside the page
+   */
+
+  public int getValue(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height)
+    {
+      return 0;
+    }
+    return (bits[y * stride + (x >>> 6)] & (1L << x)) != 0 ? foreground : background;
+  }
+
+  /**
+   * Unpack the mask into an 8-bit image, for display.
+   *
+   * @return ByteProcessor The black and white image
+   */
+
+  public ByteProcessor toByteProcessor() {
+    byte[] pixels = new byte[width * height];
+    for (int y = 0; y < height; y++)
+    {
+      int offset = y * width;
+      int word = y * stride;
+      for (int x = 0; x < width; x++)
+      {
+        pixels[offset + x] = (byte) (((bits[word + (x >>> 6)] >>> x) & 1L) != 0 ? foreground : background);
+      }
+    }
+    return new ByteProcessor(width, height, pixels);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+}
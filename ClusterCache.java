@@ -0,0 +1,293 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+  /**
+   * A cache on disk of the clusters found in a page, so that opening the same scan again, or running the batch mode
+   * over the same pages again, does not have to threshold the page and find the clusters again.
+   *
+   * An entry is found by a SHA-256 hash of the grayscale pixels together with everything else the clusters depend on:
+   * the threshold method, the options and the size and circularity limits. It holds the threshold levels and the
+   * rectangles, packed as in ComponentLabeler.getBoxes(), in a small file named after the hash. Using an entry updates
+   * the time of its file; when the files take more than the size limit, the ones that were used longest ago are deleted.
+   * Several threads, or several programs, can use the same directory.
+   */
+
+public class ClusterCache {
+
+  //where the cache is kept and how big it may get, unless told otherwise
+  public static final String DEFAULT_DIR = "tmp/cache";
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  //written at the start of every entry file
+  protected static final int MAGIC = 0x50584331; //"PXC1"
+
+  //the directory holding the entries, and the most bytes they may take
+  protected File dir;
+  protected long maxBytes;
+
+  //number of entries found and not found, since this object was created
+  protected AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+  /**
+   * A cached result: the threshold levels and the rectangles.
+   */
+
+  public static class Entry {
+    public int lower, upper;
+    public int[] boxes;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param File dir The directory holding the entries; it is created if necessary
+   * @param long maxBytes The most bytes the entries may take
+   */
+
+  public ClusterCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the key of a page.
+   *
+   * @param Array pixels Pixels of the grayscale page, before it is rotated
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param String parameters Everything else the clusters depend on
+   * @return String The hash, in hexadecimal
+   */
+
+  public static String getKey(byte[] pixels, int width, int height, String parameters) {
+    MessageDigest digest = getDigest(width, height, parameters);
+    digest.update(pixels, 0, width * height);
+    return toHex(digest);
+  }
+
+  /**
+   * Get the key of a mapped page, the same as getKey() gives for the same pixels; the page is read a band at a time.
+   *
+   * @param MappedPage source The page, before it is rotated
+   * @param String parameters Everything else the clusters depend on
+   * @return String The hash, in hexadecimal
+   */
+
+  public static String getKey(MappedPage source, String parameters) {
+    int width = source.getWidth(), height = source.getHeight();
+    MessageDigest digest = getDigest(width, height, parameters);
+    int band = Math.max(1, (1 << 20) / width);
+    byte[] rows = new byte[Math.min(band, height) * width];
+    for (int first = 0; first < height; first += band)
+    {
+      int n = Math.min(band, height - first);
+      source.getRows(first, n, rows);
+      digest.update(rows, 0, n * width);
+    }
+    return toHex(digest);
+  }
+
+  /**
+   * Start the hash of a page with its size and parameters.
+   */
+
+  private static MessageDigest getDigest(int width, int height, String parameters) {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e)
+    {
+      //every Java platform has SHA-256
+      throw new RuntimeException(e);
+    }
+    try
+    {
+      digest.update((width + "x" + height + " " + parameters + "\n").getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return digest;
+  }
+
+  /**
+   * Finish a hash and write it in hexadecimal.
+   */
+
+  private static String toHex(MessageDigest digest) {
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest())
+    {
+      key.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Look up an entry.
+   *
+   * @param String key The key from getKey()
+   * @return Entry The cached result, or null if there is none
+   */
+
+  public Entry get(String key) {
+    File file = getFile(key);
+    if (!file.exists())
+    {
+      misses.incrementAndGet();
+      return null;
+    }
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+        if (in.readInt() != MAGIC)
+        {
+          throw new IOException("not a cluster cache entry");
+        }
+        Entry entry = new Entry();
+        entry.lower = in.readInt();
+        entry.upper = in.readInt();
+        entry.boxes = new int[in.readInt()];
+        for (int k = 0; k < entry.boxes.length; k++)
+        {
+          entry.boxes[k] = in.readInt();
+        }
+        //the entry has been used, so it is the last one to be evicted
+        file.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return entry;
+      } finally
+      {
+        in.close();
+      }
+    } catch (IOException e)
+    {
+      //a damaged or half-deleted entry is the same as no entry; it is replaced by put()
+      System.err.println("Error: " + file.getPath() + ": " + e.getMessage());
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Store an entry, then evict old entries if the cache is too big.
+   *
+   * @param String key The key from getKey()
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param Array boxes The rectangles, ComponentLabeler.BOX_SIZE numbers each
+   */
+
+  public void put(String key, int lower, int upper, int[] boxes) {
+    if (!dir.exists() && !dir.mkdirs())
+    {
+      System.err.println("Error: " + dir.getPath() + ": could not create the directory");
+      return;
+    }
+    File file = getFile(key);
+    //write to a file of our own and rename it, so that nobody reads a half-written entry
+    File temporary = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+    try
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+      try
+      {
+        out.writeInt(MAGIC);
+        out.writeInt(lower);
+        out.writeInt(upper);
+        out.writeInt(boxes.length);
+        for (int value : boxes)
+        {
+          out.writeInt(value);
+        }
+      } finally
+      {
+        out.close();
+      }
+      file.delete();
+      if (!temporary.renameTo(file))
+      {
+        throw new IOException("could not rename " + temporary.getPath());
+      }
+    } catch (IOException e)
+    {
+      System.err.println("Error: " + file.getPath() + ": " + e.getMessage());
+      temporary.delete();
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Delete the entries that were used longest ago until the cache fits in maxBytes.
+   */
+
+  public synchronized void evict() {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".clusters");
+      }
+    });
+    if (files == null)
+    {
+      return;
+    }
+    final long[] times = new long[files.length];
+    long total = 0;
+    Integer[] order = new Integer[files.length];
+    for (int k = 0; k < files.length; k++)
+    {
+      times[k] = files[k].lastModified();
+      total += files[k].length();
+      order[k] = k;
+    }
+    if (total <= maxBytes)
+    {
+      return;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(times[a], times[b]);
+      }
+    });
+    for (int k = 0; k < order.length && total > maxBytes; k++)
+    {
+      long length = files[order[k]].length();
+      if (files[order[k]].delete())
+      {
+        total -= length;
+      }
+    }
+  }
+
+  /**
+   * @return File The file of an entry
+   */
+
+  protected File getFile(String key) {
+    return new File(dir, key + ".clusters");
+  }
+
+  /**
+   * @return long Number of entries found since this object was created
+   */
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return long Number of entries not found since this object was created
+   */
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
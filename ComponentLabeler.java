@@ -0,0 +1,302 @@
+  /**
+   * Finds the clusters of pixels in a thresholded 8-bit image with a single pass of union-find connected component labeling.
+   *
+   * An alternative to ParticleAnalyzer.analyze() for when only the bounding boxes of the clusters are needed: no outlines
+   * are traced and no Roi or ResultsTable is created. Pixels within the threshold levels belong to a cluster, and pixels
+   * that touch each other, including diagonally (8-connected, the same as the ParticleAnalyzer), belong to the same cluster.
+   *
+   * The image is read one row at a time and only the labels of the previous and the current row are kept. Every new run
+   * of pixels gets a provisional label; when two labels turn out to belong to the same cluster, the larger one is linked
+   * to the smaller one and its bounding box and pixel count are merged into it. The clusters are therefore numbered in the
+   * order of their first pixel, top to bottom and left to right, which is the order in which the ParticleAnalyzer finds them.
+   *
+   * The boxes are returned as a packed int array: x, y, width and height of the first cluster, then of the second, and so on.
+   *
+   * A labeler can also start at a row other than 0, to label one stripe of the image; TiledClusterDetector then joins the
+   * clusters of neighbouring stripes using the labels of their first and last rows.
+   */
+
+public class ComponentLabeler {
+
+  //number of ints per box in the packed array
+  public static final int BOX_SIZE = 4;
+
+  //width of the image and the threshold levels
+  protected int width, lower, upper;
+
+  //labels of the previous and the current row; 0 is background
+  protected int[] previous, current;
+
+  //the index of the next row in the image, the first row of the labeler, and the labels of that row
+  protected int row, startRow;
+  protected int[] firstRow;
+
+  //union-find forest and the bounding box and pixel count of each provisional label; only valid for roots
+  //firstX is the x-position of the pixel that created the label, which for a root is its first pixel on row minY
+  protected int[] parent, minX, minY, maxX, maxY, firstX;
+  protected long[] area;
+
+  //number of provisional labels used so far; label 0 is not used
+  protected int count = 1;
+
+  /**
+   * Constructor.
+   *
+   * @param int width Width of the image
+   * @param int lower Lower threshold level, pixels >= lower belong to a cluster
+   * @param int upper Upper threshold level, pixels <= upper belong to a cluster
+   */
+
+  public ComponentLabeler(int width, int lower, int upper) {
+    this(width, lower, upper, 0);
+  }
+
+  /**
+   * Constructor for labeling a stripe of the image.
+   *
+   * @param int width Width of the image
+   * @param int lower Lower threshold level, pixels >= lower belong to a cluster
+   * @param int upper Upper threshold level, pixels <= upper belong to a cluster
+   * @param int startRow The row of the image that the first call to addRow() labels
+   */
+
+  public ComponentLabeler(int width, int lower, int upper, int startRow) {
+    this.width = width;
+    this.startRow = startRow;
+    row = startRow;
+    this.lower = lower;
+    this.upper = upper;
+    previous = new int[width];
+    current = new int[width];
+    int capacity = Math.max(64, width);
+    parent = new int[capacity];
+    minX = new int[capacity];
+    minY = new int[capacity];
+    maxX = new int[capacity];
+    maxY = new int[capacity];
+    firstX = new int[capacity];
+    area = new long[capacity];
+  }
+
+  /**
+   * Label a whole image.
+   *
+   * @param Array pixels Pixels of the image
+   * @param int width Width of the image
+   * @param int height Height of the image
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param double minSize Clusters with fewer pixels are left out
+   * @param double maxSize Clusters with more pixels are left out
+   * @return Array The packed bounding boxes
+   */
+
+  public static int[] label(byte[] pixels, int width, int height, int lower, int upper, double minSize, double maxSize) {
+    ComponentLabeler labeler = new ComponentLabeler(width, lower, upper);
+    for (int y = 0; y < height; y++)
+    {
+      labeler.addRow(pixels, y * width);
+    }
+    return labeler.getBoxes(minSize, maxSize);
+  }
+
+  /**
+   * Label the next row of the image.
+   *
+   * @param Array pixels Array containing the row
+   * @param int offset Position of the first pixel of the row in the array
+   */
+
+  public void addRow(byte[] pixels, int offset) {
+    int[] swap = previous;
+    previous = current;
+    current = swap;
+    boolean first = row == startRow;
+
+    for (int x = 0; x < width; x++)
+    {
+      int value = pixels[offset + x] & 0xff;
+      if (value < lower || value > upper)
+      {
+        current[x] = 0;
+        continue;
+      }
+
+      //the neighbours that have already been labeled: left, and the three above
+      int label = x > 0 ? current[x - 1] : 0;
+      if (!first)
+      {
+        if (x > 0 && previous[x - 1] != 0)
+        {
+          label = join(label, previous[x - 1]);
+        }
+        if (previous[x] != 0)
+        {
+          label = join(label, previous[x]);
+        }
+        if (x + 1 < width && previous[x + 1] != 0)
+        {
+          label = join(label, previous[x + 1]);
+        }
+      }
+
+      if (label == 0)
+      {
+        label = newLabel(x);
+      } else
+      {
+        label = find(label);
+        if (x < minX[label]) minX[label] = x;
+        if (x > maxX[label]) maxX[label] = x;
+        maxY[label] = row;
+      }
+      area[label]++;
+      current[x] = label;
+    }
+    if (first)
+    {
+      firstRow = current.clone();
+    }
+    row++;
+  }
+
+  /**
+   * Start a new cluster at a pixel of the current row.
+   */
+
+  private int newLabel(int x) {
+    if (count == parent.length)
+    {
+      int capacity = 2 * count;
+      parent = java.util.Arrays.copyOf(parent, capacity);
+      minX = java.util.Arrays.copyOf(minX, capacity);
+      minY = java.util.Arrays.copyOf(minY, capacity);
+      maxX = java.util.Arrays.copyOf(maxX, capacity);
+      maxY = java.util.Arrays.copyOf(maxY, capacity);
+      firstX = java.util.Arrays.copyOf(firstX, capacity);
+      area = java.util.Arrays.copyOf(area, capacity);
+    }
+    int label = count++;
+    parent[label] = label;
+    minX[label] = maxX[label] = firstX[label] = x;
+    minY[label] = maxY[label] = row;
+    area[label] = 0;
+    return label;
+  }
+
+  /**
+   * Find the root of a label, shortening the path on the way.
+   */
+
+  protected int find(int label) {
+    while (parent[label] != label)
+    {
+      parent[label] = parent[parent[label]];
+      label = parent[label];
+    }
+    return label;
+  }
+
+  /**
+   * Merge two labels into one cluster; the smaller root survives, so the clusters keep the order of their first pixel.
+   *
+   * @param int a A label, or 0
+   * @param int b A label
+   * @return int The root of the merged cluster
+   */
+
+  protected int join(int a, int b) {
+    b = find(b);
+    if (a == 0)
+    {
+      return b;
+    }
+    a = find(a);
+    if (a == b)
+    {
+      return a;
+    }
+    if (b < a)
+    {
+      int swap = a;
+      a = b;
+      b = swap;
+    }
+    parent[b] = a;
+    if (minX[b] < minX[a]) minX[a] = minX[b];
+    if (minY[b] < minY[a]) minY[a] = minY[b];
+    if (maxX[b] > maxX[a]) maxX[a] = maxX[b];
+    if (maxY[b] > maxY[a]) maxY[a] = maxY[b];
+    area[a] += area[b];
+    return a;
+  }
+
+  /**
+   * Get the labels of the first row, resolved to the roots of their clusters.
+   *
+   * @return Array One label per pixel, 0 for background
+   */
+
+  public int[] getFirstRowLabels() {
+    return resolve(firstRow);
+  }
+
+  /**
+   * Get the labels of the last row added, resolved to the roots of their clusters.
+   *
+   * @return Array One label per pixel, 0 for background
+   */
+
+  public int[] getLastRowLabels() {
+    return resolve(current);
+  }
+
+  /**
+   * Replace each label in a row by the root of its cluster.
+   */
+
+  private int[] resolve(int[] labels) {
+    int[] roots = new int[width];
+    if (labels == null)
+    {
+      return roots;
+    }
+    for (int x = 0; x < width; x++)
+    {
+      roots[x] = labels[x] == 0 ? 0 : find(labels[x]);
+    }
+    return roots;
+  }
+
+  /**
+   * Get the bounding boxes of all the clusters found so far.
+   *
+   * @param double minSize Clusters with fewer pixels are left out
+   * @param double maxSize Clusters with more pixels are left out
+   * @return Array The packed bounding boxes, in the order of the first pixel of each cluster
+   */
+
+  public int[] getBoxes(double minSize, double maxSize) {
+    int n = 0;
+    for (int label = 1; label < count; label++)
+    {
+      if (parent[label] == label && area[label] >= minSize && area[label] <= maxSize)
+      {
+        n++;
+      }
+    }
+    int[] boxes = new int[n * BOX_SIZE];
+    int k = 0;
+    for (int label = 1; label < count; label++)
+    {
+      if (parent[label] == label && area[label] >= minSize && area[label] <= maxSize)
+      {
+        boxes[k++] = minX[label];
+        boxes[k++] = minY[label];
+        boxes[k++] = maxX[label] - minX[label] + 1;
+        boxes[k++] = maxY[label] - minY[label] + 1;
+      }
+    }
+    return boxes;
+  }
+}
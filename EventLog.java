@@ -0,0 +1,143 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Locale;
+
+  /**
+   * A cheap replacement for logging every letter with IJ.log().
+   *
+   * Adding an event only stores its format, a text and up to four numbers in arrays; nothing is formatted and the log
+   * window is not touched until the events are written out, all at once, at the end of a page. Not thread safe.
+   */
+
+public class EventLog {
+
+  //per event: the format, the text and numbers it is filled with, and the time
+  protected String[] formats = new String[256], texts = new String[256];
+  protected int[] values = new int[4 * 256];
+  protected long[] times = new long[256];
+  protected int size;
+
+  //the time of the first event
+  protected long start = System.nanoTime();
+
+  /**
+   * Add an event with one number.
+   *
+   * @param String format A String.format() pattern, filled with the text and then the number; should be a constant
+   * @param String text The text, e.g. the letter
+   * @param int a The number
+   */
+
+  public void add(String format, String text, int a) {
+    add(format, text, a, 0, 0, 0);
+  }
+
+  /**
+   * Add an event with two numbers.
+   *
+   * @param String format A String.format() pattern, filled with the text and then the numbers; should be a constant
+   * @param String text The text, e.g. the letter
+   * @param int a The first number
+   * @param int b The second number
+   */
+
+  public void add(String format, String text, int a, int b) {
+    add(format, text, a, b, 0, 0);
+  }
+
+  /**
+   * Add an event with four numbers; a format that uses fewer of them ignores the rest.
+   *
+   * @param String format A String.format() pattern, filled with the text and then the numbers; should be a constant
+   * @param String text The text, e.g. the letter
+   * @param int a The first number
+   * @param int b The second number
+   * @param int c The third number
+   * @param int d The fourth number
+   */
+
+  public void add(String format, String text, int a, int b, int c, int d) {
+    if (size == formats.length)
+    {
+      formats = Arrays.copyOf(formats, 2 * size);
+      texts = Arrays.copyOf(texts, 2 * size);
+      values = Arrays.copyOf(values, 8 * size);
+      times = Arrays.copyOf(times, 2 * size);
+    }
+    formats[size] = format;
+    texts[size] = text;
+    values[4 * size] = a;
+    values[4 * size + 1] = b;
+    values[4 * size + 2] = c;
+    values[4 * size + 3] = d;
+    times[size] = System.nanoTime();
+    size++;
+  }
+
+  /**
+   * @return int The number of events
+   */
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Format the events, one per line, each with the milliseconds since the log was created or cleared.
+   *
+   * @param Appendable out Receives the lines
+   */
+
+  public void format(Appendable out) throws IOException {
+    for (int k = 0; k < size; k++)
+    {
+      out.append(String.format(Locale.ROOT, "%9.3f ms  ", (times[k] - start) / 1e6));
+      out.append(String.format(Locale.ROOT, formats[k], texts[k], values[4 * k], values[4 * k + 1], values[4 * k + 2], values[4 * k + 3]));
+      out.append('\n');
+    }
+  }
+
+  /**
+   * @return String The formatted events
+   */
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    try
+    {
+      format(text);
+    } catch (IOException e)
+    {
+      //a StringBuilder does not throw
+    }
+    return text.toString();
+  }
+
+  /**
+   * Write the formatted events to a file.
+   *
+   * @param File file The file
+   */
+
+  public void writeTo(File file) throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try
+    {
+      format(out);
+    } finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Remove all of the events.
+   */
+
+  public void clear() {
+    Arrays.fill(texts, 0, size, null);
+    size = 0;
+    start = System.nanoTime();
+  }
+}
@@ -0,0 +1,141 @@
+import java.io.File;
+import java.util.List;
+
+  /**
+   * Guesses the letter of a 12x12 black and white glyph from the letters that have been saved before, by the k nearest
+   * neighbours: the k saved glyphs that differ from it in the fewest pixels vote for their letter, the closer ones with
+   * a larger weight, and the share of the votes the winning letter gets is the confidence of the guess.
+   *
+   * The examples are kept in a GlyphStore, see GlyphStore.load() for where they come from.
+   */
+
+public class GlyphClassifier {
+
+  //number of neighbours that vote
+  protected int k = 5;
+
+  //the examples
+  protected GlyphStore store;
+
+  /**
+   * A guess.
+   */
+
+  public static class Prediction {
+    public String letter;
+    //share of the votes, between 0 and 1
+    public double confidence;
+  }
+
+  /**
+   * Constructor: a classifier without any examples yet.
+   */
+
+  public GlyphClassifier() {
+    this(new GlyphStore(1024));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param GlyphStore store The examples
+   */
+
+  public GlyphClassifier(GlyphStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Collect the examples from a directory of saved letters.
+   *
+   * @param File dir The directory the letters are saved in, normally tmp
+   * @return GlyphClassifier The classifier; without any examples if nothing has been saved yet
+   */
+
+  public static GlyphClassifier load(File dir) {
+    return new GlyphClassifier(GlyphStore.load(dir));
+  }
+
+  /**
+   * Add an example.
+   *
+   * @param String letter The letter
+   * @param Array bits The packed black and white glyph, see GlyphExtractor.packBw()
+   * @param int offset Position of the first byte in the array
+   */
+
+  public void add(String letter, byte[] bits, int offset) {
+    store.add(letter, bits, offset);
+  }
+
+  /**
+   * @return int The number of examples
+   */
+
+  public int size() {
+    return store.size();
+  }
+
+  /**
+   * @return List The letters of the examples
+   */
+
+  public List<String> getLabelNames() {
+    return store.getLabelNames();
+  }
+
+  /**
+   * @return GlyphStore The examples
+   */
+
+  public GlyphStore getStore() {
+    return store;
+  }
+
+  /**
+   * Guess the letter of a glyph. Can be called by several threads at once.
+   *
+   * @param Array bits The packed black and white glyph, see GlyphExtractor.packBw()
+   * @param int offset Position of the first byte in the array
+   * @return Prediction The guess, or null if there are no examples
+   */
+
+  public Prediction classify(byte[] bits, int offset) {
+    if (store.size() == 0)
+    {
+      return null;
+    }
+    long[] packed = new long[GlyphStore.LONGS];
+    GlyphStore.pack(bits, offset, packed);
+    int[] nearest = new int[k], distances = new int[k];
+    int n = store.nearest(packed, k, nearest, distances);
+    return vote(nearest, distances, n);
+  }
+
+  /**
+   * Let the nearest examples vote, each with weight 1 / (1 + distance).
+   */
+
+  protected Prediction vote(int[] nearest, int[] distances, int n) {
+    double[] votes = new double[store.getLabelNames().size()];
+    double total = 0;
+    for (int j = 0; j < n; j++)
+    {
+      double weight = 1.0 / (1 + distances[j]);
+      votes[store.getLabel(nearest[j])] += weight;
+      total += weight;
+    }
+    int best = 0;
+    for (int label = 1; label < votes.length; label++)
+    {
+      if (votes[label] > votes[best])
+      {
+        best = label;
+      }
+    }
+    Prediction prediction = new Prediction();
+    prediction.letter = store.getLabelNames().get(best);
+    prediction.confidence = votes[best] / total;
+    return prediction;
+  }
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+  /**
+   * Reads a dataset written by GlyphDatasetWriter.
+   *
+   * The file is memory-mapped, so any letter can be read by its number without reading the ones before it, and
+   * getGray() and getBw() return views of the mapped file rather than copies. Files larger than 2 GB are mapped in
+   * several parts. The reader can be used by several threads at once.
+   */
+
+public class GlyphDatasetReader implements Closeable {
+
+  //number of records per mapped part; a multiple of the record size that fits in one buffer
+  protected static final int RECORDS_PER_PART = Integer.MAX_VALUE / GlyphDatasetWriter.RECORD_SIZE;
+
+  protected RandomAccessFile file;
+
+  //the mapped parts of the file, after the header
+  protected MappedByteBuffer[] parts;
+
+  //number of records, and the names of the source images
+  protected long count;
+  protected String[] sources;
+
+  /**
+   * Constructor: open and map a dataset.
+   *
+   * @param File path The dataset file
+   */
+
+  public GlyphDatasetReader(File path) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    FileChannel channel = file.getChannel();
+
+    ByteBuffer header = ByteBuffer.allocate(GlyphDatasetWriter.HEADER_SIZE);
+    channel.read(header, 0);
+    header.flip();
+    if (header.remaining() < GlyphDatasetWriter.HEADER_SIZE || header.getInt() != GlyphDatasetWriter.MAGIC
+      || header.getInt() != GlyphDatasetWriter.VERSION || header.getInt() != GlyphDatasetWriter.RECORD_SIZE)
+    {
+      file.close();
+      throw new IOException(path + " is not a glyph dataset of this version");
+    }
+    count = header.getLong(GlyphDatasetWriter.COUNT_OFFSET);
+
+    int n = (int) ((count + RECORDS_PER_PART - 1) / RECORDS_PER_PART);
+    parts = new MappedByteBuffer[n];
+    for (int k = 0; k < n; k++)
+    {
+      long records = Math.min(RECORDS_PER_PART, count - (long) k * RECORDS_PER_PART);
+      parts[k] = channel.map(FileChannel.MapMode.READ_ONLY,
+        GlyphDatasetWriter.HEADER_SIZE + (long) k * RECORDS_PER_PART * GlyphDatasetWriter.RECORD_SIZE, records * GlyphDatasetWriter.RECORD_SIZE);
+    }
+
+    ArrayList<String> names = new ArrayList<String>();
+    File sourcesFile = new File(path.getPath() + ".sources");
+    if (sourcesFile.exists())
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sourcesFile), StandardCharsets.UTF_8));
+      try
+      {
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+          names.add(line);
+        }
+      } finally
+      {
+        in.close();
+      }
+    }
+    sources = names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * @return long The number of letters in the dataset
+   */
+
+  public long size() {
+    return count;
+  }
+
+  /**
+   * Get the part of the file holding a record.
+   */
+
+  protected ByteBuffer part(long index) {
+    if (index < 0 || index >= count)
+    {
+      throw new IndexOutOfBoundsException("Letter " + index + " of " + count);
+    }
+    return parts[(int) (index / RECORDS_PER_PART)];
+  }
+
+  /**
+   * Get the position of a record within its part.
+   */
+
+  protected int position(long index) {
+    return (int) (index % RECORDS_PER_PART) * GlyphDatasetWriter.RECORD_SIZE;
+  }
+
+  /**
+   * @return char The letter of a record
+   */
+
+  public char getLabel(long index) {
+    return part(index).getChar(position(index) + GlyphDatasetWriter.LABEL_OFFSET);
+  }
+
+  /**
+   * @return String The name of the image a letter comes from
+   */
+
+  public String getSource(long index) {
+    int source = part(index).getInt(position(index) + GlyphDatasetWriter.SOURCE_OFFSET);
+    return source < sources.length ? sources[source] : null;
+  }
+
+  /**
+   * @return int[] x, y, width and height of the square a letter was cut from
+   */
+
+  public int[] getRectangle(long index) {
+    ByteBuffer part = part(index);
+    int position = position(index);
+    return new int[] {part.getInt(position + GlyphDatasetWriter.X_OFFSET), part.getInt(position + GlyphDatasetWriter.Y_OFFSET),
+      part.getInt(position + GlyphDatasetWriter.WIDTH_OFFSET), part.getInt(position + GlyphDatasetWriter.HEIGHT_OFFSET)};
+  }
+
+  /**
+   * Get the grayscale letter without copying it.
+   *
+   * @return ByteBuffer A read-only view of the GRAY_SIZE bytes of the letter
+   */
+
+  public ByteBuffer getGray(long index) {
+    return slice(index, GlyphDatasetWriter.GRAY_OFFSET, GlyphDatasetWriter.GRAY_SIZE);
+  }
+
+  /**
+   * Get the packed black and white letter without copying it.
+   *
+   * @return ByteBuffer A read-only view of the BW_SIZE bytes of the letter
+   */
+
+  public ByteBuffer getBw(long index) {
+    return slice(index, GlyphDatasetWriter.BW_OFFSET, GlyphDatasetWriter.BW_SIZE);
+  }
+
+  /**
+   * Get a view of a field of a record; duplicate() keeps the reader usable from several threads.
+   */
+
+  protected ByteBuffer slice(long index, int offset, int length) {
+    ByteBuffer view = part(index).duplicate();
+    int position = position(index) + offset;
+    view.limit(position + length);
+    view.position(position);
+    return view.slice();
+  }
+
+  public void close() throws IOException {
+    parts = null;
+    file.close();
+  }
+}
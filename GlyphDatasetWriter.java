@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+  /**
+   * Writes the 12x12 letter images into a single binary file of fixed-size records, instead of two PNG files per letter.
+   *
+   * The file starts with a header of HEADER_SIZE bytes: the magic number, the format version, the record size, the
+   * letter size and the number of records. Each record then holds:
+   *   int     source image number (line number in the .sources file next to the dataset, starting at 0)
+   *   int x4  x, y, width and height of the square the letter was cut from, in the rotated page
+   *   char    the letter
+   *   144     bytes of the grayscale letter, row by row
+   *   18      bytes of the black and white letter, one bit per pixel (see GlyphExtractor.packBw())
+   * padded to RECORD_SIZE bytes. All numbers are big-endian.
+   *
+   * The records are written through memory-mapped windows of the file, so that appending a letter is a memory copy.
+   * An existing dataset is added to. There is at most one record per source image and square: a letter cut from a
+   * square that is already in the dataset replaces its record, so saving the letters of a page again, or labeling one
+   * differently, does not add copies. The writer is thread safe, so the pages of a batch can share one dataset.
+   * Use GlyphDatasetReader to read it.
+   */
+
+public class GlyphDatasetWriter implements Closeable {
+
+  public static final int MAGIC = 0x50584731; //"PXG1"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int RECORD_SIZE = 192;
+  public static final int GRAY_SIZE = GlyphExtractor.SIZE * GlyphExtractor.SIZE;
+  public static final int BW_SIZE = GRAY_SIZE / 8;
+
+  //positions of the fields within a record
+  public static final int SOURCE_OFFSET = 0, X_OFFSET = 4, Y_OFFSET = 8, WIDTH_OFFSET = 12, HEIGHT_OFFSET = 16,
+    LABEL_OFFSET = 20, GRAY_OFFSET = 22, BW_OFFSET = GRAY_OFFSET + GRAY_SIZE;
+
+  //position of the record count in the header
+  public static final int COUNT_OFFSET = 16;
+
+  //number of records mapped at a time
+  protected static final int RECORDS_PER_WINDOW = 16384;
+
+  protected RandomAccessFile file;
+  protected FileChannel channel;
+
+  //the names of the source images, and the file they are listed in
+  protected HashMap<String, Integer> sources = new HashMap<String, Integer>();
+  protected Writer sourcesOut;
+
+  //the mapped window of the file that records are appended to, and the number of the first record in it
+  protected MappedByteBuffer window;
+  protected long windowStart;
+
+  //number of records in the file
+  protected long count;
+
+  //the record of each source image and square, see getKey()
+  protected HashMap<String, Long> records = new HashMap<String, Long>();
+
+  /**
+   * Constructor: open a dataset for appending, or create it.
+   *
+   * @param File path The dataset file; the names of the source images are kept in the same path + ".sources"
+   */
+
+  public GlyphDatasetWriter(File path) throws IOException {
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+
+    if (channel.size() > 0)
+    {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      channel.read(header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_SIZE)
+      {
+        //leave the file as it is: close() would write our header over it and cut it off
+        channel.close();
+        file.close();
+        channel = null;
+        throw new IOException(path + " is not a glyph dataset of this version");
+      }
+      count = header.getLong(COUNT_OFFSET);
+      readRecords();
+    } else
+    {
+      writeHeader();
+    }
+
+    //read the names of the source images that are already in the dataset
+    File sourcesFile = new File(path.getPath() + ".sources");
+    if (sourcesFile.exists())
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sourcesFile), StandardCharsets.UTF_8));
+      try
+      {
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+          sources.put(line, sources.size());
+        }
+      } finally
+      {
+        in.close();
+      }
+    }
+    sourcesOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sourcesFile, true), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Append a letter to the dataset.
+   *
+   * @param String source Name of the image the letter comes from
+   * @param String letter The letter; only its first character is stored
+   * @param int x x-position of the top left-hand corner of the square
+   * @param int y y-position of the top left-hand corner of the square
+   * @param int width Width of the square
+   * @param int height Height of the square
+   * @param Array gray The GRAY_SIZE pixels of the grayscale letter
+   * @param Array bw The BW_SIZE bytes of the packed black and white letter
+   */
+
+  public synchronized void write(String source, String letter, int x, int y, int width, int height, byte[] gray, byte[] bw) throws IOException {
+    Integer sourceNumber = sources.get(source);
+    if (sourceNumber == null)
+    {
+      sourceNumber = sources.size();
+      sources.put(source, sourceNumber);
+      sourcesOut.write(source + "\n");
+    }
+
+    String key = getKey(sourceNumber, x, y, width, height);
+    Long record = records.get(key);
+    if (record != null && (window == null || record < windowStart))
+    {
+      //a record outside the mapped window is written through the channel
+      ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+      putRecord(buffer, sourceNumber, letter, x, y, width, height, gray, bw);
+      buffer.position(0);
+      channel.write(buffer, HEADER_SIZE + record * RECORD_SIZE);
+      return;
+    }
+    if (record == null)
+    {
+      if (window == null || count - windowStart >= RECORDS_PER_WINDOW)
+      {
+        //mapping past the end of the file makes it grow
+        windowStart = count;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + windowStart * RECORD_SIZE, (long) RECORDS_PER_WINDOW * RECORD_SIZE);
+      }
+      record = count++;
+      records.put(key, record);
+    }
+
+    window.position((int) (record - windowStart) * RECORD_SIZE);
+    putRecord(window, sourceNumber, letter, x, y, width, height, gray, bw);
+  }
+
+  /**
+   * Put the fields of a record into a buffer, at its position.
+   */
+
+  private static void putRecord(ByteBuffer buffer, int sourceNumber, String letter, int x, int y, int width, int height, byte[] gray, byte[] bw) {
+    buffer.putInt(sourceNumber);
+    buffer.putInt(x);
+    buffer.putInt(y);
+    buffer.putInt(width);
+    buffer.putInt(height);
+    buffer.putChar(letter.length() > 0 ? letter.charAt(0) : ' ');
+    buffer.put(gray, 0, GRAY_SIZE);
+    buffer.put(bw, 0, BW_SIZE);
+  }
+
+  /**
+   * Get the key of a source image and square.
+   */
+
+  private static String getKey(int sourceNumber, int x, int y, int width, int height) {
+    return sourceNumber + " " + x + " " + y + " " + width + " " + height;
+  }
+
+  /**
+   * Find the record of each source image and square that is already in the file, RECORDS_PER_WINDOW records at a time.
+   * If a square is in the file more than once, as in files written before the records were replaced, the last
+   * record is the one that is replaced.
+   */
+
+  protected void readRecords() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_WINDOW * RECORD_SIZE);
+    for (long first = 0; first < count; first += RECORDS_PER_WINDOW)
+    {
+      int n = (int) Math.min(RECORDS_PER_WINDOW, count - first);
+      buffer.clear();
+      buffer.limit(n * RECORD_SIZE);
+      long position = HEADER_SIZE + first * RECORD_SIZE;
+      while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0)
+      {
+      }
+      for (int k = 0; k < n; k++)
+      {
+        int p = k * RECORD_SIZE;
+        records.put(getKey(buffer.getInt(p + SOURCE_OFFSET), buffer.getInt(p + X_OFFSET), buffer.getInt(p + Y_OFFSET),
+          buffer.getInt(p + WIDTH_OFFSET), buffer.getInt(p + HEIGHT_OFFSET)), first + k);
+      }
+    }
+  }
+
+  /**
+   * @return long The number of letters in the dataset
+   */
+
+  public synchronized long size() {
+    return count;
+  }
+
+  /**
+   * Write the header, with the current number of records.
+   */
+
+  protected void writeHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(RECORD_SIZE);
+    header.putInt(GlyphExtractor.SIZE);
+    header.putLong(COUNT_OFFSET, count);
+    header.position(0);
+    channel.write(header, 0);
+  }
+
+  /**
+   * Write the header, cut off the unused part of the last window and close the file.
+   */
+
+  public synchronized void close() throws IOException {
+    if (channel == null)
+    {
+      return;
+    }
+    try
+    {
+      if (window != null)
+      {
+        window.force();
+        window = null;
+      }
+      writeHeader();
+      //the file can only be shortened after the window is gone; on some systems this fails while it is still mapped
+      try
+      {
+        channel.truncate(HEADER_SIZE + count * RECORD_SIZE);
+      } catch (IOException e)
+      {
+        //the records past the count are ignored by the reader
+      }
+      if (sourcesOut != null)
+      {
+        sourcesOut.close();
+      }
+    } finally
+    {
+      channel.close();
+      file.close();
+      channel = null;
+    }
+  }
+}
@@ -0,0 +1,405 @@
+import ij.process.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+  /**
+   * Cuts the letters out of the page and scales them down to 12x12 images in a single step.
+   *
+   * This does the same as copying the rectangle into a new ByteProcessor and calling resize(12) with bilinear
+   * interpolation, and gives exactly the same pixels, but it reads straight from the pixels of the page and
+   * writes into buffers that are reused for every letter, so nothing is allocated per letter. The grayscale version is
+   * read from the 8-bit page and the black and white version from the packed mask; they share the interpolation
+   * coefficients and are computed in the same pass.
+   *
+   * Instead of bilinear interpolation, which only looks at the 4 pixels around each point and so skips most of the
+   * pixels of a large letter, the letters can also be scaled by area averaging (AREA_AVERAGE): every output pixel is the
+   * average of the part of the square it covers, with the pixels on its border weighted by how much of them it covers.
+   * The weights are exact integers, and the weights for a square of a given size are computed once and then shared by
+   * all extractors, like the bilinear coefficients. The letters saved so far, which the classifier learns from, were
+   * scaled bilinearly, so that stays the default.
+   *
+   * The letter images are SIZE x SIZE pixels unless another size is given to the constructor; the glyph dataset, the
+   * glyph store and the classifier only take letters of SIZE x SIZE.
+   *
+   * An object of this class is not thread safe; use one per thread.
+   */
+
+public class GlyphExtractor {
+
+  //width and height of the letter images
+  public static final int SIZE = 12;
+
+  //how the letters are scaled
+  public static final int BILINEAR = 0, AREA_AVERAGE = 1;
+  public static final String[] METHOD_NAMES = {"bilinear", "area-average"};
+
+  //the coefficients of every scaling method, output size and square size used so far, see getKernel()
+  private static final ConcurrentHashMap<Long, Kernel> kernels = new ConcurrentHashMap<Long, Kernel>();
+
+  //width and height of the letter images of this extractor, and how they are scaled
+  protected int outputSize;
+  protected int method;
+
+  //the letter images; the processors wrap the arrays, so they always show the last extracted letter
+  protected byte[] gray, bw;
+  protected ByteProcessor grayIp, bwIp;
+
+  //value of the letter pixels in the black and white version, from the mask of the last extracted letter
+  protected int foreground;
+
+  //area averaging: the sums of the current output row
+  protected long[] graySums, bwSums;
+
+  /**
+   * The coefficients for scaling a square of one size, the same in both directions.
+   *
+   * Bilinear: for each output column/row, the first source pixel and the fraction of the next one.
+   * Area averaging: for each output column/row, the first source pixel it covers and the weights of the pixels it
+   * covers from there, weights[start[d]] to weights[start[d + 1] - 1]; in units of 1 / outputSize pixel, so the
+   * weights of every output pixel add up to the size of the square.
+   */
+
+  protected static class Kernel {
+    int[] base;
+    double[] fraction;
+    int[] first, start, weights;
+  }
+
+  /**
+   * Constructor: SIZE x SIZE letters, scaled bilinearly.
+   */
+
+  public GlyphExtractor() {
+    this(SIZE, BILINEAR);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param int outputSize Width and height of the letter images
+   * @param int method BILINEAR or AREA_AVERAGE
+   */
+
+  public GlyphExtractor(int outputSize, int method) {
+    this.outputSize = outputSize;
+    this.method = method;
+    gray = new byte[outputSize * outputSize];
+    bw = new byte[outputSize * outputSize];
+    grayIp = new ByteProcessor(outputSize, outputSize, gray);
+    bwIp = new ByteProcessor(outputSize, outputSize, bw);
+    graySums = new long[outputSize];
+    bwSums = new long[outputSize];
+  }
+
+  /**
+   * Get a method by its name.
+   *
+   * @param String name "bilinear" or "area-average", in any case
+   * @return int The method, or -1 if the name is unknown
+   */
+
+  public static int getMethod(String name) {
+    for (int m = 0; m < METHOD_NAMES.length; m++)
+    {
+      if (METHOD_NAMES[m].equalsIgnoreCase(name))
+      {
+        return m;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Extract one letter from the grayscale page and its black and white mask.
+   *
+   * Pixels of the square that fall outside the page are treated as 0.
+   *
+   * @param Array source Pixels of the grayscale page
+   * @param BinaryMask mask The black and white version of the page, same dimensions
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int left x-position of the top left-hand corner of the square
+   * @param int top y-position of the top left-hand corner of the square
+   * @param int size Width and height of the square
+   */
+
+  public void extract(byte[] source, BinaryMask mask, int width, int height, int left, int top, int size) {
+    foreground = mask.foreground;
+    if (size == outputSize)
+    {
+      //nothing to scale, copy the pixels
+      for (int v = 0; v < outputSize; v++)
+      {
+        for (int u = 0; u < outputSize; u++)
+        {
+          gray[v * outputSize + u] = (byte) sample(source, width, height, left + u, top + v);
+          bw[v * outputSize + u] = (byte) mask.getValue(left + u, top + v);
+        }
+      }
+      return;
+    }
+    if (size < 2)
+    {
+      //too small to interpolate, every pixel gets the single source pixel
+      java.util.Arrays.fill(gray, (byte) sample(source, width, height, left, top));
+      java.util.Arrays.fill(bw, (byte) mask.getValue(left, top));
+      return;
+    }
+
+    Kernel kernel = getKernel(method, outputSize, size);
+    boolean inside = left >= 0 && top >= 0 && left + size <= width && top + size <= height;
+    if (method == AREA_AVERAGE)
+    {
+      averageArea(kernel, source, mask, width, height, left, top, size, inside);
+      return;
+    }
+
+    int[] base = kernel.base;
+    double[] fraction = kernel.fraction;
+    for (int v = 0; v < outputSize; v++)
+    {
+      double yFraction = fraction[v];
+      int sy = top + base[v];
+      for (int u = 0; u < outputSize; u++)
+      {
+        double xFraction = fraction[u];
+        int sx = left + base[u];
+        if (inside)
+        {
+          int offset = sy * width + sx;
+          gray[v * outputSize + u] = interpolate(source[offset] & 0xff, source[offset + 1] & 0xff,
+            source[offset + width] & 0xff, source[offset + width + 1] & 0xff, xFraction, yFraction);
+        } else
+        {
+          //the square sticks out of the page, check every pixel
+          gray[v * outputSize + u] = interpolate(sample(source, width, height, sx, sy), sample(source, width, height, sx + 1, sy),
+            sample(source, width, height, sx, sy + 1), sample(source, width, height, sx + 1, sy + 1), xFraction, yFraction);
+        }
+        bw[v * outputSize + u] = interpolate(mask.getValue(sx, sy), mask.getValue(sx + 1, sy),
+          mask.getValue(sx, sy + 1), mask.getValue(sx + 1, sy + 1), xFraction, yFraction);
+      }
+    }
+  }
+
+  /**
+   * Scale the square by area averaging, the grayscale and the black and white version in the same pass.
+   */
+
+  private void averageArea(Kernel kernel, byte[] source, BinaryMask mask, int width, int height, int left, int top, int size, boolean inside) {
+    int[] first = kernel.first, start = kernel.start, weights = kernel.weights;
+    long total = (long) size * size;
+    int foreground = mask.foreground, background = mask.background;
+    for (int v = 0; v < outputSize; v++)
+    {
+      java.util.Arrays.fill(graySums, 0);
+      java.util.Arrays.fill(bwSums, 0);
+      int sy = top + first[v];
+      for (int j = start[v]; j < start[v + 1]; j++, sy++)
+      {
+        //add the source row to every output pixel of the row; a pixel on the border between two output pixels is read
+        //for both, with the share each one covers
+        long yWeight = weights[j];
+        int offset = sy * width, word = sy * mask.stride;
+        for (int u = 0; u < outputSize; u++)
+        {
+          int graySum = 0, bwSum = 0;
+          int sx = left + first[u];
+          if (inside)
+          {
+            //count the weight of the letter pixels; the rest of the weights, which add up to size, is background
+            int letterWeight = 0;
+            for (int i = start[u]; i < start[u + 1]; i++, sx++)
+            {
+              graySum += weights[i] * (source[offset + sx] & 0xff);
+              if ((mask.bits[word + (sx >>> 6)] & (1L << sx)) != 0)
+              {
+                letterWeight += weights[i];
+              }
+            }
+            bwSum = foreground * letterWeight + background * (size - letterWeight);
+          } else
+          {
+            for (int i = start[u]; i < start[u + 1]; i++, sx++)
+            {
+              graySum += weights[i] * sample(source, width, height, sx, sy);
+              bwSum += weights[i] * mask.getValue(sx, sy);
+            }
+          }
+          graySums[u] += yWeight * graySum;
+          bwSums[u] += yWeight * bwSum;
+        }
+      }
+      for (int u = 0; u < outputSize; u++)
+      {
+        gray[v * outputSize + u] = (byte) ((graySums[u] + total / 2) / total);
+        bw[v * outputSize + u] = (byte) ((bwSums[u] + total / 2) / total);
+      }
+    }
+  }
+
+  /**
+   * Get the coefficients for scaling a square, computing them the first time.
+   *
+   * @param int method BILINEAR or AREA_AVERAGE
+   * @param int outputSize Width and height of the letter images
+   * @param int size Width and height of the square
+   * @return Kernel The coefficients
+   */
+
+  protected static Kernel getKernel(int method, int outputSize, int size) {
+    Long key = ((long) method << 62) | ((long) outputSize << 31) | size;
+    Kernel kernel = kernels.get(key);
+    if (kernel == null)
+    {
+      kernel = method == AREA_AVERAGE ? getAreaKernel(outputSize, size) : getBilinearKernel(outputSize, size);
+      kernels.putIfAbsent(key, kernel);
+    }
+    return kernel;
+  }
+
+  /**
+   * Compute the bilinear coefficients: the same as ByteProcessor.resize() with bilinear interpolation, the same in both
+   * directions for a square.
+   */
+
+  private static Kernel getBilinearKernel(int outputSize, int size) {
+    Kernel kernel = new Kernel();
+    kernel.base = new int[outputSize];
+    kernel.fraction = new double[outputSize];
+    double srcCenter = size / 2.0;
+    double scale = (double) outputSize / size;
+    double dstCenter = outputSize / 2.0 + scale / 4.0;
+    double limit = size - 1.0, limit2 = size - 1.001;
+    for (int d = 0; d < outputSize; d++)
+    {
+      double s = (d - dstCenter) / scale + srcCenter;
+      if (s < 0.0) s = 0.0;
+      if (s >= limit) s = limit2;
+      kernel.base[d] = (int) s;
+      kernel.fraction[d] = s - kernel.base[d];
+    }
+    return kernel;
+  }
+
+  /**
+   * Compute the area averaging weights: output pixel d covers [d * size, (d + 1) * size) and source pixel i covers
+   * [i * outputSize, (i + 1) * outputSize), both in units of 1 / outputSize pixel, and the weight of i for d is their
+   * overlap.
+   */
+
+  private static Kernel getAreaKernel(int outputSize, int size) {
+    Kernel kernel = new Kernel();
+    kernel.first = new int[outputSize];
+    kernel.start = new int[outputSize + 1];
+    int[] weights = new int[size + 2 * outputSize];
+    int n = 0;
+    for (int d = 0; d < outputSize; d++)
+    {
+      kernel.start[d] = n;
+      long from = (long) d * size, to = (long) (d + 1) * size;
+      kernel.first[d] = (int) (from / outputSize);
+      for (long i = from / outputSize; i * outputSize < to; i++)
+      {
+        weights[n++] = (int) (Math.min(to, (i + 1) * outputSize) - Math.max(from, i * outputSize));
+      }
+    }
+    kernel.start[outputSize] = n;
+    kernel.weights = java.util.Arrays.copyOf(weights, n);
+    return kernel;
+  }
+
+  /**
+   * Get a pixel of the page, or 0 if the position is outside the page.
+   */
+
+  private static int sample(byte[] pixels, int width, int height, int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height)
+    {
+      return 0;
+    }
+    return pixels[y * width + x] & 0xff;
+  }
+
+  /**
+   * Bilinear interpolation between four pixels, rounded the same way as ByteProcessor.
+   */
+
+  private static byte interpolate(int lowerLeft, int lowerRight, int upperLeft, int upperRight, double xFraction, double yFraction) {
+    double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+    double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+    return (byte) ((int) (lowerAverage + yFraction * (upperAverage - lowerAverage) + 0.5) & 255);
+  }
+
+  /**
+   * Pack the black and white version of the last extracted letter into bits, one per pixel, row by row.
+   *
+   * A bit is set when the pixel is closer to the letter color than to the background color. The most significant bit
+   * of the first byte is the top left-hand pixel; the bits after the last pixel are 0.
+   *
+   * @param Array bits Receives the (width * height + 7) / 8 bytes, 18 for SIZE x SIZE letters
+   * @param int offset Position of the first byte in the array
+   */
+
+  public void packBw(byte[] bits, int offset) {
+    int pixels = outputSize * outputSize;
+    for (int k = 0; k < (pixels + 7) / 8; k++)
+    {
+      int packed = 0;
+      for (int b = 0; b < 8; b++)
+      {
+        int p = k * 8 + b;
+        int value = p < pixels ? bw[p] & 0xff : (foreground == 0 ? 255 : 0);
+        boolean letter = foreground == 0 ? value < 128 : value >= 128;
+        packed = (packed << 1) | (letter ? 1 : 0);
+      }
+      bits[offset + k] = (byte) packed;
+    }
+  }
+
+  /**
+   * @return int Width and height of the letter images
+   */
+
+  public int getOutputSize() {
+    return outputSize;
+  }
+
+  /**
+   * @return int How the letters are scaled, BILINEAR or AREA_AVERAGE
+   */
+
+  public int getMethod() {
+    return method;
+  }
+
+  /**
+   * @return Array The pixels of the grayscale version of the last extracted letter; reused by the next letter
+   */
+
+  public byte[] getGray() {
+    return gray;
+  }
+
+  /**
+   * @return Array The pixels of the black and white version of the last extracted letter; reused by the next letter
+   */
+
+  public byte[] getBw() {
+    return bw;
+  }
+
+  /**
+   * @return ByteProcessor The color version of the last extracted letter, as an 8-bit image; reused by the next letter
+   */
+
+  public ByteProcessor getGrayProcessor() {
+    return grayIp;
+  }
+
+  /**
+   * @return ByteProcessor The black and white version of the last extracted letter; reused by the next letter
+   */
+
+  public ByteProcessor getBwProcessor() {
+    return bwIp;
+  }
+}
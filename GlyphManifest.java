@@ -0,0 +1,253 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+  /**
+   * The list of letter images saved for one big image, kept in tmp/[big image name]/manifest.txt, so that saving the
+   * letters again only has to write the ones that changed.
+   *
+   * For every saved letter image it records the letter and its number (the file is [letter][number].png), the square it
+   * was cut from and a hash of its pixels. When the letters are saved again, a letter cut from the same square keeps its
+   * number, and its files are only written again if the hash is different; new letters get the lowest numbers that are
+   * free, and the files of letters that are gone are deleted.
+   *
+   * The file is tab-separated, with a heading line:
+   *   letter  number  x  y  size  hash
+   */
+
+public class GlyphManifest {
+
+  //the first line of the file
+  protected static final String HEADING = "letter\tnumber\tx\ty\tsize\thash";
+
+  /**
+   * A saved letter image.
+   */
+
+  public static class Entry {
+    public String letter;
+    public int number, x, y, size;
+    public long hash;
+    //true once it has been matched to a letter being saved
+    boolean taken;
+
+    /**
+     * @return String The name of the image files, without the directory
+     */
+
+    public String getFileName() {
+      return letter + number + ".png";
+    }
+  }
+
+  //the entries, and the same entries by letter and square
+  protected ArrayList<Entry> entries = new ArrayList<Entry>();
+  protected HashMap<String, Entry> bySquare = new HashMap<String, Entry>();
+
+  //per letter, the numbers that are in use
+  protected HashMap<String, BitSet> numbers = new HashMap<String, BitSet>();
+
+  /**
+   * Read a manifest; a missing or unreadable file gives an empty manifest, so every letter is written.
+   *
+   * @param File file The manifest file
+   * @return GlyphManifest The manifest
+   */
+
+  public static GlyphManifest read(File file) {
+    GlyphManifest manifest = new GlyphManifest();
+    if (!file.exists())
+    {
+      return manifest;
+    }
+    try
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try
+      {
+        String line = in.readLine();
+        while ((line = in.readLine()) != null)
+        {
+          String[] fields = line.split("\t");
+          if (fields.length < 6)
+          {
+            continue;
+          }
+          Entry entry = new Entry();
+          entry.letter = fields[0];
+          entry.number = Integer.parseInt(fields[1]);
+          entry.x = Integer.parseInt(fields[2]);
+          entry.y = Integer.parseInt(fields[3]);
+          entry.size = Integer.parseInt(fields[4]);
+          entry.hash = Long.parseUnsignedLong(fields[5], 16);
+          manifest.add(entry);
+        }
+      } finally
+      {
+        in.close();
+      }
+    } catch (IOException | NumberFormatException e)
+    {
+      System.err.println("Error: " + file.getPath() + ": " + e.getMessage() + ", saving all letters again");
+      return new GlyphManifest();
+    }
+    return manifest;
+  }
+
+  /**
+   * Add an entry.
+   *
+   * @param Entry entry The entry
+   */
+
+  public void add(Entry entry) {
+    entries.add(entry);
+    bySquare.put(getKey(entry.letter, entry.x, entry.y, entry.size), entry);
+    BitSet used = numbers.get(entry.letter);
+    if (used == null)
+    {
+      used = new BitSet();
+      numbers.put(entry.letter, used);
+    }
+    used.set(entry.number);
+  }
+
+  /**
+   * Find the entry of a letter cut from a square, if it has not been taken yet.
+   *
+   * @param String letter The letter
+   * @param int x x-position of the top left-hand corner of the square
+   * @param int y y-position of the top left-hand corner of the square
+   * @param int size Width and height of the square
+   * @return Entry The entry, or null
+   */
+
+  public Entry take(String letter, int x, int y, int size) {
+    Entry entry = bySquare.get(getKey(letter, x, y, size));
+    if (entry == null || entry.taken)
+    {
+      return null;
+    }
+    entry.taken = true;
+    return entry;
+  }
+
+  /**
+   * Get the lowest number of a letter that is not in use, and mark it as used.
+   *
+   * @param String letter The letter
+   * @return int The number, starting at 1
+   */
+
+  public int nextNumber(String letter) {
+    BitSet used = numbers.get(letter);
+    if (used == null)
+    {
+      used = new BitSet();
+      numbers.put(letter, used);
+    }
+    int number = used.nextClearBit(1);
+    used.set(number);
+    return number;
+  }
+
+  /**
+   * Check whether an image file name is used by an entry.
+   *
+   * @param String letter The letter
+   * @param int number The number
+   * @return boolean True if [letter][number].png belongs to an entry
+   */
+
+  public boolean uses(String letter, int number) {
+    BitSet used = numbers.get(letter);
+    return used != null && used.get(number);
+  }
+
+  /**
+   * @return List All entries
+   */
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return List The entries that have not been taken
+   */
+
+  public List<Entry> getUntaken() {
+    ArrayList<Entry> untaken = new ArrayList<Entry>();
+    for (Entry entry : entries)
+    {
+      if (!entry.taken)
+      {
+        untaken.add(entry);
+      }
+    }
+    return untaken;
+  }
+
+  /**
+   * @return int Number of entries
+   */
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Write the manifest; it is written to a temporary file first, so that an interrupted save leaves the old one.
+   *
+   * @param File file The manifest file
+   */
+
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getPath() + ".tmp");
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+    try
+    {
+      out.write(HEADING + "\n");
+      for (Entry entry : entries)
+      {
+        out.write(entry.letter + "\t" + entry.number + "\t" + entry.x + "\t" + entry.y + "\t" + entry.size + "\t" +
+          Long.toHexString(entry.hash) + "\n");
+      }
+    } finally
+    {
+      out.close();
+    }
+    file.delete();
+    if (!temporary.renameTo(file))
+    {
+      throw new IOException("could not rename " + temporary.getPath());
+    }
+  }
+
+  /**
+   * Hash the pixels of a letter image, FNV-1a over both versions.
+   *
+   * @param Array gray The grayscale letter
+   * @param Array bw The black and white letter
+   * @return long The hash
+   */
+
+  public static long hash(byte[] gray, byte[] bw) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : gray)
+    {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    for (byte b : bw)
+    {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static String getKey(String letter, int x, int y, int size) {
+    return letter + "\t" + x + "\t" + y + "\t" + size;
+  }
+}
@@ -0,0 +1,508 @@
+import ij.*;
+import ij.process.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+  /**
+   * A store of labeled 12x12 black and white glyphs outside the Java heap, for looking up and deduplicating a large
+   * number of them.
+   *
+   * Each glyph is kept as a bit vector of 144 bits in 3 longs (the last 48 bits are 0), in the same order as
+   * GlyphExtractor.packBw(), so the number of pixels in which two glyphs differ is the number of set bits of the xor of
+   * their longs, 3 popcount instructions. The bits and the labels are kept in direct buffers, 28 bytes per glyph, so
+   * millions of glyphs take no heap and no garbage collection time; the store holds at most MAX_SIZE glyphs. Searches
+   * over more than PARALLEL_SIZE glyphs are split over the common ForkJoinPool.
+   *
+   * The glyphs can be loaded in bulk from a directory of saved letters: the glyph dataset (glyphs.dat), and the black
+   * and white images of the [big image name] directories with a manifest.txt whose letters are not in the dataset.
+   * Adding glyphs is not thread safe, but searching is, as long as no glyphs are added at the same time.
+   */
+
+public class GlyphStore {
+
+  //longs and bytes per glyph
+  public static final int LONGS = 3;
+  protected static final int BYTES = LONGS * 8;
+
+  //the most glyphs a store can hold, as the buffers are indexed by int
+  public static final int MAX_SIZE = Integer.MAX_VALUE / BYTES;
+
+  //a search is split into parts of at least this many glyphs
+  protected static final int PARALLEL_SIZE = 1 << 15;
+
+  //the bits of the glyphs, and the label of each glyph as a number into labelNames
+  protected ByteBuffer bits, labels;
+  protected int size;
+
+  protected ArrayList<String> labelNames = new ArrayList<String>();
+  protected HashMap<String, Integer> labelNumbers = new HashMap<String, Integer>();
+
+  protected ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /**
+   * Constructor: an empty store.
+   *
+   * @param int capacity The number of glyphs to make room for; the store grows when more are added
+   */
+
+  public GlyphStore(int capacity) {
+    capacity = Math.max(16, Math.min(capacity, MAX_SIZE));
+    bits = ByteBuffer.allocateDirect(capacity * BYTES).order(ByteOrder.nativeOrder());
+    labels = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Collect the labeled glyphs of a directory of saved letters. Unlabeled glyphs are left out, and so are the glyphs
+   * that are the same as one collected before, with the same letter.
+   *
+   * The dataset is read first, as it is one file. The images of a big image are only decoded if none of its letters
+   * are in the dataset, e.g. when they were saved as PNG files only, so the letters saved in both formats are read
+   * once. Files that cannot be read are skipped and reported.
+   *
+   * @param File dir The directory the letters are saved in, normally tmp
+   * @return GlyphStore The store; empty if nothing has been saved yet
+   */
+
+  public static GlyphStore load(File dir) {
+    GlyphStore store = new GlyphStore(1024);
+    //the big images that have letters in the dataset
+    HashSet<String> datasetPages = new HashSet<String>();
+    File datasetFile = new File(dir, "glyphs.dat");
+    if (datasetFile.exists())
+    {
+      try
+      {
+        GlyphDatasetReader dataset = new GlyphDatasetReader(datasetFile);
+        try
+        {
+          store.addAll(dataset, datasetPages);
+        } finally
+        {
+          dataset.close();
+        }
+      } catch (IOException e)
+      {
+        System.err.println("Error: " + datasetFile.getPath() + ": " + e.getMessage());
+      }
+    }
+
+    File[] pages = dir.listFiles();
+    if (pages != null)
+    {
+      Arrays.sort(pages);
+      for (File page : pages)
+      {
+        if (!datasetPages.contains(page.getName()) && new File(page, "manifest.txt").exists())
+        {
+          store.addAll(page);
+        }
+      }
+    }
+    store.removeDuplicates();
+    return store;
+  }
+
+  /**
+   * Add the labeled letters of a dataset.
+   *
+   * @param GlyphDatasetReader dataset The dataset
+   */
+
+  public void addAll(GlyphDatasetReader dataset) {
+    addAll(dataset, new HashSet<String>());
+  }
+
+  /**
+   * Add the labeled letters of a dataset, and collect the names of the images they come from.
+   *
+   * @param GlyphDatasetReader dataset The dataset
+   * @param Set sources Receives the names of the source images of all records, labeled or not
+   */
+
+  public void addAll(GlyphDatasetReader dataset, Set<String> sources) {
+    byte[] glyph = new byte[GlyphDatasetWriter.BW_SIZE];
+    for (long i = 0; i < dataset.size(); i++)
+    {
+      String source = dataset.getSource(i);
+      if (source != null)
+      {
+        sources.add(source);
+      }
+      String letter = String.valueOf(dataset.getLabel(i));
+      if (isLabel(letter))
+      {
+        dataset.getBw(i).get(glyph);
+        add(letter, glyph, 0);
+      }
+    }
+  }
+
+  /**
+   * Add the labeled letters saved for one big image, listed in its manifest.txt.
+   *
+   * @param File page The tmp/[big image name] directory
+   */
+
+  public void addAll(File page) {
+    GlyphManifest manifest = GlyphManifest.read(new File(page, "manifest.txt"));
+    byte[] glyph = new byte[GlyphDatasetWriter.BW_SIZE];
+    int foreground = Prefs.blackBackground ? 255 : 0;
+    for (GlyphManifest.Entry entry : manifest.getEntries())
+    {
+      if (!isLabel(entry.letter))
+      {
+        continue;
+      }
+      File file = new File(page, "bw/" + entry.getFileName());
+      ImagePlus imp = file.exists() ? IJ.openImage(file.getPath()) : null;
+      if (imp == null || imp.getWidth() != GlyphExtractor.SIZE || imp.getHeight() != GlyphExtractor.SIZE)
+      {
+        System.err.println("Error: could not read " + file.getPath());
+        continue;
+      }
+      //packed the same way as GlyphExtractor.packBw()
+      ImageProcessor ip = imp.getProcessor().convertToByte(false);
+      Arrays.fill(glyph, (byte) 0);
+      for (int p = 0; p < GlyphDatasetWriter.GRAY_SIZE; p++)
+      {
+        int value = ip.get(p % GlyphExtractor.SIZE, p / GlyphExtractor.SIZE);
+        if (foreground == 0 ? value < 128 : value >= 128)
+        {
+          glyph[p >> 3] |= 0x80 >> (p & 7);
+        }
+      }
+      add(entry.letter, glyph, 0);
+    }
+  }
+
+  /**
+   * @return boolean True if a letter is a real label, not UNLABELED or empty
+   */
+
+  protected static boolean isLabel(String letter) {
+    return letter.trim().length() > 0 && !letter.equals(Puzzle_Expert.UNLABELED);
+  }
+
+  /**
+   * Pack a glyph into longs, the first pixel in the highest bit of the first long.
+   *
+   * @param Array glyph The packed black and white glyph, see GlyphExtractor.packBw()
+   * @param int offset Position of the first byte in the array
+   * @param Array packed Receives the LONGS longs
+   */
+
+  public static void pack(byte[] glyph, int offset, long[] packed) {
+    Arrays.fill(packed, 0);
+    for (int k = 0; k < GlyphDatasetWriter.BW_SIZE; k++)
+    {
+      packed[k >> 3] |= (glyph[offset + k] & 0xffL) << (56 - 8 * (k & 7));
+    }
+  }
+
+  /**
+   * Add a glyph.
+   *
+   * @param String letter The letter
+   * @param Array glyph The packed black and white glyph, see GlyphExtractor.packBw()
+   * @param int offset Position of the first byte in the array
+   * @return int The number of the glyph in the store
+   */
+
+  public int add(String letter, byte[] glyph, int offset) {
+    long[] packed = new long[LONGS];
+    pack(glyph, offset, packed);
+    return add(letter, packed);
+  }
+
+  /**
+   * Add a glyph that is already packed into longs.
+   *
+   * @param String letter The letter
+   * @param Array packed The LONGS longs of the glyph, see pack()
+   * @return int The number of the glyph in the store
+   */
+
+  public int add(String letter, long[] packed) {
+    Integer label = labelNumbers.get(letter);
+    if (label == null)
+    {
+      label = labelNames.size();
+      labelNames.add(letter);
+      labelNumbers.put(letter, label);
+    }
+    if (size == bits.capacity() / BYTES)
+    {
+      grow();
+    }
+    for (int j = 0; j < LONGS; j++)
+    {
+      bits.putLong(size * BYTES + 8 * j, packed[j]);
+    }
+    labels.putInt(size * 4, label);
+    return size++;
+  }
+
+  /**
+   * Make room for twice as many glyphs.
+   */
+
+  protected void grow() {
+    if (size == MAX_SIZE)
+    {
+      throw new IllegalStateException("The glyph store is full (" + MAX_SIZE + " glyphs)");
+    }
+    int capacity = (int) Math.min(2L * size, MAX_SIZE);
+    ByteBuffer newBits = ByteBuffer.allocateDirect(capacity * BYTES).order(ByteOrder.nativeOrder());
+    ByteBuffer newLabels = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder());
+    bits.clear();
+    bits.limit(size * BYTES);
+    newBits.put(bits);
+    labels.clear();
+    labels.limit(size * 4);
+    newLabels.put(labels);
+    newBits.clear();
+    newLabels.clear();
+    bits = newBits;
+    labels = newLabels;
+  }
+
+  /**
+   * Remove the glyphs that are the same as one added before them, see findDuplicates(). The glyphs that are left keep
+   * their order.
+   *
+   * @return int The number of glyphs removed
+   */
+
+  public int removeDuplicates() {
+    int[] first = findDuplicates();
+    int n = 0;
+    for (int i = 0; i < size; i++)
+    {
+      if (first[i] != i)
+      {
+        continue;
+      }
+      //move the glyph down over the removed ones
+      if (n != i)
+      {
+        for (int j = 0; j < LONGS; j++)
+        {
+          bits.putLong(n * BYTES + 8 * j, bits.getLong(i * BYTES + 8 * j));
+        }
+        labels.putInt(n * 4, labels.getInt(i * 4));
+      }
+      n++;
+    }
+    int removed = size - n;
+    size = n;
+    return removed;
+  }
+
+  /**
+   * @return int The number of glyphs
+   */
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return String The letter of a glyph
+   */
+
+  public String getLetter(int i) {
+    return labelNames.get(getLabel(i));
+  }
+
+  /**
+   * @return int The letter of a glyph as a number into getLabelNames()
+   */
+
+  public int getLabel(int i) {
+    if (i < 0 || i >= size)
+    {
+      throw new IndexOutOfBoundsException("Glyph " + i + " of " + size);
+    }
+    return labels.getInt(i * 4);
+  }
+
+  /**
+   * @return List The letters of the glyphs
+   */
+
+  public List<String> getLabelNames() {
+    return labelNames;
+  }
+
+  /**
+   * Get the number of pixels in which a glyph differs from another one.
+   *
+   * @param int i The glyph in the store
+   * @param Array packed The LONGS longs of the other glyph
+   * @return int The Hamming distance, between 0 and 144
+   */
+
+  public int distance(int i, long[] packed) {
+    int position = i * BYTES;
+    return Long.bitCount(bits.getLong(position) ^ packed[0]) + Long.bitCount(bits.getLong(position + 8) ^ packed[1])
+      + Long.bitCount(bits.getLong(position + 16) ^ packed[2]);
+  }
+
+  /**
+   * Find the k glyphs that differ from a glyph in the fewest pixels. Of glyphs at the same distance, the ones added
+   * first are found first.
+   *
+   * @param Array packed The LONGS longs of the glyph, see pack()
+   * @param int k The number of glyphs to find
+   * @param Array nearest Receives the numbers of the glyphs, the nearest first; must hold at least k items
+   * @param Array distances Receives their distances
+   * @return int The number of glyphs found, k unless the store has fewer; 0 if k is not positive
+   */
+
+  public int nearest(final long[] packed, final int k, int[] nearest, int[] distances) {
+    if (k <= 0)
+    {
+      return 0;
+    }
+    int parts = (int) Math.min(4L * pool.getParallelism(), size / PARALLEL_SIZE);
+    if (parts <= 1)
+    {
+      return search(packed, 0, size, k, nearest, distances, 0);
+    }
+
+    //each part finds its own k nearest, which are then merged in order, so that ties go the same way as in one part
+    ArrayList<Callable<int[][]>> tasks = new ArrayList<Callable<int[][]>>();
+    for (int part = 0; part < parts; part++)
+    {
+      final int from = (int) ((long) size * part / parts), to = (int) ((long) size * (part + 1) / parts);
+      tasks.add(new Callable<int[][]>() {
+        public int[][] call() {
+          int[] partNearest = new int[k], partDistances = new int[k];
+          int n = search(packed, from, to, k, partNearest, partDistances, 0);
+          return new int[][] {Arrays.copyOf(partNearest, n), Arrays.copyOf(partDistances, n)};
+        }
+      });
+    }
+    int n = 0;
+    try
+    {
+      for (Future<int[][]> future : pool.invokeAll(tasks))
+      {
+        int[][] found = future.get();
+        for (int j = 0; j < found[0].length; j++)
+        {
+          n = insert(found[0][j], found[1][j], k, nearest, distances, n);
+        }
+      }
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+    return n;
+  }
+
+  /**
+   * Find the k nearest glyphs from a range of the store.
+   */
+
+  protected int search(long[] packed, int from, int to, int k, int[] nearest, int[] distances, int n) {
+    long p0 = packed[0], p1 = packed[1], p2 = packed[2];
+    ByteBuffer view = bits.duplicate().order(ByteOrder.nativeOrder());
+    for (int i = from; i < to; i++)
+    {
+      int position = i * BYTES;
+      int distance = Long.bitCount(view.getLong(position) ^ p0) + Long.bitCount(view.getLong(position + 8) ^ p1)
+        + Long.bitCount(view.getLong(position + 16) ^ p2);
+      if (n < k || distance < distances[n - 1])
+      {
+        n = insert(i, distance, k, nearest, distances, n);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Insert a glyph into a list of the nearest ones found so far, after the ones at the same distance.
+   */
+
+  protected static int insert(int i, int distance, int k, int[] nearest, int[] distances, int n) {
+    if (n == k && distance >= distances[n - 1])
+    {
+      return n;
+    }
+    int j = n < k ? n++ : n - 1;
+    for (; j > 0 && distances[j - 1] > distance; j--)
+    {
+      distances[j] = distances[j - 1];
+      nearest[j] = nearest[j - 1];
+    }
+    distances[j] = distance;
+    nearest[j] = i;
+    return n;
+  }
+
+  /**
+   * Find a glyph with exactly the same pixels.
+   *
+   * @param Array packed The LONGS longs of the glyph, see pack()
+   * @return int The number of the first such glyph, or -1 if there is none
+   */
+
+  public int find(long[] packed) {
+    int[] nearest = new int[1], distances = new int[1];
+    return nearest(packed, 1, nearest, distances) == 1 && distances[0] == 0 ? nearest[0] : -1;
+  }
+
+  /**
+   * Find the glyphs that are the same as a glyph added before them, with the same letter and the same pixels.
+   *
+   * Uses a hash table of 2 ints per glyph on the heap, instead of comparing every glyph with every other one.
+   *
+   * @return Array For each glyph, the number of the first glyph that is the same; its own number if it is the first
+   */
+
+  public int[] findDuplicates() {
+    int[] first = new int[size];
+    int capacity = Integer.highestOneBit(Math.max(16, size) * 2 - 1) * 2;
+    int[] table = new int[capacity];
+    Arrays.fill(table, -1);
+    ByteBuffer view = bits.duplicate().order(ByteOrder.nativeOrder());
+    for (int i = 0; i < size; i++)
+    {
+      int position = i * BYTES;
+      long b0 = view.getLong(position), b1 = view.getLong(position + 8), b2 = view.getLong(position + 16);
+      int label = labels.getInt(i * 4);
+      long hash = (b0 * 0x9E3779B97F4A7C15L + b1) * 0x9E3779B97F4A7C15L + b2 + label;
+      int slot = (int) ((hash ^ (hash >>> 29)) * 0xBF58476D1CE4E5B9L >>> 33) & (capacity - 1);
+      first[i] = i;
+      //open addressing: look at the next slots until the same glyph or a free slot
+      while (table[slot] != -1)
+      {
+        int j = table[slot], other = j * BYTES;
+        if (view.getLong(other) == b0 && view.getLong(other + 8) == b1 && view.getLong(other + 16) == b2
+          && labels.getInt(j * 4) == label)
+        {
+          first[i] = j;
+          break;
+        }
+        slot = (slot + 1) & (capacity - 1);
+      }
+      if (first[i] == i)
+      {
+        table[slot] = i;
+      }
+    }
+    return first;
+  }
+}
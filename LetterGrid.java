@@ -0,0 +1,492 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+  /**
+   * The letter grid of a word-search puzzle, put together from the rectangles around the letters.
+   *
+   * The grid is found in three steps, each a sort followed by a sweep, so that it takes O(n log n) time for n rectangles:
+   *
+   * 1. The pitch and the rotation: for each rectangle, the nearest rectangle to its right and the nearest one below it
+   *    are looked up in horizontal bands about as high as the search radius, sorted by x, so each rectangle only looks
+   *    at the few rectangles in its neighbourhood. The median direction of these neighbours is the rotation of the
+   *    grid, and their median distances are the horizontal and vertical pitch.
+   * 2. The rows and columns: the centers of the rectangles are rotated back, sorted by y and split into rows where the
+   *    gap to the previous center is more than half the pitch; the same is done with x for the columns. Rows more than
+   *    MAX_GAP pitches away from the rest, such as a stray mark in the margin, are left out. The number of a row or
+   *    column is its distance from the first one in pitches, so rows or columns without any letters are kept.
+   * 3. The cells: each rectangle goes into the cell of its row and column; if two fall into the same cell, e.g. the
+   *    dot and the stem of an i, the larger one is kept. Sparse rows and columns at the edges, such as a title or a
+   *    word list, are trimmed.
+   */
+
+public class LetterGrid {
+
+  //rows or columns further apart than this many pitches are not part of the same grid
+  public static final double MAX_GAP = 3;
+
+  //the rotation of the grid in radians, clockwise, and the distance between the centers of neighbouring letters
+  protected double angle, pitchX, pitchY;
+
+  //the size of the grid, the rectangle in each cell row by row or -1, and the row and column of each rectangle or -1
+  protected int rows, columns;
+  protected int[] cells;
+  protected int[] rowOf, columnOf;
+
+  /**
+   * Find the grid of a set of rectangles.
+   *
+   * @param Array x x-positions of the top left-hand corners of the rectangles
+   * @param Array y y-positions of the top left-hand corners of the rectangles
+   * @param Array widths Widths of the rectangles
+   * @param Array heights Heights of the rectangles
+   * @param Array letters The rectangles that may be letters; the others are left out of the grid
+   * @param int n The number of rectangles in letters
+   * @return LetterGrid The grid; empty without any letters
+   */
+
+  public static LetterGrid build(float[] x, float[] y, float[] widths, float[] heights, int[] letters, int n) {
+    LetterGrid grid = new LetterGrid();
+    grid.rowOf = new int[x.length];
+    grid.columnOf = new int[x.length];
+    Arrays.fill(grid.rowOf, -1);
+    Arrays.fill(grid.columnOf, -1);
+    grid.cells = new int[0];
+    if (n == 0)
+    {
+      return grid;
+    }
+
+    double[] cx = new double[n], cy = new double[n], sizes = new double[n];
+    for (int k = 0; k < n; k++)
+    {
+      int i = letters[k];
+      cx[k] = x[i] + widths[i] / 2.0;
+      cy[k] = y[i] + heights[i] / 2.0;
+      sizes[k] = Math.max(widths[i], heights[i]);
+    }
+    grid.findPitchAndAngle(cx, cy, median(sizes, n));
+
+    //rotate the centers back, so the rows are horizontal
+    double cos = Math.cos(grid.angle), sin = Math.sin(grid.angle);
+    double[] u = new double[n], v = new double[n];
+    for (int k = 0; k < n; k++)
+    {
+      u[k] = cx[k] * cos + cy[k] * sin;
+      v[k] = -cx[k] * sin + cy[k] * cos;
+    }
+    int[] row = new int[n], column = new int[n];
+    grid.rows = split(v, grid.pitchY, row);
+    grid.columns = split(u, grid.pitchX, column);
+
+    //one rectangle per cell, the largest
+    grid.cells = new int[grid.rows * grid.columns];
+    Arrays.fill(grid.cells, -1);
+    for (int k = 0; k < n; k++)
+    {
+      if (row[k] == -1 || column[k] == -1)
+      {
+        continue;
+      }
+      int i = letters[k], cell = row[k] * grid.columns + column[k];
+      int other = grid.cells[cell];
+      if (other == -1 || widths[i] * heights[i] > widths[other] * heights[other])
+      {
+        grid.cells[cell] = i;
+      }
+    }
+    grid.trim();
+
+    for (int r = 0; r < grid.rows; r++)
+    {
+      for (int c = 0; c < grid.columns; c++)
+      {
+        int i = grid.cells[r * grid.columns + c];
+        if (i != -1)
+        {
+          grid.rowOf[i] = r;
+          grid.columnOf[i] = c;
+        }
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * Find the pitch and rotation from the nearest neighbours to the right of and below each center.
+   *
+   * @param Array cx x-positions of the centers
+   * @param Array cy y-positions of the centers
+   * @param double size The median size of a letter
+   */
+
+  protected void findPitchAndAngle(final double[] cx, double[] cy, double size) {
+    int n = cx.length;
+    //letters further apart than this are not neighbours
+    double radius = 4 * Math.max(size, 1);
+
+    //sorted by band, then by x
+    final int[] bands = new int[n];
+    Integer[] order = new Integer[n];
+    for (int k = 0; k < n; k++)
+    {
+      bands[k] = (int) Math.floor(cy[k] / radius);
+      order[k] = k;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return bands[a] != bands[b] ? Integer.compare(bands[a], bands[b]) : Double.compare(cx[a], cx[b]);
+      }
+    });
+    int[] sortedBands = new int[n];
+    double[] sortedX = new double[n];
+    for (int p = 0; p < n; p++)
+    {
+      sortedBands[p] = bands[order[p]];
+      sortedX[p] = cx[order[p]];
+    }
+
+    double[] angles = new double[2 * n], right = new double[n], below = new double[n];
+    int a = 0, nr = 0, nb = 0;
+    for (int k = 0; k < n; k++)
+    {
+      int nearestRight = -1, nearestBelow = -1;
+      double rightDistance = Double.MAX_VALUE, belowDistance = Double.MAX_VALUE;
+      //a neighbour within the radius is in the same band or the one above or below
+      for (int band = bands[k] - 1; band <= bands[k] + 1; band++)
+      {
+        for (int p = lowerBound(sortedBands, sortedX, band, cx[k] - radius); p < n && sortedBands[p] == band && sortedX[p] <= cx[k] + radius; p++)
+        {
+          int j = order[p];
+          double dx = cx[j] - cx[k], dy = cy[j] - cy[k], distance = dx * dx + dy * dy;
+          if (j == k || distance > radius * radius)
+          {
+            continue;
+          }
+          if (dx > 0 && Math.abs(dy) < dx && distance < rightDistance)
+          {
+            nearestRight = j;
+            rightDistance = distance;
+          } else if (dy > 0 && Math.abs(dx) < dy && distance < belowDistance)
+          {
+            nearestBelow = j;
+            belowDistance = distance;
+          }
+        }
+      }
+      if (nearestRight != -1)
+      {
+        angles[a++] = Math.atan2(cy[nearestRight] - cy[k], cx[nearestRight] - cx[k]);
+        right[nr++] = Math.sqrt(rightDistance);
+      }
+      if (nearestBelow != -1)
+      {
+        angles[a++] = Math.atan2(-(cx[nearestBelow] - cx[k]), cy[nearestBelow] - cy[k]);
+        below[nb++] = Math.sqrt(belowDistance);
+      }
+    }
+
+    //without neighbours in one direction, the letters are assumed to be as far apart as in the other one
+    angle = a > 0 ? median(angles, a) : 0;
+    pitchX = nr > 0 ? median(right, nr) : nb > 0 ? median(below, nb) : Math.max(size, 1);
+    pitchY = nb > 0 ? median(below, nb) : pitchX;
+  }
+
+  /**
+   * Find the first position of a band with an x-position of at least a value, by binary search.
+   */
+
+  protected static int lowerBound(int[] bands, double[] xs, int band, double x) {
+    int low = 0, high = bands.length;
+    while (low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if (bands[middle] < band || (bands[middle] == band && xs[middle] < x))
+      {
+        low = middle + 1;
+      } else
+      {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Split positions into rows (or columns) at the gaps of more than half the pitch, and number them by their distance
+   * from the first one. Of the runs of rows with no gap of more than MAX_GAP pitches, only the one with the most
+   * positions is numbered, so that a far-away row does not add a block of empty rows to the grid.
+   *
+   * @param Array positions The positions along the axis
+   * @param double pitch The expected distance between rows
+   * @param Array numbers Receives the number of the row of each position, or -1 if it is left out
+   * @return int The number of rows
+   */
+
+  protected static int split(final double[] positions, double pitch, int[] numbers) {
+    int n = positions.length;
+    Integer[] order = new Integer[n];
+    for (int k = 0; k < n; k++)
+    {
+      order[k] = k;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(positions[a], positions[b]);
+      }
+    });
+
+    //the mean position and the size of each group, and the group of each position in sorted order
+    double[] means = new double[n];
+    int[] sizes = new int[n];
+    int[] group = new int[n];
+    int groups = 0, start = 0;
+    double sum = 0;
+    for (int p = 0; p <= n; p++)
+    {
+      if (p == n || (p > 0 && positions[order[p]] - positions[order[p - 1]] > pitch / 2))
+      {
+        sizes[groups] = p - start;
+        means[groups++] = sum / (p - start);
+        start = p;
+        sum = 0;
+      }
+      if (p < n)
+      {
+        sum += positions[order[p]];
+        group[p] = groups;
+      }
+    }
+
+    //the pitch from the distances between neighbouring groups, which is more accurate than the one of the letters
+    double[] steps = new double[groups];
+    int s = 0;
+    for (int g = 1; g < groups; g++)
+    {
+      double step = means[g] - means[g - 1];
+      if (step > 0.5 * pitch && step < 1.5 * pitch)
+      {
+        steps[s++] = step;
+      }
+    }
+    if (s > 0)
+    {
+      pitch = median(steps, s);
+    }
+
+    //the run of groups without a gap of more than MAX_GAP pitches that has the most positions
+    int first = 0, last = 0, most = 0;
+    for (int g = 0, runStart = 0, runSize = 0; g < groups; g++)
+    {
+      if (g > 0 && means[g] - means[g - 1] > MAX_GAP * pitch)
+      {
+        runStart = g;
+        runSize = 0;
+      }
+      runSize += sizes[g];
+      if (runSize > most)
+      {
+        first = runStart;
+        last = g;
+        most = runSize;
+      }
+    }
+
+    int[] numberOfGroup = new int[groups];
+    Arrays.fill(numberOfGroup, -1);
+    for (int g = first; g <= last; g++)
+    {
+      //never the same number as the group before
+      numberOfGroup[g] = (int) Math.round((means[g] - means[first]) / pitch);
+      if (g > first && numberOfGroup[g] <= numberOfGroup[g - 1])
+      {
+        numberOfGroup[g] = numberOfGroup[g - 1] + 1;
+      }
+    }
+    for (int p = 0; p < n; p++)
+    {
+      numbers[order[p]] = numberOfGroup[group[p]];
+    }
+    return numberOfGroup[last] + 1;
+  }
+
+  /**
+   * Remove the rows and columns at the edges that have fewer than half as many letters as the fullest one.
+   *
+   * The letters of each row and column are counted once; when a row is removed, its letters are taken off the counts
+   * of the columns, and the other way round.
+   */
+
+  protected void trim() {
+    int[] rowCounts = new int[rows], columnCounts = new int[columns];
+    for (int r = 0; r < rows; r++)
+    {
+      for (int c = 0; c < columns; c++)
+      {
+        if (cells[r * columns + c] != -1)
+        {
+          rowCounts[r]++;
+          columnCounts[c]++;
+        }
+      }
+    }
+
+    int top = 0, bottom = rows - 1, left = 0, right = columns - 1;
+    boolean trimmed = true;
+    while (trimmed && top <= bottom && left <= right)
+    {
+      trimmed = false;
+      int most = max(rowCounts, top, bottom);
+      if (top < bottom && 2 * rowCounts[top] < most)
+      {
+        removeRow(top++, left, right, columnCounts);
+        trimmed = true;
+      }
+      if (top < bottom && 2 * rowCounts[bottom] < most)
+      {
+        removeRow(bottom--, left, right, columnCounts);
+        trimmed = true;
+      }
+      most = max(columnCounts, left, right);
+      if (left < right && 2 * columnCounts[left] < most)
+      {
+        removeColumn(left++, top, bottom, rowCounts);
+        trimmed = true;
+      }
+      if (left < right && 2 * columnCounts[right] < most)
+      {
+        removeColumn(right--, top, bottom, rowCounts);
+        trimmed = true;
+      }
+    }
+
+    int[] kept = new int[(bottom - top + 1) * (right - left + 1)];
+    for (int r = top; r <= bottom; r++)
+    {
+      System.arraycopy(cells, r * columns + left, kept, (r - top) * (right - left + 1), right - left + 1);
+    }
+    cells = kept;
+    rows = bottom - top + 1;
+    columns = right - left + 1;
+  }
+
+  /**
+   * Take the letters of a row that is trimmed off the counts of the columns that are left.
+   */
+
+  protected void removeRow(int r, int left, int right, int[] columnCounts) {
+    for (int c = left; c <= right; c++)
+    {
+      if (cells[r * columns + c] != -1)
+      {
+        columnCounts[c]--;
+      }
+    }
+  }
+
+  /**
+   * Take the letters of a column that is trimmed off the counts of the rows that are left.
+   */
+
+  protected void removeColumn(int c, int top, int bottom, int[] rowCounts) {
+    for (int r = top; r <= bottom; r++)
+    {
+      if (cells[r * columns + c] != -1)
+      {
+        rowCounts[r]--;
+      }
+    }
+  }
+
+  /**
+   * The largest of the values from first to last.
+   */
+
+  protected static int max(int[] values, int first, int last) {
+    int max = 0;
+    for (int k = first; k <= last; k++)
+    {
+      max = Math.max(max, values[k]);
+    }
+    return max;
+  }
+
+  /**
+   * The median of the first n values; reorders them.
+   */
+
+  protected static double median(double[] values, int n) {
+    Arrays.sort(values, 0, n);
+    return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return double The rotation of the grid in degrees, clockwise
+   */
+
+  public double getAngle() {
+    return Math.toDegrees(angle);
+  }
+
+  public double getPitchX() {
+    return pitchX;
+  }
+
+  public double getPitchY() {
+    return pitchY;
+  }
+
+  /**
+   * @return int The rectangle in a cell, or -1 if the cell is empty
+   */
+
+  public int getRectangle(int row, int column) {
+    return cells[row * columns + column];
+  }
+
+  /**
+   * @return int The row of a rectangle, or -1 if it is not in the grid
+   */
+
+  public int getRow(int i) {
+    return rowOf[i];
+  }
+
+  /**
+   * @return int The column of a rectangle, or -1 if it is not in the grid
+   */
+
+  public int getColumn(int i) {
+    return columnOf[i];
+  }
+
+  /**
+   * Write out the grid, one line per row: the letter of each cell, '?' for a rectangle without a letter and '.' for a
+   * cell without a rectangle.
+   *
+   * @param Array letters The letter of each rectangle, or null if it has none
+   * @return String The grid
+   */
+
+  public String getText(String[] letters) {
+    StringBuilder text = new StringBuilder((columns + 1) * rows);
+    for (int r = 0; r < rows; r++)
+    {
+      for (int c = 0; c < columns; c++)
+      {
+        int i = cells[r * columns + c];
+        String letter = i == -1 ? null : letters[i];
+        text.append(i == -1 ? '.' : letter == null || letter.length() == 0 || letter.equals(Puzzle_Expert.UNLABELED) ? '?' : letter.charAt(0));
+      }
+      text.append('\n');
+    }
+    return text.toString();
+  }
+}
@@ -12,12 +12,8 @@ public class LetterTextWindow extends TextWindow {
   //the "owner" class
 	Puzzle_Expert puzzleExpert;
 	
-  //holds the x- and y- coordinates of the rectangles of interest the user has clicked on
-	Integer[] x, y;
-  //holds the letters that the user has assigned to rectangles of interest
-	String[] letters;
-  //temporary arrays for parsing the user's results into the arrays above
-	String[] lines, elements;
+  //holds the x- and y- coordinates of the rectangles of interest the user has clicked on, and the letters the user has assigned to them
+	AnnotationTable annotations;
   
   /**
    * Constructor
@@ -30,7 +26,7 @@ public class LetterTextWindow extends TextWindow {
 
   /**
    * When the user closes the window, shows a dialog saying "images will be saved", and if the user clicks ok, parses the
-   * results into arrays and passes them back to the main class for processing into images.
+   * results and passes them back to the main class for processing into images.
    * 
    * @param boolean showDialog Whether a dialog should be shown or not, default true            
    */ 
@@ -60,7 +56,8 @@ public class LetterTextWindow extends TextWindow {
 			return;
 	    }
 
-	    puzzleExpert.saveLettersAsImages(x, y, letters, text);	    
+	    //the letters are saved in the background, so the window can close right away
+	    puzzleExpert.saveLettersInBackground(annotations, text);
 
 		//close
 		dispose();
@@ -69,7 +66,9 @@ public class LetterTextWindow extends TextWindow {
 	}
 	
   /**
-   * Parses the results in the results window into arrays for processing.
+   * Parses the results in the results window for processing.
+   * 
+   * Lines that cannot be read are skipped, and listed in the log window.
    * 
    * @param string text The full text contained in the results window
    * @return boolean True if information was successfully obtained from the results window, otherwise false               
@@ -77,35 +76,15 @@ public class LetterTextWindow extends TextWindow {
   
 	protected boolean getResultsFromText(String text)
 	{
-      //split the text into its individual lines
-      lines = text.split("\n");
-        
-      //if the only line is the header, we can't retrive any results
-      if (lines.length < 2)
-      {
-        return false;
-      }
-        
-      //ignore the first line (the headers)
-      x = new Integer[lines.length - 1];
-      y = new Integer[lines.length - 1];
-      letters = new String[lines.length - 1];
-
-      for(int i = 0; i < lines.length; i++)
+      annotations = AnnotationTable.parse(text);
+      
+      for (String error : annotations.getErrors())
       {
-        if (i > 0)
-        {
-       	 	elements = lines[i].split("\t");
-          //the first element in the line is the x-position (top left) of the rectangle of interest
-       	 	x[i - 1] = Integer.parseInt(elements[0]);
-          //the second element in the line is the y-position (top left) of the rectangle of interest
-       	 	y[i - 1] = Integer.parseInt(elements[1]);
-          //the third element in the line is letter the user has assigned to the rectangle of interest
-       	 	letters[i - 1] = elements[2];
-        }
+        IJ.log("Key mapping table, skipped " + error);
       }
         
-      return true;
+      //if there are no letters, we can't retrieve any results
+      return annotations.size() > 0;
 	}
 	
-} 
\ No newline at end of file
+}
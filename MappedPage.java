@@ -0,0 +1,464 @@
+import ij.process.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+  /**
+   * A page read straight from its file through memory mapping, instead of being decoded into an ImagePlus.
+   *
+   * Only files whose pixels are stored as they are can be mapped: uncompressed 8-bit grayscale TIFF files with a single
+   * page and stripped (not tiled) pixels, and binary PGM files ("P5") with a maximum value of 255. For those, a row of
+   * the page is just a range of bytes in the file, and the pages the operating system keeps for the mapping are the only
+   * copy of the pixels; the heap only holds the position of each row. open() returns null for every other file, which
+   * is then opened the usual way.
+   *
+   * The rows can be read as they are, or as rows of the page rotated to the right, a band at a time, so the clusters can
+   * be found without ever holding the whole page, see PuzzleEngine.process(MappedPage, ...). The file is mapped in
+   * windows of at most WINDOW bytes, so files larger than 2 GB can be mapped as well.
+   *
+   * An object of this class is not thread safe; use one per thread.
+   */
+
+public class MappedPage {
+
+  //the largest part of the file that is mapped as one buffer
+  public static final int WINDOW = 1 << 30;
+
+  //TIFF tags and field types that are read
+  static final int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258, COMPRESSION = 259, PHOTOMETRIC = 262,
+    STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277, ROWS_PER_STRIP = 278, TILE_WIDTH = 322;
+  static final int SHORT = 3, LONG = 4;
+
+  protected File file;
+  protected int width, height;
+
+  //whether 0 is white, as with a TIFF file with PhotometricInterpretation WhiteIsZero; ImageJ shows such a page
+  //with an inverting lookup table
+  protected boolean invertedLut;
+
+  //position of each row in the file
+  protected long[] rowOffsets;
+
+  //the mapped windows; window k starts at k * WINDOW and reaches one row further, so that every row fits in one window
+  protected MappedByteBuffer[] windows;
+
+  //one row, for reading the page a band at a time
+  protected byte[] row;
+
+  /**
+   * Constructor: use open().
+   */
+
+  protected MappedPage(File file, int width, int height, boolean invertedLut, long[] rowOffsets) {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.invertedLut = invertedLut;
+    this.rowOffsets = rowOffsets;
+    row = new byte[width];
+  }
+
+  /**
+   * Map a page.
+   *
+   * @param File file The TIFF or PGM file
+   * @return MappedPage The page, or null if the file is not an uncompressed 8-bit grayscale TIFF or PGM file
+   * @throws IOException If the file cannot be read
+   */
+
+  public static MappedPage open(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel channel = in.getChannel();
+      MappedPage page = readTiff(file, channel);
+      if (page == null)
+      {
+        page = readPgm(file, channel);
+      }
+      if (page != null)
+      {
+        page.map(channel);
+      }
+      return page;
+    } finally
+    {
+      //the mapping stays valid after the file is closed
+      in.close();
+    }
+  }
+
+  /**
+   * Read the header of a TIFF file.
+   *
+   * @return MappedPage The page, or null if the file is not a TIFF file that can be mapped
+   */
+
+  protected static MappedPage readTiff(File file, FileChannel channel) throws IOException {
+    long size = channel.size();
+    ByteBuffer header = read(channel, 0, 8);
+    if (header.remaining() < 8)
+    {
+      return null;
+    }
+    int order = header.getShort(0);
+    if (order == 0x4949)
+    {
+      header.order(ByteOrder.LITTLE_ENDIAN);
+    } else if (order != 0x4d4d)
+    {
+      return null;
+    }
+    //no BigTIFF
+    if (header.getShort(2) != 42)
+    {
+      return null;
+    }
+
+    long ifd = header.getInt(4) & 0xffffffffL;
+    ByteBuffer count = read(channel, ifd, 2).order(header.order());
+    if (count.remaining() < 2)
+    {
+      return null;
+    }
+    int entries = count.getShort(0) & 0xffff;
+    ByteBuffer directory = read(channel, ifd + 2, entries * 12 + 4).order(header.order());
+    if (directory.remaining() < entries * 12 + 4)
+    {
+      return null;
+    }
+
+    int width = 0, height = 0, bits = 1, compression = 1, photometric = -1, samples = 1;
+    long rowsPerStrip = Long.MAX_VALUE;
+    long[] stripOffsets = null;
+    for (int e = 0; e < entries; e++)
+    {
+      int p = e * 12;
+      int tag = directory.getShort(p) & 0xffff;
+      int type = directory.getShort(p + 2) & 0xffff;
+      int n = directory.getInt(p + 4);
+      long value = type == SHORT ? directory.getShort(p + 8) & 0xffff : directory.getInt(p + 8) & 0xffffffffL;
+      switch (tag)
+      {
+        case IMAGE_WIDTH: width = (int) value; break;
+        case IMAGE_LENGTH: height = (int) value; break;
+        case BITS_PER_SAMPLE: bits = (int) value; break;
+        case COMPRESSION: compression = (int) value; break;
+        case PHOTOMETRIC: photometric = (int) value; break;
+        case SAMPLES_PER_PIXEL: samples = (int) value; break;
+        case ROWS_PER_STRIP: rowsPerStrip = value; break;
+        case STRIP_OFFSETS: stripOffsets = getValues(channel, directory, p, type, n); break;
+        case TILE_WIDTH: return null;
+        default: break;
+      }
+    }
+    //a further page makes the file a stack, which is opened as one
+    long next = directory.getInt(entries * 12) & 0xffffffffL;
+    if (width <= 0 || height <= 0 || bits != 8 || samples != 1 || compression != 1 || photometric > 1 || stripOffsets == null || next != 0)
+    {
+      return null;
+    }
+    //a broken RowsPerStrip of 0 is left to ImageJ as well
+    if (rowsPerStrip <= 0)
+    {
+      return null;
+    }
+    //ImageJ flips a page whose last strip comes before its first one, so such pages are left to ImageJ
+    if (stripOffsets[stripOffsets.length - 1] < stripOffsets[0])
+    {
+      return null;
+    }
+
+    long[] rowOffsets = new long[height];
+    for (int y = 0; y < height; y++)
+    {
+      int strip = (int) Math.min(y / rowsPerStrip, stripOffsets.length - 1);
+      rowOffsets[y] = stripOffsets[strip] + (y - strip * rowsPerStrip) * width;
+      if (rowOffsets[y] < 0 || rowOffsets[y] + width > size)
+      {
+        return null;
+      }
+    }
+    return new MappedPage(file, width, height, photometric == 0, rowOffsets);
+  }
+
+  /**
+   * Read the values of a TIFF field, from the entry itself or from where it points to.
+   */
+
+  private static long[] getValues(FileChannel channel, ByteBuffer directory, int p, int type, int n) throws IOException {
+    if (type != SHORT && type != LONG || n <= 0 || n > (1 << 24))
+    {
+      return null;
+    }
+    int bytes = type == SHORT ? 2 : 4;
+    ByteBuffer data = directory;
+    int start = p + 8;
+    if (n * bytes > 4)
+    {
+      data = read(channel, directory.getInt(p + 8) & 0xffffffffL, n * bytes).order(directory.order());
+      if (data.remaining() < n * bytes)
+      {
+        return null;
+      }
+      start = 0;
+    }
+    long[] values = new long[n];
+    for (int k = 0; k < n; k++)
+    {
+      values[k] = type == SHORT ? data.getShort(start + k * 2) & 0xffff : data.getInt(start + k * 4) & 0xffffffffL;
+    }
+    return values;
+  }
+
+  /**
+   * Read the header of a binary PGM file: "P5", the width, the height and the maximum value, separated by white space,
+   * with comments from "#" to the end of the line, and then a single white space character.
+   *
+   * @return MappedPage The page, or null if the file is not a PGM file that can be mapped
+   */
+
+  protected static MappedPage readPgm(File file, FileChannel channel) throws IOException {
+    ByteBuffer header = read(channel, 0, 1024);
+    if (header.remaining() < 3 || header.get(0) != 'P' || header.get(1) != '5')
+    {
+      return null;
+    }
+    int[] values = new int[3];
+    int p = 2;
+    for (int v = 0; v < 3; v++)
+    {
+      //skip white space and comments
+      while (p < header.remaining() && (Character.isWhitespace(header.get(p)) || header.get(p) == '#'))
+      {
+        if (header.get(p) == '#')
+        {
+          while (p < header.remaining() && header.get(p) != '\n')
+          {
+            p++;
+          }
+        }
+        p++;
+      }
+      int start = p;
+      while (p < header.remaining() && header.get(p) >= '0' && header.get(p) <= '9' && p - start < 9)
+      {
+        values[v] = values[v] * 10 + header.get(p++) - '0';
+      }
+      if (p == start)
+      {
+        return null;
+      }
+    }
+    //after the maximum value comes one white space character; a different maximum value is scaled when ImageJ reads it
+    if (p >= header.remaining() || !Character.isWhitespace(header.get(p)) || values[2] != 255)
+    {
+      return null;
+    }
+    long offset = p + 1;
+    int width = values[0], height = values[1];
+    if (width <= 0 || height <= 0 || offset + (long) width * height > channel.size())
+    {
+      return null;
+    }
+    long[] rowOffsets = new long[height];
+    for (int y = 0; y < height; y++)
+    {
+      rowOffsets[y] = offset + (long) y * width;
+    }
+    return new MappedPage(file, width, height, false, rowOffsets);
+  }
+
+  /**
+   * Read part of a file into a new buffer; the buffer is shorter if the file ends first.
+   */
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining() && position + buffer.position() < channel.size())
+    {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+      {
+        break;
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Map the windows the rows are in.
+   */
+
+  protected void map(FileChannel channel) throws IOException {
+    long size = channel.size();
+    windows = new MappedByteBuffer[(int) ((size + WINDOW - 1) / WINDOW)];
+    for (int k = 0; k < windows.length; k++)
+    {
+      long start = (long) k * WINDOW;
+      windows[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, (long) WINDOW + width));
+    }
+  }
+
+  /**
+   * Read part of a row of the page as it is stored.
+   *
+   * @param int y The row
+   * @param int x The first pixel
+   * @param int n The number of pixels
+   * @param Array buffer Receives the pixels
+   * @param int offset Position of the first pixel in the buffer
+   */
+
+  public void getRow(int y, int x, int n, byte[] buffer, int offset) {
+    long position = rowOffsets[y] + x;
+    MappedByteBuffer window = windows[(int) (position / WINDOW)];
+    window.position((int) (position % WINDOW));
+    window.get(buffer, offset, n);
+  }
+
+  /**
+   * Read whole rows of the page as it is stored.
+   *
+   * @param int first The first row
+   * @param int n The number of rows
+   * @param Array buffer Receives the rows, one after the other
+   */
+
+  public void getRows(int first, int n, byte[] buffer) {
+    for (int r = 0; r < n; r++)
+    {
+      getRow(first + r, 0, width, buffer, r * width);
+    }
+  }
+
+  /**
+   * Read rows of the page rotated to the right, the same as ImageProcessor.rotateRight(): row r of the rotated page is
+   * column r of the page, read from the bottom up. The whole file is read once for every band, but only n bytes of
+   * each row, so with a band of a few dozen rows every page of the mapping is still read from memory only once.
+   *
+   * @param int first The first row of the rotated page
+   * @param int n The number of rows
+   * @param Array rows Receives the rows, each getHeight() pixels long
+   */
+
+  public void getRotatedRows(int first, int n, byte[] rows) {
+    for (int y = 0; y < height; y++)
+    {
+      getRow(y, first, n, row, 0);
+      int column = height - 1 - y;
+      for (int r = 0; r < n; r++)
+      {
+        rows[r * height + column] = row[r];
+      }
+    }
+  }
+
+  /**
+   * Read a rectangle of the page rotated to the right.
+   *
+   * @param int left x-position of the top left-hand corner in the rotated page
+   * @param int top y-position of the top left-hand corner in the rotated page
+   * @param int w Width of the rectangle; it must lie within the rotated page
+   * @param int h Height of the rectangle
+   * @param Array region Receives the pixels, row by row
+   */
+
+  public void getRotatedRegion(int left, int top, int w, int h, byte[] region) {
+    for (int i = 0; i < w; i++)
+    {
+      //column left + i of the rotated page is a row of the page, from top on
+      getRow(height - 1 - (left + i), top, h, row, 0);
+      for (int j = 0; j < h; j++)
+      {
+        region[j * w + i] = row[j];
+      }
+    }
+  }
+
+  /**
+   * Count the pixels of each gray level, a band of rows at a time.
+   *
+   * @param ThresholdKernel kernel The kernel that counts them
+   * @return Array The 256-bin histogram
+   */
+
+  public int[] getHistogram(ThresholdKernel kernel) {
+    int[] histogram = new int[256];
+    int band = Math.max(1, (1 << 20) / width);
+    byte[] rows = new byte[Math.min(band, height) * width];
+    for (int first = 0; first < height; first += band)
+    {
+      int n = Math.min(band, height - first);
+      getRows(first, n, rows);
+      kernel.addHistogram(rows, 0, n * width, histogram);
+    }
+    return histogram;
+  }
+
+  /**
+   * Read the whole page onto the heap, for the steps that need all of it at once.
+   *
+   * @return ByteProcessor The page as it is stored, with an inverting lookup table if 0 is white
+   */
+
+  public ByteProcessor getProcessor() {
+    byte[] pixels = new byte[width * height];
+    getRows(0, height, pixels);
+    ByteProcessor ip = new ByteProcessor(width, height, pixels);
+    if (invertedLut)
+    {
+      ip.invertLut();
+    }
+    return ip;
+  }
+
+  /**
+   * @return File The file
+   */
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return String The file name without its extension and without spaces, like ImagePlus.getShortTitle()
+   */
+
+  public String getShortTitle() {
+    String title = file.getName().trim();
+    int index = title.lastIndexOf('.');
+    if (index > 0)
+    {
+      return title.substring(0, index).replaceAll(" ", "");
+    }
+    index = title.indexOf(' ');
+    return index > -1 ? title.substring(0, index) : title;
+  }
+
+  /**
+   * @return int Width of the page as it is stored
+   */
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return int Height of the page as it is stored
+   */
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return boolean Whether 0 is white
+   */
+
+  public boolean isInvertedLut() {
+    return invertedLut;
+  }
+}
@@ -0,0 +1,206 @@
+import ij.process.AutoThresholder;
+
+  /**
+   * Turns a grayscale page into its black and white mask, with one of three methods:
+   *
+   *   ISODATA  one level for the whole page, by the IsoData method; the same as setAutoThreshold("IsoData", ...)
+   *   OTSU     one level for the whole page, by Otsu's method; the same as setAutoThreshold("Otsu", ...)
+   *   SAUVOLA  a level for every pixel from the mean and deviation of the window around it, for unevenly lit pages
+   *            such as photos, where one level for the whole page merges the letters in the dark parts into blobs
+   *
+   * The inner loops run in a ThresholdKernel, which uses SIMD instructions where the JVM allows it.
+   */
+
+public class PageThreshold {
+
+  public static final int ISODATA = 0, OTSU = 1, SAUVOLA = 2;
+  public static final String[] METHOD_NAMES = {"isodata", "otsu", "sauvola"};
+
+  //the selected method
+  protected int method = ISODATA;
+
+  //Sauvola parameters: half the window size, k and R
+  protected int radius = 20;
+  protected double k = 0.34, range = 128.0;
+
+  protected ThresholdKernel kernel = ThresholdKernel.getInstance();
+
+  /**
+   * Constructor.
+   *
+   * @param int method ISODATA, OTSU or SAUVOLA
+   */
+
+  public PageThreshold(int method) {
+    this.method = method;
+  }
+
+  /**
+   * Get a method by its name.
+   *
+   * @param String name "isodata", "otsu" or "sauvola", in any case
+   * @return int The method, or -1 if the name is unknown
+   */
+
+  public static int getMethod(String name) {
+    for (int m = 0; m < METHOD_NAMES.length; m++)
+    {
+      if (METHOD_NAMES[m].equalsIgnoreCase(name))
+      {
+        return m;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Set the Sauvola parameters.
+   *
+   * @param int radius Half the width and height of the window; should be larger than the letters
+   * @param double k How much the deviation lowers the threshold, usually 0.2 to 0.5
+   * @param double range The largest deviation expected, 128 for 8-bit images
+   */
+
+  public void setSauvolaParameters(int radius, double k, double range) {
+    this.radius = radius;
+    this.k = k;
+    this.range = range;
+  }
+
+  /**
+   * @return int The selected method
+   */
+
+  public int getMethod() {
+    return method;
+  }
+
+  /**
+   * @return boolean True if the method uses one level for the whole page
+   */
+
+  public boolean isGlobal() {
+    return method != SAUVOLA;
+  }
+
+  /**
+   * Describe the method and its parameters, for the cluster cache key and for reports.
+   *
+   * @return String The description
+   */
+
+  public String getDescription() {
+    return method == SAUVOLA ? "sauvola radius=" + radius + " k=" + k + " R=" + range : METHOD_NAMES[method];
+  }
+
+  /**
+   * @return ThresholdKernel The kernel running the inner loops
+   */
+
+  public ThresholdKernel getKernel() {
+    return kernel;
+  }
+
+  /**
+   * Count the pixels of each gray level.
+   *
+   * @param Array pixels The pixels of the page
+   * @return Array The 256-bin histogram
+   */
+
+  public int[] getHistogram(byte[] pixels) {
+    int[] histogram = new int[256];
+    kernel.addHistogram(pixels, 0, pixels.length, histogram);
+    return histogram;
+  }
+
+  /**
+   * Get the threshold levels of a global method, the way ImageProcessor.setAutoThreshold() sets them without a dark
+   * background.
+   *
+   * @param Array histogram The 256-bin histogram of the page
+   * @param boolean invertedLut Whether the page has an inverting lookup table
+   * @return Array The lower and upper threshold levels
+   */
+
+  public int[] getLevels(int[] histogram, boolean invertedLut) {
+    AutoThresholder.Method autoMethod = method == OTSU ? AutoThresholder.Method.Otsu : AutoThresholder.Method.IsoData;
+    int threshold = new AutoThresholder().getThreshold(autoMethod, histogram);
+    //without a dark background, the objects are the dark pixels, unless the lookup table is inverted
+    if (invertedLut)
+    {
+      return new int[] {Math.min(255, threshold + 1), 255};
+    }
+    return new int[] {0, threshold};
+  }
+
+  /**
+   * Create the mask of the pixels within two levels.
+   *
+   * @param Array pixels The pixels of the page
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @return BinaryMask The mask
+   */
+
+  public BinaryMask threshold(byte[] pixels, int width, int height, int lower, int upper) {
+    return BinaryMask.threshold(pixels, width, height, lower, upper, kernel);
+  }
+
+  /**
+   * Create the mask with the Sauvola method.
+   *
+   * The column sums over the window rows are kept up to date as the window moves down, and their prefix sums give the
+   * sum over any window in a row with one subtraction.
+   *
+   * @param Array pixels The pixels of the page
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param boolean invertedLut Whether the page has an inverting lookup table, i.e. the letters are the light pixels
+   * @return BinaryMask The mask
+   */
+
+  public BinaryMask sauvola(byte[] pixels, int width, int height, boolean invertedLut) {
+    BinaryMask mask = new BinaryMask(width, height);
+    long[] columnSums = new long[width], columnSquares = new long[width];
+    double[] sums = new double[width + 1], squares = new double[width + 1];
+
+    //the window of row 0 covers rows 0 to radius
+    int top = 0, bottom = -1;
+    for (int y = 0; y < height; y++)
+    {
+      int newTop = Math.max(0, y - radius), newBottom = Math.min(height - 1, y + radius);
+      for (; bottom < newBottom; bottom++)
+      {
+        addRow(pixels, (bottom + 1) * width, width, columnSums, columnSquares, 1);
+      }
+      for (; top < newTop; top++)
+      {
+        addRow(pixels, top * width, width, columnSums, columnSquares, -1);
+      }
+      for (int x = 0; x < width; x++)
+      {
+        sums[x + 1] = sums[x] + columnSums[x];
+        squares[x + 1] = squares[x] + columnSquares[x];
+      }
+      kernel.sauvola(pixels, y * width, width, sums, squares, bottom - top + 1, radius, k, range, !invertedLut,
+        mask.bits, y * mask.stride);
+    }
+    return mask;
+  }
+
+  /**
+   * Add a row to the column sums, or remove it.
+   */
+
+  private static void addRow(byte[] pixels, int offset, int width, long[] columnSums, long[] columnSquares, int sign) {
+    for (int x = 0; x < width; x++)
+    {
+      int value = pixels[offset + x] & 0xff;
+      columnSums[x] += sign * value;
+      columnSquares[x] += sign * value * value;
+    }
+  }
+}
@@ -0,0 +1,366 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+
+  /**
+   * Where the time goes when a page is processed: wall time, CPU time and allocated bytes of each stage of the
+   * pipeline, and the number of clusters, letters and files.
+   *
+   * Each page records its stages in its own Run object, which needs no locking. When the page is done, the run is added
+   * to the totals of all pages, which are shared by all threads and can be watched through JMX, and the per-page wall
+   * time of each stage goes into a histogram. A run can also be written as a summary file next to the letters.
+   *
+   * CPU time and allocated bytes are measured per thread through the ThreadMXBean; on JVMs that do not support it they
+   * are reported as -1. They are those of the thread that started and stopped the stage only: the work a stage hands to
+   * other threads, such as the stripes of the tiled engine and the classify tasks on the ForkJoinPool, or the PNG
+   * encoders of the AsyncGlyphWriter, is not in them, so for those stages only the wall time shows all of the work. That
+   * is why they are called caller CPU time and caller allocated bytes, in the summary and through JMX.
+   */
+
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+  //the stages of the pipeline
+  public static final int SETUP = 0, ROTATE = 1, THRESHOLD = 2, CLUSTERS = 3, RECTANGLES = 4, EXTRACT = 5, IO = 6, CLASSIFY = 7, GRID = 8;
+  public static final String[] STAGE_NAMES = {"setup", "rotate", "threshold", "clusters", "rectangles", "extract", "io", "classify", "grid"};
+  public static final int STAGES = STAGE_NAMES.length;
+
+  //the counters
+  public static final int PARTICLES = 0, GLYPHS = 1, FILES_WRITTEN = 2, CACHE_HITS = 3;
+  public static final String[] COUNTER_NAMES = {"particles", "glyphs", "files written", "cache hits"};
+  public static final int COUNTERS = COUNTER_NAMES.length;
+
+  //number of buckets of the wall time histograms
+  public static final int BUCKETS = 40;
+
+  //the JMX name
+  public static final String OBJECT_NAME = "PuzzleExpert:type=PipelineMetrics";
+
+  protected static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  protected static final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+  protected static final com.sun.management.ThreadMXBean allocations = getAllocationBean();
+
+  private static PipelineMetrics instance;
+
+  //totals of all runs: per stage the number of times it ran, wall and CPU nanoseconds and allocated bytes
+  protected AtomicLongArray stageCounts = new AtomicLongArray(STAGES), wallNanos = new AtomicLongArray(STAGES),
+    cpuNanos = new AtomicLongArray(STAGES), allocatedBytes = new AtomicLongArray(STAGES);
+  protected AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+  protected AtomicLongArray histograms = new AtomicLongArray(STAGES * BUCKETS);
+  protected java.util.concurrent.atomic.AtomicLong runs = new java.util.concurrent.atomic.AtomicLong();
+
+  /**
+   * Get the totals of this JVM, registering them with JMX the first time.
+   *
+   * @return PipelineMetrics The totals
+   */
+
+  public static synchronized PipelineMetrics getInstance() {
+    if (instance == null)
+    {
+      instance = new PipelineMetrics();
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+      } catch (Exception e)
+      {
+        //e.g. registered already by another copy of the class loaded by another class loader; the counters still work
+        System.err.println("Error: could not register " + OBJECT_NAME + ": " + e);
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * The allocated bytes per thread are only available through the com.sun.management version of the ThreadMXBean.
+   */
+
+  private static com.sun.management.ThreadMXBean getAllocationBean() {
+    try
+    {
+      if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+      {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+      }
+    } catch (Throwable e)
+    {
+      //not a HotSpot JVM, or not allowed
+    }
+    return null;
+  }
+
+  /**
+   * Add a finished run to the totals.
+   *
+   * @param Run run The run
+   */
+
+  public void add(Run run) {
+    runs.incrementAndGet();
+    for (int stage = 0; stage < STAGES; stage++)
+    {
+      if (run.counts[stage] == 0)
+      {
+        continue;
+      }
+      stageCounts.addAndGet(stage, run.counts[stage]);
+      wallNanos.addAndGet(stage, run.wall[stage]);
+      cpuNanos.addAndGet(stage, run.cpu[stage]);
+      allocatedBytes.addAndGet(stage, run.allocated[stage]);
+      histograms.incrementAndGet(stage * BUCKETS + bucket(run.wall[stage]));
+    }
+    for (int k = 0; k < COUNTERS; k++)
+    {
+      counters.addAndGet(k, run.counters[k]);
+    }
+  }
+
+  /**
+   * Get the histogram bucket of a time: 0 below 1 microsecond, then one bucket per power of 2 microseconds.
+   */
+
+  static int bucket(long nanos) {
+    long micros = nanos / 1000;
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  public long getRuns() {
+    return runs.get();
+  }
+
+  public long getParticles() {
+    return counters.get(PARTICLES);
+  }
+
+  public long getGlyphs() {
+    return counters.get(GLYPHS);
+  }
+
+  public long getFilesWritten() {
+    return counters.get(FILES_WRITTEN);
+  }
+
+  public long getCacheHits() {
+    return counters.get(CACHE_HITS);
+  }
+
+  public String[] getStageNames() {
+    return STAGE_NAMES.clone();
+  }
+
+  public long[] getStageCounts() {
+    return toArray(stageCounts);
+  }
+
+  public double[] getWallMillis() {
+    return toMillis(wallNanos, true);
+  }
+
+  public double[] getCallerCpuMillis() {
+    return toMillis(cpuNanos, cpuTime);
+  }
+
+  public long[] getCallerAllocatedBytes() {
+    long[] bytes = toArray(allocatedBytes);
+    if (allocations == null)
+    {
+      java.util.Arrays.fill(bytes, -1);
+    }
+    return bytes;
+  }
+
+  public long[] getWallHistogram(String stage) {
+    long[] histogram = new long[BUCKETS];
+    for (int s = 0; s < STAGES; s++)
+    {
+      if (STAGE_NAMES[s].equals(stage))
+      {
+        for (int k = 0; k < BUCKETS; k++)
+        {
+          histogram[k] = histograms.get(s * BUCKETS + k);
+        }
+      }
+    }
+    return histogram;
+  }
+
+  public String getSummary() {
+    Run totals = new Run();
+    for (int stage = 0; stage < STAGES; stage++)
+    {
+      totals.counts[stage] = stageCounts.get(stage);
+      totals.wall[stage] = wallNanos.get(stage);
+      totals.cpu[stage] = cpuNanos.get(stage);
+      totals.allocated[stage] = allocatedBytes.get(stage);
+    }
+    for (int k = 0; k < COUNTERS; k++)
+    {
+      totals.counters[k] = counters.get(k);
+    }
+    return "runs\t" + runs.get() + "\n" + totals.getSummary();
+  }
+
+  public void reset() {
+    runs.set(0);
+    for (int k = 0; k < STAGES; k++)
+    {
+      stageCounts.set(k, 0);
+      wallNanos.set(k, 0);
+      cpuNanos.set(k, 0);
+      allocatedBytes.set(k, 0);
+    }
+    for (int k = 0; k < COUNTERS; k++)
+    {
+      counters.set(k, 0);
+    }
+    for (int k = 0; k < STAGES * BUCKETS; k++)
+    {
+      histograms.set(k, 0);
+    }
+  }
+
+  private static long[] toArray(AtomicLongArray values) {
+    long[] array = new long[values.length()];
+    for (int k = 0; k < array.length; k++)
+    {
+      array[k] = values.get(k);
+    }
+    return array;
+  }
+
+  private static double[] toMillis(AtomicLongArray nanos, boolean supported) {
+    double[] millis = new double[nanos.length()];
+    for (int k = 0; k < millis.length; k++)
+    {
+      millis[k] = supported ? nanos.get(k) / 1e6 : -1;
+    }
+    return millis;
+  }
+
+  /**
+   * The stages and counters of one page. Not thread safe: a stage has to be started and stopped on the same thread,
+   * because the CPU time and the allocated bytes are those of the current thread, and of no other.
+   */
+
+  public static class Run {
+
+    //per stage: number of times it ran, wall and CPU nanoseconds and allocated bytes
+    protected long[] counts = new long[STAGES], wall = new long[STAGES], cpu = new long[STAGES], allocated = new long[STAGES];
+    protected long[] counters = new long[COUNTERS];
+
+    //the readings when the stages were started
+    protected long[] startWall = new long[STAGES], startCpu = new long[STAGES], startAllocated = new long[STAGES];
+
+    /**
+     * Start timing a stage.
+     *
+     * @param int stage The stage, e.g. PipelineMetrics.ROTATE
+     */
+
+    public void start(int stage) {
+      startAllocated[stage] = allocatedBytes();
+      startCpu[stage] = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+      startWall[stage] = System.nanoTime();
+    }
+
+    /**
+     * Stop timing a stage and add the time to it.
+     *
+     * @param int stage The stage
+     */
+
+    public void stop(int stage) {
+      wall[stage] += System.nanoTime() - startWall[stage];
+      if (cpuTime)
+      {
+        cpu[stage] += threads.getCurrentThreadCpuTime() - startCpu[stage];
+      }
+      allocated[stage] += allocatedBytes() - startAllocated[stage];
+      counts[stage]++;
+    }
+
+    private static long allocatedBytes() {
+      return allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Add to a counter.
+     *
+     * @param int counter The counter, e.g. PipelineMetrics.GLYPHS
+     * @param long n The amount to add
+     */
+
+    public void count(int counter, long n) {
+      counters[counter] += n;
+    }
+
+    /**
+     * @return long The value of a counter
+     */
+
+    public long getCount(int counter) {
+      return counters[counter];
+    }
+
+    /**
+     * @return long Total wall time of a stage in nanoseconds
+     */
+
+    public long getWallNanos(int stage) {
+      return wall[stage];
+    }
+
+    /**
+     * Add the run to the totals of this JVM and start again from 0.
+     */
+
+    public void finish() {
+      getInstance().add(this);
+      java.util.Arrays.fill(counts, 0);
+      java.util.Arrays.fill(wall, 0);
+      java.util.Arrays.fill(cpu, 0);
+      java.util.Arrays.fill(allocated, 0);
+      java.util.Arrays.fill(counters, 0);
+    }
+
+    /**
+     * @return String A tab-separated table of the stages, followed by the counters
+     */
+
+    public String getSummary() {
+      StringBuilder summary = new StringBuilder("stage\tcount\twall ms\tcaller cpu ms\tcaller allocated bytes\n");
+      for (int stage = 0; stage < STAGES; stage++)
+      {
+        summary.append(STAGE_NAMES[stage]).append('\t').append(counts[stage]).append('\t')
+          .append(String.format(java.util.Locale.ROOT, "%.3f", wall[stage] / 1e6)).append('\t')
+          .append(cpuTime ? String.format(java.util.Locale.ROOT, "%.3f", cpu[stage] / 1e6) : "-1").append('\t')
+          .append(allocations != null ? allocated[stage] : -1).append('\n');
+      }
+      for (int k = 0; k < COUNTERS; k++)
+      {
+        summary.append(COUNTER_NAMES[k]).append('\t').append(counters[k]).append('\n');
+      }
+      return summary.toString();
+    }
+
+    /**
+     * Write the summary to a file.
+     *
+     * @param File file The file, e.g. tmp/[image name]/metrics.txt
+     */
+
+    public void writeSummary(File file) throws IOException {
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try
+      {
+        out.write(getSummary());
+      } finally
+      {
+        out.close();
+      }
+    }
+  }
+}
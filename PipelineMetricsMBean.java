@@ -0,0 +1,77 @@
+  /**
+   * The management interface of PipelineMetrics, shown by JConsole and other JMX clients under
+   * "PuzzleExpert:type=PipelineMetrics".
+   */
+
+public interface PipelineMetricsMBean {
+
+  /**
+   * @return long Number of pages whose letters have been saved
+   */
+  long getRuns();
+
+  /**
+   * @return long Number of clusters found
+   */
+  long getParticles();
+
+  /**
+   * @return long Number of letters extracted
+   */
+  long getGlyphs();
+
+  /**
+   * @return long Number of files written
+   */
+  long getFilesWritten();
+
+  /**
+   * @return long Number of pages whose clusters came from the ClusterCache
+   */
+  long getCacheHits();
+
+  /**
+   * @return Array Names of the stages, in the order of the other arrays
+   */
+  String[] getStageNames();
+
+  /**
+   * @return Array Number of times each stage has run
+   */
+  long[] getStageCounts();
+
+  /**
+   * @return Array Total wall time of each stage in milliseconds
+   */
+  double[] getWallMillis();
+
+  /**
+   * @return Array Total CPU time of each stage in milliseconds on the thread that ran it, without the tasks it handed to
+   *   other threads, or -1 if the JVM cannot measure it
+   */
+  double[] getCallerCpuMillis();
+
+  /**
+   * @return Array Total number of bytes allocated by each stage on the thread that ran it, without the tasks it handed to
+   *   other threads, or -1 if the JVM cannot measure it
+   */
+  long[] getCallerAllocatedBytes();
+
+  /**
+   * Get the distribution of the wall time of a stage per page.
+   *
+   * @param String stage Name of the stage
+   * @return Array Number of pages per bucket; bucket 0 is under 1 microsecond, bucket k from 2^(k-1) to 2^k microseconds
+   */
+  long[] getWallHistogram(String stage);
+
+  /**
+   * @return String A table of all of the counters
+   */
+  String getSummary();
+
+  /**
+   * Set all of the counters to 0.
+   */
+  void reset();
+}
@@ -0,0 +1,293 @@
+import ij.*;
+import ij.measure.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+  /**
+   * Headless batch mode: runs the Puzzle_Expert pipeline on whole directories of puzzle scans without opening any windows.
+   *
+   * Every page is converted to grayscale, rotated, thresholded and analyzed for clusters, and each rectangle that looks like
+   * a letter is saved as an unlabeled 12x12 image in /tmp/[image name], the same as the interactive plugin does.
+   * If the page already has a /tmp/[image name]/results.txt, e.g. from annotating it, its letters are saved again instead.
+   * The pages are processed in parallel on a fixed number of worker threads; the slices of a multi-page file are
+   * processed in parallel as well, each one as a page of its own, see PuzzleStack, on as many threads as the workers
+   * leave over, so that no more than the given number of pages are processed at the same time in all. At the end, the
+   * time spent in each stage over all pages is printed, see PipelineMetrics.
+   *
+   * With "-format dataset" (or "both"), the letters of all pages are appended to a single glyph dataset file,
+   * tmp/glyphs.dat unless another one is given with "-dataset file".
+   *
+   * The pages are thresholded with IsoData unless another method is given with "-threshold", see PageThreshold.
+   *
+   * The clusters of every page are kept in a cache, tmp/cache unless another directory is given with "-cache dir", so
+   * running the batch again over the same pages skips the cluster search; "-no-cache" turns this off.
+   *
+   * Uncompressed 8-bit grayscale TIFF and PGM files are read through memory mapping instead of being opened as an
+   * ImagePlus, so even very large scans take little heap, see MappedPage; "-no-map" opens every file as an ImagePlus.
+   *
+   * The letters are scaled to 12x12 bilinearly, the same as resize(12), unless "-scaling area-average" is given, see
+   * GlyphExtractor.
+   *
+   * Usage: java -cp ij.jar:. PuzzleBatch [-threads n] [-engine union-find|tiled] [-format png|dataset|both] [-dataset file]
+   *          [-threshold isodata|otsu|sauvola] [-scaling bilinear|area-average] [-cache dir|-no-cache] [-no-map] file-or-directory ...
+   */
+
+public class PuzzleBatch {
+
+  //the number of pages processed at the same time, and of the slices of each stack, so that the workers times the
+  //slices of a stack are no more than threads
+  int threads, stackThreads;
+
+  //how the clusters are found, see Puzzle_Expert.setClusterEngine()
+  int clusterEngine = Puzzle_Expert.PARTICLE_ANALYZER;
+
+  //how the letters are saved, see Puzzle_Expert.setOutputFormat(), and the dataset shared by all pages
+  int outputFormat = Puzzle_Expert.OUTPUT_PNG;
+  GlyphDatasetWriter dataset;
+
+  //how the pages are thresholded, see PageThreshold
+  int thresholdMethod = PageThreshold.ISODATA;
+
+  //how the letters are scaled, see GlyphExtractor
+  int glyphScaling = GlyphExtractor.BILINEAR;
+
+  //the clusters of pages that have been processed before, or null
+  ClusterCache clusterCache;
+
+  //whether the files that can be mapped are processed straight from the file, see MappedPage
+  boolean mapFiles = true;
+
+  //counts the pages that were processed successfully and the ones that failed
+  AtomicInteger pagesDone = new AtomicInteger(), pagesFailed = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param int threads The number of worker threads
+   */
+
+  public PuzzleBatch(int threads) {
+    this.threads = threads;
+    stackThreads = threads;
+  }
+
+  /**
+   * Command line entry point.
+   *
+   * @param Array args Optional "-threads n", "-engine union-find|tiled", "-format png|dataset|both", "-dataset file", "-threshold isodata|otsu|sauvola", "-scaling bilinear|area-average", "-cache dir" or "-no-cache" and "-no-map",
+   *                   followed by image files or directories of images
+   */
+
+  public static void main(String[] args) throws InterruptedException, IOException {
+
+    //make sure nothing tries to open a window
+    System.setProperty("java.awt.headless", "true");
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    int clusterEngine = Puzzle_Expert.PARTICLE_ANALYZER;
+    int outputFormat = Puzzle_Expert.OUTPUT_PNG;
+    File datasetFile = new File("tmp/glyphs.dat");
+    File cacheDir = new File(ClusterCache.DEFAULT_DIR);
+    int thresholdMethod = PageThreshold.ISODATA;
+    int glyphScaling = GlyphExtractor.BILINEAR;
+    boolean mapFiles = true;
+    ArrayList<File> files = new ArrayList<File>();
+
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("-threads") && i + 1 < args.length)
+      {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-engine") && i + 1 < args.length)
+      {
+        String engine = args[++i];
+        clusterEngine = engine.equals("union-find") ? Puzzle_Expert.UNION_FIND
+          : engine.equals("tiled") ? Puzzle_Expert.TILED : Puzzle_Expert.PARTICLE_ANALYZER;
+      } else if (args[i].equals("-format") && i + 1 < args.length)
+      {
+        String format = args[++i];
+        outputFormat = format.equals("dataset") ? Puzzle_Expert.OUTPUT_DATASET
+          : format.equals("both") ? Puzzle_Expert.OUTPUT_PNG | Puzzle_Expert.OUTPUT_DATASET : Puzzle_Expert.OUTPUT_PNG;
+      } else if (args[i].equals("-dataset") && i + 1 < args.length)
+      {
+        datasetFile = new File(args[++i]);
+      } else if (args[i].equals("-threshold") && i + 1 < args.length)
+      {
+        thresholdMethod = Math.max(PageThreshold.ISODATA, PageThreshold.getMethod(args[++i]));
+      } else if (args[i].equals("-scaling") && i + 1 < args.length)
+      {
+        glyphScaling = Math.max(GlyphExtractor.BILINEAR, GlyphExtractor.getMethod(args[++i]));
+      } else if (args[i].equals("-cache") && i + 1 < args.length)
+      {
+        cacheDir = new File(args[++i]);
+      } else if (args[i].equals("-no-cache"))
+      {
+        cacheDir = null;
+      } else if (args[i].equals("-no-map"))
+      {
+        mapFiles = false;
+      } else
+      {
+        addFiles(new File(args[i]), files);
+      }
+    }
+
+    if (files.isEmpty())
+    {
+      System.err.println("Usage: java PuzzleBatch [-threads n] [-engine union-find|tiled] [-format png|dataset|both] [-dataset file] [-threshold isodata|otsu|sauvola] [-scaling bilinear|area-average] [-cache dir|-no-cache] [-no-map] file-or-directory ...");
+      System.exit(1);
+    }
+
+    PuzzleBatch batch = new PuzzleBatch(threads);
+    batch.clusterEngine = clusterEngine;
+    batch.outputFormat = outputFormat;
+    batch.thresholdMethod = thresholdMethod;
+    batch.glyphScaling = glyphScaling;
+    batch.mapFiles = mapFiles;
+    if (cacheDir != null)
+    {
+      batch.clusterCache = new ClusterCache(cacheDir, ClusterCache.DEFAULT_MAX_BYTES);
+    }
+    if ((outputFormat & Puzzle_Expert.OUTPUT_DATASET) != 0)
+    {
+      if (datasetFile.getParentFile() != null)
+      {
+        datasetFile.getParentFile().mkdirs();
+      }
+      batch.dataset = new GlyphDatasetWriter(datasetFile);
+    }
+    try
+    {
+      batch.run(files);
+    } finally
+    {
+      if (batch.dataset != null)
+      {
+        batch.dataset.close();
+      }
+    }
+  }
+
+  /**
+   * Add a file to the list, or all of the files in it if it is a directory.
+   *
+   * @param File file The file or directory
+   * @param ArrayList files The list of files to process
+   */
+
+  static void addFiles(File file, ArrayList<File> files) {
+    if (file.isDirectory())
+    {
+      File[] children = file.listFiles();
+      if (children == null)
+      {
+        return;
+      }
+      //process the pages in a predictable order
+      Arrays.sort(children);
+      for (File child : children)
+      {
+        if (child.isFile() && !child.isHidden())
+        {
+          files.add(child);
+        }
+      }
+    } else
+    {
+      files.add(file);
+    }
+  }
+
+  /**
+   * Process all of the files on the worker pool and report the throughput.
+   *
+   * @param ArrayList files The image files to process
+   */
+
+  public void run(ArrayList<File> files) throws InterruptedException {
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    //a single stack gets all of the threads, but with a worker busy on every file they are all taken already
+    stackThreads = Math.max(1, threads / Math.max(1, Math.min(threads, files.size())));
+
+    for (final File file : files)
+    {
+      pool.execute(new Runnable() {
+        public void run() {
+          processPage(file);
+        }
+      });
+    }
+
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(pagesDone.get() + " pages processed, " + pagesFailed.get() + " failed, in " +
+      String.format("%.2f", seconds) + " s (" + String.format("%.2f", pagesDone.get() / seconds) + " pages/sec, " + threads + " threads)");
+    //where the time went, over all pages; each page has its own tmp/[image name]/metrics.txt
+    System.out.print(PipelineMetrics.getInstance().getSummary());
+  }
+
+  /**
+   * Run the pipeline on a single page and save its letters.
+   *
+   * Each page gets its own plugin object and its own results table, so the pages do not share any state.
+   * A stack is split into its slices, which are counted as pages.
+   *
+   * @param File file The image file
+   */
+
+  void processPage(File file) {
+    try
+    {
+      MappedPage source = mapFiles ? MappedPage.open(file) : null;
+      ImagePlus imp = source != null ? null : IJ.openImage(file.getPath());
+      if (source == null && imp == null)
+      {
+        System.err.println("Error: could not open " + file.getPath());
+        pagesFailed.incrementAndGet();
+        return;
+      }
+
+      Puzzle_Expert puzzleExpert = new Puzzle_Expert(128, 513, new ResultsTable(), 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+      puzzleExpert.setClusterEngine(clusterEngine);
+      puzzleExpert.setOutputFormat(outputFormat);
+      puzzleExpert.setDataset(dataset);
+      puzzleExpert.setClusterCache(clusterCache);
+      puzzleExpert.setPageThreshold(new PageThreshold(thresholdMethod));
+      puzzleExpert.setGlyphScaling(glyphScaling);
+      if (source != null)
+      {
+        puzzleExpert.setupHeadless(source);
+        puzzleExpert.process(source);
+      } else if (imp.getStackSize() > 1)
+      {
+        PuzzleStack stack = new PuzzleStack(puzzleExpert, stackThreads);
+        stack.process(imp);
+        stack.saveAllLetters();
+        pagesDone.addAndGet(imp.getStackSize());
+        return;
+      } else
+      {
+        puzzleExpert.setupHeadless(imp);
+        puzzleExpert.process(imp.getProcessor());
+      }
+      //a page that already has a results.txt keeps its letters, otherwise all letters are saved unlabeled
+      if (!puzzleExpert.saveLettersFromResults())
+      {
+        puzzleExpert.saveAllLetters();
+      }
+
+      pagesDone.incrementAndGet();
+    } catch (Exception e)
+    {
+      System.err.println("Error: " + file.getPath() + ": " + e);
+      pagesFailed.incrementAndGet();
+    }
+  }
+}
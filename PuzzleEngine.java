@@ -0,0 +1,611 @@
+import ij.*;
+import ij.measure.*;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.*;
+
+  /**
+   * The detection and extraction part of the Puzzle_Expert pipeline, without any windows or files: rotates and
+   * thresholds a page, finds the clusters, and gives the squares the letters are cut out of.
+   *
+   * The engine only holds its settings. Everything that belongs to one page is kept in the Page object that process()
+   * returns, including the results table of the particle analyzer, which is a new one for every page, never the one of
+   * Analyzer.getResultsTable(). So a single engine can process any number of pages on any number of threads at the
+   * same time, as long as its settings are not changed meanwhile; Puzzle_Expert, PuzzleStack, PuzzleBatch and
+   * PuzzleServer all run the pipeline through it.
+   *
+   * A page can also be processed straight from its file, see process(MappedPage, ...): the clusters are then found
+   * while the rotated page is read a band at a time, and the letters are read from the file when they are cut out.
+   */
+
+public class PuzzleEngine {
+
+  //the number of rows of the rotated page that are read from a mapped page at once
+  public static final int BAND_ROWS = 64;
+
+  //how the clusters are found, see Puzzle_Expert.PARTICLE_ANALYZER, UNION_FIND and TILED
+  protected int clusterEngine = Puzzle_Expert.PARTICLE_ANALYZER;
+  protected TiledClusterDetector tiledClusterDetector = new TiledClusterDetector();
+
+  //how the page is thresholded
+  protected PageThreshold pageThreshold = new PageThreshold(PageThreshold.ISODATA);
+
+  //where the clusters of pages that have been seen before are kept, or null
+  protected ClusterCache clusterCache;
+
+  //the settings of the particle analyzer; the size limits are used by the other engines too
+  protected int options, measurements;
+  protected double minSize, maxSize, minCirc, maxCirc;
+
+  /**
+   * The square a letter is cut out of.
+   */
+
+  public static class RectangleCoordinates
+  {
+  /**
+   * Coordinates of a rectangle: x-position of top-left corner, y-position of top-left corner,
+   * width of rectangle, height of rectangle
+   */
+	  public int xTopLeft, yTopLeft, rW, rH;
+
+  /**
+   * Adjust the rectangle dimensions to a square.
+   *
+   * This helps because later we want to resize the image to 12x12.
+   */
+
+    public void adjustToSquare()
+    {
+    	//we need a square shape for the resizing, so adjust the parameters slightly
+		if (rH > rW)
+		{
+			if ((rH - rW) % 2 != 0)
+			{
+				rH = rH + 1;
+			}
+			//make sure the horizontal position of the center does not change, unless it violates the boundaries of the image
+			if ((xTopLeft - (rH - rW)/2) > -1)
+			{
+				xTopLeft = xTopLeft - (rH - rW)/2;
+			} else
+			{
+				xTopLeft = 0;
+			}
+			rW = rH;
+		} else if (rW > rH)
+		{
+			if ((rW - rH) % 2 != 0)
+			{
+				rH = rH + 1;
+			}
+			//make sure the vertical position of the center does not change, unless it violates the boundaries of the image
+			if ((yTopLeft - (rW - rH)/2) > -1)
+			{
+				yTopLeft = yTopLeft - (rW - rH)/2;
+			} else
+			{
+				yTopLeft = 0;
+			}
+			rH = rW;
+		}
+    }
+  }
+
+  /**
+   * The results of one page. Only used by one thread at a time.
+   */
+
+  public static class Page {
+
+    //the rotated grayscale page with the threshold set, and its size
+    public ImageProcessor ipNew;
+    public int w, h;
+
+    //for a page processed from its file, instead of ipNew and the mask: the file and the threshold levels
+    public MappedPage source;
+    public int lower, upper;
+
+    //the thresholded image the clusters are searched in: ipNew itself with a global threshold, the mask with a local one
+    public ImageProcessor detectionIp;
+
+    //the black and white version of the page
+    public BinaryMask mask;
+
+    //the rectangles around the clusters, packed as x, y, width, height, and the same in one array per column
+    public int[] boxes;
+    public float[] x, y, widths, heights;
+
+    //time, CPU time and allocations of each stage for this page
+    public PipelineMetrics.Run metrics;
+
+    //spatial index over the rectangles and the word-search grid, made when they are first needed
+    protected RectangleIndex rectangleIndex;
+    protected LetterGrid letterGrid;
+
+    //the square last read from the source, and its mask
+    protected byte[] region = new byte[0];
+    protected BinaryMask regionMask;
+
+    /**
+     * Check whether a rectangle is so big that it is obviously not a letter (e.g. a big rectangle around part of the image).
+     *
+     * @param int i Index of the rectangle
+     * @return boolean True if the rectangle should be excluded
+     */
+
+    public boolean isTooBig(int i)
+    {
+      return (heights[i] >= 0.2f * (float) h) || (widths[i] >= 0.2f * (float) w);
+    }
+
+    /**
+     * Check whether a rectangle may contain a letter: the same minimum dimensions as the drawn rectangles, and not
+     * obviously too big.
+     *
+     * @param int i Index of the rectangle
+     * @return boolean True if the rectangle may contain a letter
+     */
+
+    public boolean looksLikeLetter(int i)
+    {
+      return heights[i] > 5 && widths[i] > 5 && !isTooBig(i);
+    }
+
+    /**
+     * Get the square a rectangle is cut out as.
+     *
+     * @param int i Index of the rectangle
+     * @return RectangleCoordinates The square
+     */
+
+    public RectangleCoordinates getSquare(int i)
+    {
+      RectangleCoordinates square = new RectangleCoordinates();
+      square.xTopLeft = (int) x[i];
+      square.yTopLeft = (int) y[i];
+      square.rW = (int) widths[i];
+      square.rH = (int) heights[i];
+
+      //we need a square shape for the resizing, so adjust the parameters of the rectangle slightly
+      square.adjustToSquare();
+      return square;
+    }
+
+    /**
+     * Cut the letter of a rectangle out and scale it to 12x12.
+     *
+     * @param int i Index of the rectangle
+     * @param GlyphExtractor extractor Receives the letter; one per thread
+     */
+
+    public void extract(int i, GlyphExtractor extractor)
+    {
+      RectangleCoordinates square = getSquare(i);
+      extract(square.xTopLeft, square.yTopLeft, square.rW, extractor);
+    }
+
+    /**
+     * Cut a square out of the page and scale it to 12x12.
+     *
+     * @param int left x-position of the top left-hand corner of the square
+     * @param int top y-position of the top left-hand corner of the square
+     * @param int size Width and height of the square
+     * @param GlyphExtractor extractor Receives the letter; one per thread
+     */
+
+    public void extract(int left, int top, int size, GlyphExtractor extractor)
+    {
+      if (ipNew != null)
+      {
+        extractor.extract((byte[]) ipNew.getPixels(), mask, w, h, left, top, size);
+        return;
+      }
+
+      //read the part of the square that lies within the page from the file; the extractor treats the rest as 0,
+      //the same as outside the whole page
+      int x0 = Math.max(0, left), y0 = Math.max(0, top);
+      int x1 = Math.min(w, left + size), y1 = Math.min(h, top + size);
+      int rw = Math.max(0, x1 - x0), rh = Math.max(0, y1 - y0);
+      if (region.length < rw * rh)
+      {
+        region = new byte[rw * rh];
+      }
+      source.getRotatedRegion(x0, y0, rw, rh, region);
+      regionMask = BinaryMask.threshold(region, rw, rh, lower, upper, ThresholdKernel.getInstance(), regionMask);
+      extractor.extract(region, regionMask, rw, rh, left - x0, top - y0, size);
+    }
+
+    /**
+     * Get the spatial index over the rectangles that may contain a letter, building it if necessary.
+     *
+     * @return RectangleIndex The index
+     */
+
+    public RectangleIndex getRectangleIndex()
+    {
+      if (rectangleIndex == null)
+      {
+        rectangleIndex = new RectangleIndex(x, y, widths, heights, w, h, 0.2f * (float) w, 0.2f * (float) h);
+      }
+      return rectangleIndex;
+    }
+
+    /**
+     * Get the word-search grid of the rectangles that may contain a letter, finding it if necessary.
+     *
+     * @return LetterGrid The grid
+     */
+
+    public LetterGrid getLetterGrid()
+    {
+      if (letterGrid == null)
+      {
+        metrics.start(PipelineMetrics.GRID);
+        int[] letters = new int[x.length];
+        int n = 0;
+        for (int i = 0; i < x.length; i++)
+        {
+          if (looksLikeLetter(i))
+          {
+            letters[n++] = i;
+          }
+        }
+        letterGrid = LetterGrid.build(x, y, widths, heights, letters, n);
+        metrics.stop(PipelineMetrics.GRID);
+      }
+      return letterGrid;
+    }
+  }
+
+  /**
+   * Constructor: the settings of the particle analyzer, see the base class of Puzzle_Expert.
+   */
+
+  public PuzzleEngine(int options, int measurements, double minSize, double maxSize, double minCirc, double maxCirc) {
+    this.options = options;
+    this.measurements = measurements;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.minCirc = minCirc;
+    this.maxCirc = maxCirc;
+  }
+
+  /**
+   * Constructor: a copy of the settings of another engine, e.g. to change one of them.
+   *
+   * @param PuzzleEngine engine The engine to copy
+   */
+
+  public PuzzleEngine(PuzzleEngine engine) {
+    this(engine.options, engine.measurements, engine.minSize, engine.maxSize, engine.minCirc, engine.maxCirc);
+    clusterEngine = engine.clusterEngine;
+    tiledClusterDetector = engine.tiledClusterDetector;
+    pageThreshold = engine.pageThreshold;
+    clusterCache = engine.clusterCache;
+  }
+
+  /**
+   * @param int clusterEngine Puzzle_Expert.PARTICLE_ANALYZER (the default), UNION_FIND or TILED
+   */
+
+  public void setClusterEngine(int clusterEngine) {
+    this.clusterEngine = clusterEngine;
+  }
+
+  /**
+   * @param TiledClusterDetector tiledClusterDetector The detector used by the TILED engine
+   */
+
+  public void setTiledClusterDetector(TiledClusterDetector tiledClusterDetector) {
+    this.tiledClusterDetector = tiledClusterDetector;
+  }
+
+  /**
+   * @param PageThreshold pageThreshold The threshold method, ISODATA by default
+   */
+
+  public void setPageThreshold(PageThreshold pageThreshold) {
+    this.pageThreshold = pageThreshold;
+  }
+
+  /**
+   * @param ClusterCache clusterCache The cache, or null to always search the clusters
+   */
+
+  public void setClusterCache(ClusterCache clusterCache) {
+    this.clusterCache = clusterCache;
+  }
+
+  /**
+   * Convert a page to grayscale and process it.
+   *
+   * @param ImagePlus imp The page; converted to 8-bit grayscale in place
+   * @param PipelineMetrics.Run metrics Receives the statistics of the stages, or null for a new one
+   * @return Page The results
+   */
+
+  public Page process(ImagePlus imp, PipelineMetrics.Run metrics)
+  {
+    if (metrics == null)
+    {
+      metrics = new PipelineMetrics.Run();
+    }
+    metrics.start(PipelineMetrics.SETUP);
+    ImageConverter ic = new ImageConverter(imp);
+    ic.convertToGray8();
+    metrics.stop(PipelineMetrics.SETUP);
+    return process(imp.getProcessor(), metrics);
+  }
+
+  /**
+   * Rotate and threshold a page and find the clusters.
+   *
+   * @param ImageProcessor ip The grayscale image processor of the page; it is not changed
+   * @param PipelineMetrics.Run metrics Receives the statistics of the stages, or null for a new one
+   * @return Page The results
+   */
+
+  public Page process(ImageProcessor ip, PipelineMetrics.Run metrics)
+  {
+    Page page = new Page();
+    page.metrics = metrics != null ? metrics : new PipelineMetrics.Run();
+    metrics = page.metrics;
+
+    //the rotated copy is the only full-size copy of the page; the threshold only changes its lookup table. The
+    //histogram is counted while the page is rotated, so the page is read only once before it is thresholded
+    metrics.start(PipelineMetrics.ROTATE);
+    ImageProcessor ipNew = ip.createProcessor(ip.getHeight(), ip.getWidth());
+    int[] histogram = rotateRight((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), (byte[]) ipNew.getPixels());
+    page.ipNew = ipNew;
+    metrics.stop(PipelineMetrics.ROTATE);
+
+    //the clusters of a page that has been seen before, with the same parameters, come from the cache
+    String cacheKey = null;
+    ClusterCache.Entry cached = null;
+    if (clusterCache != null)
+    {
+      cacheKey = ClusterCache.getKey((byte[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), getCacheParameters(ipNew.isInvertedLut()));
+      cached = clusterCache.get(cacheKey);
+    }
+
+    //calculate width and height of image
+    int w = page.w = ipNew.getWidth();
+    int h = page.h = ipNew.getHeight();
+    byte[] pixels = (byte[]) ipNew.getPixels();
+
+    metrics.start(PipelineMetrics.THRESHOLD);
+    //set threshold & convert the image to black-or-white only, packed one bit per pixel, for finding the clusters and
+    //for creating the individual letter images
+    if (pageThreshold.isGlobal())
+    {
+      int[] levels;
+      if (cached != null)
+      {
+        levels = new int[] {cached.lower, cached.upper};
+      } else
+      {
+        levels = pageThreshold.getLevels(histogram, ipNew.isInvertedLut());
+      }
+      ipNew.setThreshold(levels[0], levels[1], ImageProcessor.BLACK_AND_WHITE_LUT);
+      page.mask = pageThreshold.threshold(pixels, w, h, levels[0], levels[1]);
+      page.detectionIp = ipNew;
+    } else
+    {
+      //a threshold per pixel: the clusters are found in the mask itself
+      page.mask = pageThreshold.sauvola(pixels, w, h, ipNew.isInvertedLut());
+      page.detectionIp = page.mask.toByteProcessor();
+      page.detectionIp.setThreshold(page.mask.foreground, page.mask.foreground, ImageProcessor.BLACK_AND_WHITE_LUT);
+    }
+    metrics.stop(PipelineMetrics.THRESHOLD);
+
+    if (cached != null)
+    {
+      page.boxes = cached.boxes;
+      metrics.count(PipelineMetrics.CACHE_HITS, 1);
+    } else
+    {
+      metrics.start(PipelineMetrics.CLUSTERS);
+      page.boxes = findClusters(page.detectionIp);
+      metrics.stop(PipelineMetrics.CLUSTERS);
+
+      if (cacheKey != null)
+      {
+        clusterCache.put(cacheKey, (int) page.detectionIp.getMinThreshold(), (int) page.detectionIp.getMaxThreshold(), page.boxes);
+      }
+    }
+
+    setBoxes(page);
+    return page;
+  }
+
+  /**
+   * Rotate a page to the right, the same as ImageProcessor.rotateRight(), and count its histogram in the same pass.
+   * With the tiled engine, the stripes of the page are rotated in parallel.
+   *
+   * @param Array pixels The pixels of the page
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param Array rotated Receives the pixels of the rotated page
+   * @return Array The 256-bin histogram of the page
+   */
+
+  protected int[] rotateRight(byte[] pixels, int width, int height, byte[] rotated)
+  {
+    if (clusterEngine == Puzzle_Expert.TILED)
+    {
+      return tiledClusterDetector.rotateRight(pixels, width, height, rotated, pageThreshold.getKernel());
+    }
+    int[] histogram = new int[256];
+    pageThreshold.getKernel().rotateRight(pixels, width, height, 0, height, rotated, histogram);
+    return histogram;
+  }
+
+  /**
+   * Process a page straight from its file, without ever holding the whole page on the heap.
+   *
+   * With a global threshold, the histogram is counted while the page is read a band of rows at a time, and the
+   * clusters are found while the rotated page is read a band of BAND_ROWS rows at a time and handed to a
+   * ComponentLabeler row by row, whatever the cluster engine; the engines all give the same clusters. The Page that is
+   * returned has no ipNew, detectionIp and mask; its letters are read from the file when they are cut out, see
+   * Page.extract(). A local threshold needs the whole page at once, so with SAUVOLA the page is read onto the heap and
+   * processed the usual way.
+   *
+   * @param MappedPage source The page
+   * @param PipelineMetrics.Run metrics Receives the statistics of the stages, or null for a new one
+   * @return Page The results
+   */
+
+  public Page process(MappedPage source, PipelineMetrics.Run metrics)
+  {
+    if (!pageThreshold.isGlobal())
+    {
+      return process(source.getProcessor(), metrics);
+    }
+    Page page = new Page();
+    page.metrics = metrics != null ? metrics : new PipelineMetrics.Run();
+    metrics = page.metrics;
+    page.source = source;
+    page.w = source.getHeight();
+    page.h = source.getWidth();
+
+    //the clusters of a page that has been seen before, with the same parameters, come from the cache
+    String cacheKey = null;
+    ClusterCache.Entry cached = null;
+    if (clusterCache != null)
+    {
+      cacheKey = ClusterCache.getKey(source, getCacheParameters(source.isInvertedLut()));
+      cached = clusterCache.get(cacheKey);
+    }
+
+    metrics.start(PipelineMetrics.THRESHOLD);
+    int[] levels = cached != null ? new int[] {cached.lower, cached.upper}
+      : pageThreshold.getLevels(source.getHistogram(pageThreshold.getKernel()), source.isInvertedLut());
+    page.lower = levels[0];
+    page.upper = levels[1];
+    metrics.stop(PipelineMetrics.THRESHOLD);
+
+    if (cached != null)
+    {
+      page.boxes = cached.boxes;
+      metrics.count(PipelineMetrics.CACHE_HITS, 1);
+    } else
+    {
+      //the rotation is part of reading the bands
+      metrics.start(PipelineMetrics.CLUSTERS);
+      ComponentLabeler labeler = new ComponentLabeler(page.w, page.lower, page.upper);
+      byte[] band = new byte[Math.min(BAND_ROWS, page.h) * page.w];
+      for (int first = 0; first < page.h; first += BAND_ROWS)
+      {
+        int n = Math.min(BAND_ROWS, page.h - first);
+        source.getRotatedRows(first, n, band);
+        for (int r = 0; r < n; r++)
+        {
+          labeler.addRow(band, r * page.w);
+        }
+      }
+      page.boxes = labeler.getBoxes(minSize, maxSize);
+      metrics.stop(PipelineMetrics.CLUSTERS);
+
+      if (cacheKey != null)
+      {
+        clusterCache.put(cacheKey, page.lower, page.upper, page.boxes);
+      }
+    }
+
+    setBoxes(page);
+    return page;
+  }
+
+  /**
+   * Copy the packed boxes of a page into its x, y, widths and heights arrays.
+   */
+
+  protected static void setBoxes(Page page)
+  {
+    int n = page.boxes.length / ComponentLabeler.BOX_SIZE;
+    page.x = new float[n];
+    page.y = new float[n];
+    page.widths = new float[n];
+    page.heights = new float[n];
+    for (int k = 0; k < n; k++)
+    {
+      page.x[k] = page.boxes[k * ComponentLabeler.BOX_SIZE];
+      page.y[k] = page.boxes[k * ComponentLabeler.BOX_SIZE + 1];
+      page.widths[k] = page.boxes[k * ComponentLabeler.BOX_SIZE + 2];
+      page.heights[k] = page.boxes[k * ComponentLabeler.BOX_SIZE + 3];
+    }
+    page.metrics.count(PipelineMetrics.PARTICLES, n);
+  }
+
+  /**
+   * Find the clusters of pixels within the threshold of an image.
+   *
+   * @param ImageProcessor detectionIp The thresholded image
+   * @return Array x, y, width and height of the rectangle around each cluster
+   */
+
+  public int[] findClusters(ImageProcessor detectionIp)
+  {
+    int w = detectionIp.getWidth(), h = detectionIp.getHeight();
+    if (clusterEngine == Puzzle_Expert.UNION_FIND)
+    {
+      return ComponentLabeler.label((byte[]) detectionIp.getPixels(), w, h,
+        (int) detectionIp.getMinThreshold(), (int) detectionIp.getMaxThreshold(), minSize, maxSize);
+    }
+    if (clusterEngine == Puzzle_Expert.TILED)
+    {
+      return tiledClusterDetector.getClusters((byte[]) detectionIp.getPixels(), w, h,
+        (int) detectionIp.getMinThreshold(), (int) detectionIp.getMaxThreshold(), minSize, maxSize);
+    }
+
+    //the particle analyzer, with a results table of its own
+    ResultsTable rt = new ResultsTable();
+    ParticleAnalyzer analyzer = new ParticleAnalyzer(options, measurements, rt, minSize, maxSize, minCirc, maxCirc);
+    analyzer.analyze(new ImagePlus("result", detectionIp), detectionIp);
+    return getBoxes(rt);
+  }
+
+  /**
+   * Pack the rectangles the particle analyzer has put in a results table the same way as the union-find engine does.
+   *
+   * @param ResultsTable rt The table
+   * @return Array x, y, width and height of each rectangle
+   */
+
+  protected static int[] getBoxes(ResultsTable rt)
+  {
+    //an empty page leaves the results table without columns
+    if (rt.getCounter() == 0)
+    {
+      return new int[0];
+    }
+
+    //x and y "start values" of the rectangles (upper left-hand corner), their widths and heights
+    float[] bx = rt.getColumn(11), by = rt.getColumn(12), bw = rt.getColumn(13), bh = rt.getColumn(14);
+    int[] packed = new int[bx.length * ComponentLabeler.BOX_SIZE];
+    for (int k = 0; k < bx.length; k++)
+    {
+      packed[k * ComponentLabeler.BOX_SIZE] = (int) bx[k];
+      packed[k * ComponentLabeler.BOX_SIZE + 1] = (int) by[k];
+      packed[k * ComponentLabeler.BOX_SIZE + 2] = (int) bw[k];
+      packed[k * ComponentLabeler.BOX_SIZE + 3] = (int) bh[k];
+    }
+    return packed;
+  }
+
+  /**
+   * Describe everything besides the pixels that the clusters depend on, for the cache key.
+   *
+   * The engines all give the same clusters, but the engine is part of the key anyway, so that a change to one of
+   * them can never be hidden by the cache.
+   *
+   * @param boolean invertedLut Whether the page has an inverted lookup table
+   * @return String The parameters
+   */
+
+  protected String getCacheParameters(boolean invertedLut)
+  {
+    return pageThreshold.getDescription() + " engine=" + clusterEngine + " options=" + options + " size=" + minSize + "-" + maxSize +
+      " circularity=" + minCirc + "-" + maxCirc + " invertedLut=" + invertedLut + " blackBackground=" + Prefs.blackBackground;
+  }
+}
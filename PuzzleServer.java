@@ -0,0 +1,572 @@
+import ij.*;
+import ij.io.Opener;
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+  /**
+   * Server mode: runs the Puzzle_Expert pipeline for other programs over HTTP, without any windows.
+   *
+   * A page is sent as the body of a POST request, as a TIFF, PNG, JPEG, GIF or BMP file, and the answer is a
+   * tab-separated table with a heading line, like results.txt:
+   *
+   *   POST /clusters  every rectangle around a cluster: x, y, width, height
+   *   POST /glyphs    every rectangle that looks like a letter, with its 12x12 letter: x, y, width, height, then the
+   *                   packed black and white letter (18 bytes, see GlyphExtractor.packBw()) and the grayscale letter
+   *                   (144 bytes), both in hex
+   *   GET  /metrics   the number of requests, the batches, the latencies and the time spent in each stage
+   *
+   * The positions are in the coordinates of the page rotated to the right, the same as in results.txt. The threshold
+   * method can be chosen per request with "?threshold=isodata|otsu|sauvola".
+   *
+   * The requests wait in a queue of a fixed size; a request that finds the queue full is turned away right away with
+   * "503 Service Unavailable" and a Retry-After header, so a client sending too much gets an answer instead of a
+   * growing wait; the page is not read if the queue is already full. The connections are handled by a fixed number of
+   * threads, one for each worker and each place in the queue and a few more, so at most that many pages are held in
+   * memory; more connections wait unread until a thread is free. A request that is not answered in time gets
+   * "504 Gateway Timeout" and is taken out of the queue, or skipped by the worker if it was taken already. Whenever one
+   * of the worker threads is free, the dispatcher takes the next request from the queue together with the ones queued
+   * behind it, up to a batch, and gives them to the worker as one task; small pages that arrive together then cost one
+   * hand-over instead of one each. The pages are processed by a shared PuzzleEngine, which keeps everything of a page,
+   * including its results table, in the page's own context, never in Analyzer.getResultsTable(), so the pages share
+   * nothing. Every answer has X-Queue-Millis and X-Process-Millis headers with the time the request waited and the time
+   * it took.
+   *
+   * Usage: java -cp ij.jar:. PuzzleServer [-port n] [-threads n] [-queue n] [-batch n] [-engine union-find|tiled|particle-analyzer]
+   *          [-threshold isodata|otsu|sauvola]
+   */
+
+public class PuzzleServer {
+
+  //the largest page that is accepted, in bytes
+  public static final int MAX_BODY_SIZE = 256 << 20;
+
+  //the threads that handle connections besides one per worker and per place in the queue, for the requests that are
+  //turned away and the metrics
+  public static final int SPARE_HANDLERS = 4;
+
+  protected HttpServer server;
+
+  //processes the pages, and the same with each threshold method, for the requests that choose one
+  protected PuzzleEngine engine;
+  protected PuzzleEngine[] thresholdEngines = new PuzzleEngine[PageThreshold.METHOD_NAMES.length];
+
+  //the waiting requests, the workers and the number of workers that are free
+  protected ArrayBlockingQueue<Job> queue;
+  protected ExecutorService workers, handlers;
+  protected Semaphore freeWorkers;
+  protected Thread dispatcher;
+  protected int threads, queueSize, batchSize;
+  protected volatile boolean running;
+
+  //the longest a request waits for its answer
+  protected long timeoutMillis = 120000;
+
+  //the counts of the requests, and how long they waited, took to process and took in all
+  protected AtomicLong accepted = new AtomicLong(), rejected = new AtomicLong(), failed = new AtomicLong(),
+    timedOut = new AtomicLong(), batches = new AtomicLong(), batchedJobs = new AtomicLong();
+  protected Latency queued = new Latency(), processing = new Latency(), total = new Latency();
+
+  /**
+   * A request: the page, what to return, and when it is done the answer.
+   */
+
+  protected static class Job {
+    byte[] body;
+    boolean glyphs;
+    int thresholdMethod;
+
+    //set when the client has been told it took too long, so that it is not processed any more
+    volatile boolean cancelled;
+
+    //set by the worker
+    int status;
+    String answer;
+    long received = System.nanoTime(), started, finished;
+    CountDownLatch done = new CountDownLatch(1);
+  }
+
+  /**
+   * A latency histogram, one bucket per power of 2 microseconds, like the stage histograms of PipelineMetrics.
+   */
+
+  protected static class Latency {
+    AtomicLongArray buckets = new AtomicLongArray(PipelineMetrics.BUCKETS);
+    AtomicLong count = new AtomicLong(), nanos = new AtomicLong(), max = new AtomicLong();
+
+    void add(long time) {
+      buckets.incrementAndGet(PipelineMetrics.bucket(time));
+      count.incrementAndGet();
+      nanos.addAndGet(time);
+      long previous;
+      while ((previous = max.get()) < time && !max.compareAndSet(previous, time))
+      {
+      }
+    }
+
+    /**
+     * @return double The time in milliseconds below which a share of the requests was, rounded up to the end of its bucket
+     */
+
+    double getPercentile(double share) {
+      long n = count.get(), seen = 0;
+      for (int k = 0; k < PipelineMetrics.BUCKETS; k++)
+      {
+        seen += buckets.get(k);
+        if (n > 0 && seen >= share * n)
+        {
+          return Math.min((1L << k) / 1000.0, max.get() / 1e6);
+        }
+      }
+      return max.get() / 1e6;
+    }
+
+    String getSummary(String name) {
+      long n = count.get();
+      return name + "\t" + n + "\t" + String.format(Locale.ROOT, "%.3f\t%.3f\t%.3f\t%.3f\t%.3f\n", n > 0 ? nanos.get() / 1e6 / n : 0.0,
+        getPercentile(0.5), getPercentile(0.95), getPercentile(0.99), max.get() / 1e6);
+    }
+  }
+
+  /**
+   * Constructor: the server does not accept requests until start() is called.
+   *
+   * @param InetSocketAddress address The address to listen on; port 0 picks a free port
+   * @param PuzzleEngine engine The engine with the settings for every page
+   * @param int threads The number of pages processed at the same time
+   * @param int queueSize The number of requests that may wait before new ones are turned away
+   * @param int batchSize The largest number of requests a worker takes at once
+   */
+
+  public PuzzleServer(InetSocketAddress address, PuzzleEngine engine, int threads, int queueSize, int batchSize) throws IOException {
+    this.engine = engine;
+    for (int method = 0; method < thresholdEngines.length; method++)
+    {
+      thresholdEngines[method] = new PuzzleEngine(engine);
+      thresholdEngines[method].setPageThreshold(new PageThreshold(method));
+    }
+    this.threads = threads;
+    this.queueSize = Math.max(1, queueSize);
+    this.batchSize = Math.max(1, batchSize);
+    queue = new ArrayBlockingQueue<Job>(this.queueSize);
+    freeWorkers = new Semaphore(threads);
+    server = HttpServer.create(address, 0);
+    server.createContext("/clusters", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleImage(exchange, false);
+      }
+    });
+    server.createContext("/glyphs", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handleImage(exchange, true);
+      }
+    });
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        send(exchange, 200, getSummary(), 0, 0);
+      }
+    });
+  }
+
+  /**
+   * Command line entry point.
+   *
+   * @param Array args Optional "-port n", "-threads n", "-queue n", "-batch n", "-engine union-find|tiled|particle-analyzer"
+   *                   and "-threshold isodata|otsu|sauvola"
+   */
+
+  public static void main(String[] args) throws IOException {
+
+    //make sure nothing tries to open a window
+    System.setProperty("java.awt.headless", "true");
+
+    int port = 8080;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int queueSize = 64, batchSize = 8;
+    int clusterEngine = Puzzle_Expert.UNION_FIND;
+    int thresholdMethod = PageThreshold.ISODATA;
+    for (int i = 0; i < args.length; i++)
+    {
+      if (args[i].equals("-port") && i + 1 < args.length)
+      {
+        port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-threads") && i + 1 < args.length)
+      {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-queue") && i + 1 < args.length)
+      {
+        queueSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-batch") && i + 1 < args.length)
+      {
+        batchSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-engine") && i + 1 < args.length)
+      {
+        String engine = args[++i];
+        clusterEngine = engine.equals("tiled") ? Puzzle_Expert.TILED
+          : engine.equals("particle-analyzer") ? Puzzle_Expert.PARTICLE_ANALYZER : Puzzle_Expert.UNION_FIND;
+      } else if (args[i].equals("-threshold") && i + 1 < args.length)
+      {
+        thresholdMethod = Math.max(PageThreshold.ISODATA, PageThreshold.getMethod(args[++i]));
+      } else
+      {
+        System.err.println("Usage: java PuzzleServer [-port n] [-threads n] [-queue n] [-batch n] [-engine union-find|tiled|particle-analyzer] [-threshold isodata|otsu|sauvola]");
+        System.exit(1);
+      }
+    }
+
+    PuzzleEngine engine = new PuzzleEngine(128, 513, 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+    engine.setClusterEngine(clusterEngine);
+    engine.setPageThreshold(new PageThreshold(thresholdMethod));
+    //only on this machine
+    PuzzleServer server = new PuzzleServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), engine, threads, queueSize, batchSize);
+    server.start();
+    System.out.println("Listening on http://localhost:" + server.getPort() + "/ (" + threads + " threads, queue " + queueSize + ", batch " + batchSize + ")");
+  }
+
+  /**
+   * Start accepting requests.
+   */
+
+  public void start() {
+    running = true;
+    workers = Executors.newFixedThreadPool(threads);
+    //the connections only wait for their answer, the work is done by the workers; there are enough of them for the
+    //pages being processed and queued, and the connections beyond that wait for one without their page being read
+    handlers = Executors.newFixedThreadPool(threads + queueSize + SPARE_HANDLERS);
+    server.setExecutor(handlers);
+    dispatcher = new Thread(new Runnable() {
+      public void run() {
+        dispatch();
+      }
+    }, "PuzzleServer dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+    server.start();
+  }
+
+  /**
+   * Stop accepting requests; the requests that are still queued are turned away.
+   */
+
+  public void stop() {
+    running = false;
+    server.stop(0);
+    dispatcher.interrupt();
+    workers.shutdown();
+    handlers.shutdown();
+    Job job;
+    while ((job = queue.poll()) != null)
+    {
+      finish(job, 503, "The server is shutting down\n");
+    }
+  }
+
+  /**
+   * @return int The port the server listens on
+   */
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Queue a page and wait for the answer.
+   */
+
+  protected void handleImage(HttpExchange exchange, boolean glyphs) throws IOException {
+    if (!exchange.getRequestMethod().equals("POST"))
+    {
+      send(exchange, 405, "Send the page with POST\n", 0, 0);
+      return;
+    }
+    Job job = new Job();
+    job.glyphs = glyphs;
+    job.thresholdMethod = -1;
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null)
+    {
+      for (String parameter : query.split("&"))
+      {
+        if (parameter.startsWith("threshold="))
+        {
+          job.thresholdMethod = PageThreshold.getMethod(URLDecoder.decode(parameter.substring(10), "UTF-8"));
+          if (job.thresholdMethod < PageThreshold.ISODATA)
+          {
+            send(exchange, 400, "Unknown threshold method: " + parameter.substring(10) + "\n", 0, 0);
+            return;
+          }
+        }
+      }
+    }
+    //backpressure: when the queue is full, the client is told to come back later instead of waiting, and if it is
+    //full already, before the page is read
+    if (!running || queue.remainingCapacity() == 0)
+    {
+      reject(exchange);
+      return;
+    }
+    job.body = readBody(exchange.getRequestBody());
+    if (job.body == null)
+    {
+      send(exchange, 413, "The page is larger than " + MAX_BODY_SIZE + " bytes\n", 0, 0);
+      return;
+    }
+    if (!running || !queue.offer(job))
+    {
+      reject(exchange);
+      return;
+    }
+    accepted.incrementAndGet();
+    try
+    {
+      if (!job.done.await(timeoutMillis, TimeUnit.MILLISECONDS))
+      {
+        //nobody waits for the answer any more
+        job.cancelled = true;
+        queue.remove(job);
+        timedOut.incrementAndGet();
+        send(exchange, 504, "The page was not processed in time\n", 0, 0);
+        return;
+      }
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      send(exchange, 503, "The server is shutting down\n", 0, 0);
+      return;
+    }
+    send(exchange, job.status, job.answer, job.started - job.received, job.finished - job.started);
+  }
+
+  /**
+   * Turn a request away because the queue is full.
+   */
+
+  protected void reject(HttpExchange exchange) throws IOException {
+    rejected.incrementAndGet();
+    exchange.getResponseHeaders().set("Retry-After", "1");
+    send(exchange, 503, "Too many pages are waiting, try again later\n", 0, 0);
+  }
+
+  /**
+   * Read the body of a request, or return null if it is too large.
+   */
+
+  protected static byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[65536];
+    int n;
+    while ((n = in.read(buffer)) > 0)
+    {
+      if (body.size() + n > MAX_BODY_SIZE)
+      {
+        return null;
+      }
+      body.write(buffer, 0, n);
+    }
+    in.close();
+    return body.toByteArray();
+  }
+
+  /**
+   * Send an answer, with the latency headers.
+   */
+
+  protected static void send(HttpExchange exchange, int status, String text, long queueNanos, long processNanos) throws IOException {
+    byte[] bytes = text.getBytes("UTF-8");
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", "text/tab-separated-values; charset=utf-8");
+    headers.set("X-Queue-Millis", String.format(Locale.ROOT, "%.3f", queueNanos / 1e6));
+    headers.set("X-Process-Millis", String.format(Locale.ROOT, "%.3f", processNanos / 1e6));
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  /**
+   * Hand the queued requests to the workers: as soon as a worker is free, the next request and the ones queued behind
+   * it, up to a batch, but no more than a fair share of the queue, so that the other workers get some too.
+   */
+
+  protected void dispatch() {
+    try
+    {
+      while (running)
+      {
+        freeWorkers.acquire();
+        final ArrayList<Job> batch = new ArrayList<Job>();
+        batch.add(queue.take());
+        queue.drainTo(batch, Math.min(batchSize, 1 + queue.size() / threads) - 1);
+        batches.incrementAndGet();
+        batchedJobs.addAndGet(batch.size());
+        workers.execute(new Runnable() {
+          public void run() {
+            try
+            {
+              for (Job job : batch)
+              {
+                //a request that timed out while it was in the batch is left out
+                if (job.cancelled)
+                {
+                  job.body = null;
+                  continue;
+                }
+                process(job);
+              }
+            } finally
+            {
+              freeWorkers.release();
+            }
+          }
+        });
+      }
+    } catch (InterruptedException e)
+    {
+      //stopped
+    } catch (RejectedExecutionException e)
+    {
+      //stopped while a batch was taken
+    }
+  }
+
+  /**
+   * Run the pipeline on one page and put together the answer.
+   */
+
+  protected void process(Job job) {
+    job.started = System.nanoTime();
+    try
+    {
+      ImagePlus imp = readImage(job.body);
+      job.body = null;
+      if (imp == null)
+      {
+        finish(job, 400, "Could not read the page; send a TIFF, PNG, JPEG, GIF or BMP file\n");
+        return;
+      }
+      if (imp.getStackSize() > 1)
+      {
+        finish(job, 400, "Send one page per request, not a stack of " + imp.getStackSize() + "\n");
+        return;
+      }
+      PuzzleEngine pageEngine = job.thresholdMethod >= PageThreshold.ISODATA ? thresholdEngines[job.thresholdMethod] : engine;
+      PuzzleEngine.Page page = pageEngine.process(imp, null);
+      String answer = job.glyphs ? getGlyphs(page) : getClusters(page);
+      PipelineMetrics.getInstance().add(page.metrics);
+      finish(job, 200, answer);
+    } catch (Exception e)
+    {
+      failed.incrementAndGet();
+      finish(job, 500, "Error: " + e + "\n");
+    }
+  }
+
+  /**
+   * Hand a job its answer and record its latencies.
+   */
+
+  protected void finish(Job job, int status, String answer) {
+    job.status = status;
+    job.answer = answer;
+    job.finished = System.nanoTime();
+    if (job.started == 0)
+    {
+      job.started = job.finished;
+    }
+    queued.add(job.started - job.received);
+    processing.add(job.finished - job.started);
+    total.add(job.finished - job.received);
+    job.done.countDown();
+  }
+
+  /**
+   * Decode a page: TIFF files with ImageJ, the other formats with ImageIO.
+   */
+
+  protected static ImagePlus readImage(byte[] body) throws IOException {
+    boolean tiff = body.length > 4 && ((body[0] == 'I' && body[1] == 'I' && body[2] == 42 && body[3] == 0)
+      || (body[0] == 'M' && body[1] == 'M' && body[2] == 0 && body[3] == 42));
+    if (tiff)
+    {
+      return new Opener().deserialize(body);
+    }
+    java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(new ByteArrayInputStream(body));
+    return image != null ? new ImagePlus("page", image) : null;
+  }
+
+  /**
+   * The rectangles around all clusters.
+   */
+
+  protected static String getClusters(PuzzleEngine.Page page) {
+    StringBuilder text = new StringBuilder("x\ty\twidth\theight\n");
+    for (int i = 0; i < page.x.length; i++)
+    {
+      text.append((int) page.x[i]).append('\t').append((int) page.y[i]).append('\t')
+        .append((int) page.widths[i]).append('\t').append((int) page.heights[i]).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * The rectangles that look like letters, with their letters.
+   */
+
+  protected static String getGlyphs(PuzzleEngine.Page page) {
+    StringBuilder text = new StringBuilder("x\ty\twidth\theight\tbw\tgray\n");
+    GlyphExtractor extractor = new GlyphExtractor();
+    byte[] bits = new byte[GlyphDatasetWriter.BW_SIZE];
+    for (int i = 0; i < page.x.length; i++)
+    {
+      if (!page.looksLikeLetter(i))
+      {
+        continue;
+      }
+      page.extract(i, extractor);
+      extractor.packBw(bits, 0);
+      text.append((int) page.x[i]).append('\t').append((int) page.y[i]).append('\t')
+        .append((int) page.widths[i]).append('\t').append((int) page.heights[i]).append('\t');
+      appendHex(text, bits);
+      text.append('\t');
+      appendHex(text, extractor.getGray());
+      text.append('\n');
+    }
+    return text.toString();
+  }
+
+  protected static void appendHex(StringBuilder text, byte[] bytes) {
+    for (byte b : bytes)
+    {
+      text.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+    }
+  }
+
+  /**
+   * @return String The counts of the requests, the latencies in milliseconds, and the time spent in each stage of the pipeline
+   */
+
+  public String getSummary() {
+    long n = batches.get();
+    StringBuilder summary = new StringBuilder();
+    summary.append("accepted\t").append(accepted.get()).append('\n');
+    summary.append("rejected\t").append(rejected.get()).append('\n');
+    summary.append("failed\t").append(failed.get()).append('\n');
+    summary.append("timed out\t").append(timedOut.get()).append('\n');
+    summary.append("queued\t").append(queue.size()).append('\n');
+    summary.append("batches\t").append(n).append('\n');
+    summary.append("mean batch size\t").append(String.format(Locale.ROOT, "%.2f", n > 0 ? (double) batchedJobs.get() / n : 0.0)).append('\n');
+    summary.append("\nlatency\tcount\tmean\tp50\tp95\tp99\tmax\n");
+    summary.append(queued.getSummary("queue"));
+    summary.append(processing.getSummary("process"));
+    summary.append(total.getSummary("total"));
+    summary.append('\n').append(PipelineMetrics.getInstance().getSummary());
+    return summary.toString();
+  }
+}
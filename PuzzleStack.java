@@ -0,0 +1,227 @@
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+  /**
+   * Runs the Puzzle_Expert pipeline on every slice of a stack at the same time, e.g. on all pages of a multi-page TIFF
+   * of a puzzle book.
+   *
+   * Each slice gets its own Puzzle_Expert with the settings of the one that owns the stack, see Puzzle_Expert.newPage(),
+   * so the slices share nothing but the cluster cache and the dataset. The slices are rotated, thresholded, searched for
+   * clusters and saved on a fixed pool with up to one thread per slice, so with enough processors a stack takes about as
+   * long as its slowest slice. The letters of slice s are saved in tmp/[stack name]-[s], the same as a page of its own.
+   */
+
+public class PuzzleStack {
+
+  //the plugin object whose settings the slices use, and the ones of the slices
+  protected Puzzle_Expert owner;
+  protected Puzzle_Expert[] pages;
+
+  //the number of slices processed at the same time
+  protected int threads;
+
+  /**
+   * Constructor.
+   *
+   * @param Puzzle_Expert owner The plugin object whose settings are used for every slice
+   * @param int threads The largest number of slices processed at the same time
+   */
+
+  public PuzzleStack(Puzzle_Expert owner, int threads) {
+    this.owner = owner;
+    this.threads = threads;
+  }
+
+  /**
+   * Get the name a slice is saved under: the name of the stack and the slice number, padded so that the directories
+   * are listed in order.
+   *
+   * @param String title The short title of the stack
+   * @param int slice The slice number, starting at 1
+   * @param int slices The number of slices
+   * @return String The name
+   */
+
+  public static String getPageTitle(String title, int slice, int slices) {
+    return String.format("%s-%0" + String.valueOf(slices).length() + "d", title, slice);
+  }
+
+  /**
+   * Detect the clusters of every slice, without creating any windows.
+   *
+   * @param ImagePlus imp The stack
+   */
+
+  public void process(ImagePlus imp) throws InterruptedException {
+    final ImageStack stack = imp.getStack();
+    final String title = imp.getShortTitle();
+    final int n = stack.getSize();
+    pages = new Puzzle_Expert[n];
+    for (int s = 0; s < n; s++)
+    {
+      pages[s] = owner.newPage();
+    }
+
+    forEachPage(new PageTask() {
+      public void run(int s) {
+        ImagePlus page = new ImagePlus(getPageTitle(title, s + 1, n), stack.getProcessor(s + 1));
+        pages[s].setupHeadless(page);
+        pages[s].process(page.getProcessor());
+      }
+    });
+  }
+
+  /**
+   * Save the letters of every slice the way the batch mode does: again from its results.txt if it has one, otherwise
+   * every rectangle that looks like a letter, unlabeled.
+   */
+
+  public void saveAllLetters() throws InterruptedException {
+    owner.openDataset();
+    try
+    {
+      forEachPage(new PageTask() {
+        public void run(int s) {
+          pages[s].setDataset(owner.dataset);
+          if (!pages[s].saveLettersFromResults())
+          {
+            pages[s].saveAllLetters();
+          }
+        }
+      });
+    } finally
+    {
+      owner.closeDataset();
+    }
+  }
+
+  /**
+   * Save the letters the user has assigned in the annotation window of the stack.
+   *
+   * The rows of each slice are saved like the results of a page of their own, with their own results.txt; slices
+   * without any rows are left alone, so their letters saved before are kept. The whole table, with the slice column,
+   * is saved as tmp/[stack name]/results.txt. Runs on the calling thread; each slice writes its images on several
+   * threads, see Puzzle_Expert.saveLettersWithWriter().
+   *
+   * @param AnnotationTable annotations The positions, letters and slices
+   * @param String text The contents of the annotation window
+   */
+
+  public void saveLetters(AnnotationTable annotations, String text) {
+    File dir = new File("tmp/" + owner.imageTitle);
+    if (!dir.exists() && !dir.mkdirs())
+    {
+      owner.reportError(dir.getPath() + ": could not create the directory");
+    }
+    owner.saveResultsText(text);
+
+    owner.openDataset();
+    try
+    {
+      for (int s = 0; s < pages.length; s++)
+      {
+        AnnotationTable slice = annotations.getSliceTable(s + 1);
+        if (slice.size() > 0)
+        {
+          pages[s].setDataset(owner.dataset);
+          pages[s].saveLettersWithWriter(slice, slice.getText());
+        }
+      }
+    } finally
+    {
+      owner.closeDataset();
+    }
+  }
+
+  /**
+   * Create the overlay of the results window of the stack, which shows VIEWS images per slice: the rectangles of each
+   * slice are put on the second and third image of the slice.
+   *
+   * @param int views The number of images per slice in the results window
+   * @return Overlay The rectangles of all slices
+   */
+
+  public Overlay getOverlay(int views) {
+    Overlay overlay = new Overlay();
+    for (int s = 0; s < pages.length; s++)
+    {
+      pages[s].minRectangleSize = owner.minRectangleSize;
+      pages[s].rectangleColor = owner.rectangleColor;
+      pages[s].addRectangles();
+      for (Roi rectangle : pages[s].rectangles.toArray())
+      {
+        for (int view = 1; view < views; view++)
+        {
+          Roi copy = (Roi) rectangle.clone();
+          copy.setPosition(s * views + view + 1);
+          overlay.add(copy);
+        }
+      }
+    }
+    return overlay;
+  }
+
+  /**
+   * @return Array The plugin objects of the slices, in order
+   */
+
+  public Puzzle_Expert[] getPages() {
+    return pages;
+  }
+
+  /**
+   * A step that is run for every slice.
+   */
+
+  protected interface PageTask {
+    void run(int s);
+  }
+
+  /**
+   * Run a step for every slice on the pool and wait for all of them.
+   *
+   * A slice that fails does not stop the others; the first failure is thrown once they are all done.
+   */
+
+  protected void forEachPage(final PageTask task) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pages.length)));
+    ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+    try
+    {
+      for (int s = 0; s < pages.length; s++)
+      {
+        final int slice = s;
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            task.run(slice);
+          }
+        }));
+      }
+      RuntimeException failure = null;
+      for (int s = 0; s < futures.size(); s++)
+      {
+        try
+        {
+          futures.get(s).get();
+        } catch (ExecutionException e)
+        {
+          if (failure == null)
+          {
+            failure = new RuntimeException("slice " + (s + 1) + ": " + e.getCause(), e.getCause());
+          }
+        }
+      }
+      if (failure != null)
+      {
+        throw failure;
+      }
+    } finally
+    {
+      pool.shutdown();
+    }
+  }
+}
@@ -3,13 +3,16 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.io.FileSaver;
 import ij.measure.*;
 import java.util.Random;
 import java.awt.event.*;
 import ij.text.TextWindow; 
 import ij.text.TextPanel;
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
 
   /**
    * Plugin converts an image to black and white and draws a rectangle around each shape, then the user assigns letters to rectangles manually in a window
@@ -18,12 +21,53 @@ import java.util.HashMap;
 
 public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, MouseListener, KeyListener, ImageListener {
 
-  protected int w, h, u, v, p, i, yTopBorder, yBottomBorder, xLeftBorder, xRightBorder,
-    r, g, b, rColor;
+  protected int w, h;
   
   protected float[] x, y, widths, heights;
   
-  protected ImageProcessor ipOrig, ipOrigWithRectangles, ipNew, ipNewWithRectangles, ipNewBw;
+  //the engines that can find the clusters: the base class method, a single pass of union-find labeling,
+  //or union-find labeling of stripes of the image in parallel
+  public static final int PARTICLE_ANALYZER = 0, UNION_FIND = 1, TILED = 2;
+  protected int clusterEngine = PARTICLE_ANALYZER;
+  
+  //thresholds and labels the image in parallel for the TILED engine, created when it is first needed
+  protected TiledClusterDetector tiledClusterDetector;
+  
+  //the results of the page from the PuzzleEngine; the fields below that describe the page are copied from it
+  protected PuzzleEngine.Page page;
+  
+  //smallest and largest cluster size in pixels
+  protected double minSize, maxSize;
+  //and the options and circularity limits, which are part of the cache key, and the measurements, for newPage()
+  protected int options, measurements;
+  protected double minCirc, maxCirc;
+
+  //where the clusters of pages that have been seen before are kept, or null
+  protected ClusterCache clusterCache;
+  
+  //cuts the letters out of the image, reusing its buffers for every letter, and how it scales them
+  protected int glyphScaling = GlyphExtractor.BILINEAR;
+  protected GlyphExtractor glyphExtractor = new GlyphExtractor();
+  
+  //the rotated grayscale page with the threshold set
+  protected ImageProcessor ipNew;
+
+  //how the page is thresholded
+  protected PageThreshold pageThreshold = new PageThreshold(PageThreshold.ISODATA);
+  
+  //the rectangles around the clusters, shown on top of the results images, and how they are shown
+  protected Overlay rectangles;
+  protected Color rectangleColor = Color.blue;
+  protected boolean rectanglesVisible = true;
+  protected int minRectangleSize = 5;
+  
+  //results with more pixels than this are shown with the TileCanvas, which draws only the visible tiles of a pyramid
+  //kept in at most tileCacheBytes, instead of an image per view
+  protected long tileViewerPixels = 50000000L;
+  protected long tileCacheBytes = 64L << 20;
+  
+  //the black and white version of the page
+  protected BinaryMask mask;
 
   ImagePlus imRes;
 
@@ -36,30 +80,184 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
   char keyChar;
   int keyCode;
   
-  int sliceNumber = 1;
+  //the results window shows VIEWS images per page: the original, the one with the rectangles and the black and white one
+  static final int VIEWS = 3;
+  
+  //guesses the letters to fill in the key mapping table before the user starts, unless switched off with "no-classify";
+  //per page, the line of the table with the guess of each rectangle, or -1
+  protected boolean classify = true;
+  protected GlyphClassifier classifier;
+  protected int[][] guessLines;
+  
+  //set when all slices of a stack are processed at once, and then the pages of the slices
+  protected boolean stackMode;
+  protected PuzzleStack stackPages;
   
   String imageTitle;
   
+  //write a line to the log window for every saved letter; the batch mode turns this off
+  boolean logLetters = true;
+  
+  //how the letters are saved: as PNG files, appended to a glyph dataset file, or both (OUTPUT_PNG | OUTPUT_DATASET)
+  public static final int OUTPUT_PNG = 1, OUTPUT_DATASET = 2;
+  protected int outputFormat = OUTPUT_PNG;
+  
+  //the dataset the letters are appended to; ownDataset is set when this object opened it and has to close it
+  protected GlyphDatasetWriter dataset;
+  protected boolean ownDataset;
+  
+  //writes the PNG files in the background while the letters are being saved with saveLettersInBackground()
+  protected volatile AsyncGlyphWriter pngWriter;
+  
+  //the packed black and white letter, reused for every letter
+  protected byte[] bwBits = new byte[GlyphDatasetWriter.BW_SIZE];
+  
+  //name of the glyphs saved without a letter assigned to them
+  public static final String UNLABELED = "_";
+
+  //time, CPU time and allocations of each stage for this page, see PipelineMetrics
+  protected PipelineMetrics.Run metrics = new PipelineMetrics.Run();
+
+  //what happened to each letter, shown in the log window or written to tmp/[big image name]/events.log at the end of the page
+  protected EventLog events = new EventLog();
+  protected String savedFormat;
+  
+  //what the last saveLetters() did: letters written (as images, or into the dataset without images), letters whose
+  //images were already saved, and letters that are gone and whose images were deleted
+  protected int lettersWritten, lettersUnchanged, lettersDeleted;
+  
   /**
    * Constructor.
    *    
-   * Initialize the base class with pre-set options and measurements.       
+   * Initialize the base class with pre-set options and measurements, and a results table of its own.       
    */ 
 
   public Puzzle_Expert() {
 
-    this(128, 513, Analyzer.getResultsTable(), 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+    this(128, 513, new ResultsTable(), 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
            
   }
 
   /**
    * Constructor with input parameters.
    * 
-   * See base class for explanation.     
+   * See base class for explanation. The clusters are found by a PuzzleEngine with these settings, which gives every
+   * page a results table of its own, so rt is not used.     
    */
 
   public Puzzle_Expert(int options, int measurements, ResultsTable rt, double minSize, double maxSize, double minCirc, double maxCirc) {
     super(options, measurements, rt, minSize, maxSize, minCirc, maxCirc);
+    //the base class keeps these private, but the union-find engine needs the size limits too
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.options = options;
+    this.measurements = measurements;
+    this.minCirc = minCirc;
+    this.maxCirc = maxCirc;
+  }
+
+  /**
+   * Select how the clusters are found.
+   * 
+   * @param int clusterEngine PARTICLE_ANALYZER (the base class method, the default), UNION_FIND or TILED         
+   */
+
+  public void setClusterEngine(int clusterEngine) {
+    this.clusterEngine = clusterEngine;
+  }
+
+  /**
+   * Select how the page is thresholded.
+   * 
+   * @param PageThreshold pageThreshold The threshold method, ISODATA by default         
+   */
+
+  public void setPageThreshold(PageThreshold pageThreshold) {
+    this.pageThreshold = pageThreshold;
+  }
+
+  /**
+   * Keep the clusters of each page in a cache, so that they are not searched again when the same page is opened again.
+   * 
+   * @param ClusterCache clusterCache The cache, or null to always search the clusters         
+   */
+
+  public void setClusterCache(ClusterCache clusterCache) {
+    this.clusterCache = clusterCache;
+  }
+
+  /**
+   * Select how the letters are saved.
+   * 
+   * @param int outputFormat OUTPUT_PNG (the default), OUTPUT_DATASET or both combined with |         
+   */
+
+  public void setOutputFormat(int outputFormat) {
+    this.outputFormat = outputFormat;
+  }
+
+  /**
+   * Select how the letters are scaled to 12x12.
+   * 
+   * @param int glyphScaling GlyphExtractor.BILINEAR (the default, the same as resize(12)) or GlyphExtractor.AREA_AVERAGE         
+   */
+
+  public void setGlyphScaling(int glyphScaling) {
+    this.glyphScaling = glyphScaling;
+    glyphExtractor = new GlyphExtractor(GlyphExtractor.SIZE, glyphScaling);
+  }
+
+  /**
+   * Set the dataset the letters are appended to with OUTPUT_DATASET; by default /tmp/glyphs.dat is used.
+   * The dataset is not closed by this object, so it can be shared by several pages.
+   * 
+   * @param GlyphDatasetWriter dataset The dataset         
+   */
+
+  public void setDataset(GlyphDatasetWriter dataset) {
+    this.dataset = dataset;
+  }
+
+  /**
+   * Set the detector used by the TILED engine, e.g. to run it on a particular ForkJoinPool.
+   * 
+   * @param TiledClusterDetector tiledClusterDetector The detector         
+   */
+
+  public void setTiledClusterDetector(TiledClusterDetector tiledClusterDetector) {
+    this.tiledClusterDetector = tiledClusterDetector;
+  }
+
+  /**
+   * @return TiledClusterDetector The detector used by the TILED engine, created on the common ForkJoinPool if none was set         
+   */
+
+  protected TiledClusterDetector getTiledClusterDetector() {
+    if (tiledClusterDetector == null)
+    {
+      tiledClusterDetector = new TiledClusterDetector();
+    }
+    return tiledClusterDetector;
+  }
+
+  /**
+   * Create a plugin object for another page with the same settings, e.g. for a slice of a stack.
+   * 
+   * It has its own results table and shares the cluster cache, the dataset and the tiled detector with this one.
+   * 
+   * @return Puzzle_Expert The new object, to be set up with setupHeadless()         
+   */
+
+  public Puzzle_Expert newPage() {
+    Puzzle_Expert page = new Puzzle_Expert(options, measurements, new ResultsTable(), minSize, maxSize, minCirc, maxCirc);
+    page.clusterEngine = clusterEngine;
+    page.pageThreshold = pageThreshold;
+    page.clusterCache = clusterCache;
+    page.outputFormat = outputFormat;
+    page.setGlyphScaling(glyphScaling);
+    page.dataset = dataset;
+    page.tiledClusterDetector = getTiledClusterDetector();
+    return page;
   }
 
 
@@ -76,23 +274,106 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
   //@Override 
   public int setup(String arg, ImagePlus imp) {
     
-	  imageTitle = imp.getShortTitle();
-	  
     //if no image, exit
     if (imp==null)
 			{IJ.noImage();return DONE;}
 
-    //reset results table to erase past data
-    rt.reset();
+	  imageTitle = imp.getShortTitle();
+    
+    //the argument in IJ_Props.txt / plugins.config can select the union-find or the tiled cluster engine
+    if (arg != null && arg.contains("union-find"))
+    {
+      clusterEngine = UNION_FIND;
+    } else if (arg != null && arg.contains("tiled"))
+    {
+      clusterEngine = TILED;
+    }
+    //and the threshold method, IsoData unless "otsu" or "sauvola" is given
+    if (arg != null && arg.contains("otsu"))
+    {
+      pageThreshold = new PageThreshold(PageThreshold.OTSU);
+    } else if (arg != null && arg.contains("sauvola"))
+    {
+      pageThreshold = new PageThreshold(PageThreshold.SAUVOLA);
+    }
+    //and whether the letters are saved into the dataset file
+    if (arg != null && arg.contains("dataset"))
+    {
+      outputFormat = arg.contains("png") ? OUTPUT_PNG | OUTPUT_DATASET : OUTPUT_DATASET;
+    }
+    //and whether the results are always or never shown with the tile viewer, instead of depending on their size
+    if (arg != null && arg.contains("no-tiles"))
+    {
+      tileViewerPixels = Long.MAX_VALUE;
+    } else if (arg != null && arg.contains("tiles"))
+    {
+      tileViewerPixels = 0;
+    }
+    //and whether the letters are scaled by area averaging instead of bilinear interpolation
+    if (arg != null && arg.contains("area-average"))
+    {
+      setGlyphScaling(GlyphExtractor.AREA_AVERAGE);
+    }
+    //the letters are guessed from the ones saved before, unless "no-classify" is given
+    if (arg != null && arg.contains("no-classify"))
+    {
+      classify = false;
+    }
+    //the clusters of a page that is annotated again come from the cache in tmp/cache
+    if (arg == null || !arg.contains("no-cache"))
+    {
+      clusterCache = new ClusterCache(new File(ClusterCache.DEFAULT_DIR), ClusterCache.DEFAULT_MAX_BYTES);
+    }
 
     //we have to convert the image to grayscale right away or the base class will reject it
+    metrics.start(PipelineMetrics.SETUP);
     ImageConverter ic = new ImageConverter(imp);
     ic.convertToGray8();
+    metrics.stop(PipelineMetrics.SETUP);
   
     int flags = super.setup(arg, imp);
+    //the base class asks whether to process all slices of a stack; if so, run() gets called once and processes them
+    //all at the same time, instead of being called for one slice after the other
+    if ((flags & DOES_STACKS) != 0 && imp.getStackSize() > 1)
+    {
+      stackMode = true;
+      flags &= ~DOES_STACKS;
+    }
     return flags;
   }
 
+  /**
+   * Setup the plugin without the base class, which would ask questions in dialogs.
+   *    
+   * Used by the headless batch mode: converts the image to grayscale.
+   *    
+   * @param ImagePlus img The image object of the page
+   */ 
+
+  public void setupHeadless(ImagePlus imp) {
+
+    imageTitle = imp.getShortTitle();
+    logLetters = false;
+    this.imp = imp;
+    
+    metrics.start(PipelineMetrics.SETUP);
+    ImageConverter ic = new ImageConverter(imp);
+    ic.convertToGray8();
+    metrics.stop(PipelineMetrics.SETUP);
+  }
+
+  /**
+   * Setup the plugin for a page that is processed straight from its file, without creating any windows.
+   *    
+   * @param MappedPage source The page     
+   */
+
+  public void setupHeadless(MappedPage source) {
+
+    imageTitle = source.getShortTitle();
+    logLetters = false;
+  }
+
   /**
    * Run the plugin.
    *    
@@ -106,48 +387,16 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
    @Override 
 	public void run(ImageProcessor ip) {
     
-    ip = ip.rotateRight();
-    
-    //copy the image processor to our global object so we don't destroy the original
-    ipNew = ip.duplicate();
-    
-    //set threshold & convert the image to black-or-white only
-    ipNew.setAutoThreshold("IsoData", false, ImageProcessor.BLACK_AND_WHITE_LUT);
-    /*//manual method of setting threshold
-    int[] his = ipNew.getHistogram();
-    int g = findThreshold(his);
-    ipNew.setThreshold(0.0, (double) g, ImageProcessor.BLACK_AND_WHITE_LUT);*/
-                      
-    //update the global image object
-    imp = new ImagePlus("result", ipNew);
-
-    //calculate width and height of image
-	  w = ipNew.getWidth();
-	  h = ipNew.getHeight(); 
-
-    //run the base class method to calculate the positions of the rectangles around each cluster
-    getClusters();     
- 
-    //create duplicates for display
-    //the original image
-    ipOrig = ip.duplicate().convertToRGB();
-    //a copy of the original image that we will draw rectangles on
-    ipOrigWithRectangles = ipOrig.duplicate();
-    //a black-and-white only (binary) copy of the image, which we will draw rectangles on 
-    ipNewWithRectangles = ipNew.convertToRGB();
-    //another black-and-white only (binary) copy, without rectangles, for creating the individual letter images
-    ipNewBw = ipNewWithRectangles.duplicate();
+    if (stackMode)
+    {
+      runStack();
+      return;
+    }
     
-    //get x "start values" of rectangles (upper left-hand corner)
-    x = rt.getColumn(11);
-    //get y "start values" of rectangles (upper left-hand corner)
-    y = rt.getColumn(12);
-    //get widths of rectangles
-    widths = rt.getColumn(13);
-    //get heights of rectangles
-    heights = rt.getColumn(14);
+    //detect the clusters without touching the display
+    process(ip);
     
-    //add a rectangle around each cluster
+    //add a rectangle around each cluster, as an overlay on top of the images
     addRectangles();
     
     //display the results
@@ -155,16 +404,101 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
 	}
 
   /**
-   * Find clusters of pixels in the image and store the positions of the rectangles around each one
-   * in the rt (ResultsTable) object.         
+   * Run the plugin on all slices of the stack at the same time, see PuzzleStack, and show them in one results window
+   * with one key mapping table, which has the slice number of every letter.
    */
-  public void getClusters()
+
+  protected void runStack()
   {
-		slice++;
-		if (imp.getStackSize()>1 && processStack)
-			imp.setSlice(slice);
-	  
-		analyze(imp, ipNew);
+    stackPages = new PuzzleStack(this, Runtime.getRuntime().availableProcessors());
+    try
+    {
+      stackPages.process(imp);
+    } catch (InterruptedException e)
+    {
+      return;
+    } catch (RuntimeException e)
+    {
+      IJ.error("Puzzle Expert", imageTitle + ", " + e.getMessage());
+      return;
+    }
+    
+    //the results window is the size of the rotated slices
+    w = stackPages.getPages()[0].w;
+    h = stackPages.getPages()[0].h;
+    addRectangles();
+    displayResults();
+  }
+
+  /**
+   * Run the detection part of the plugin without creating any windows.
+   *    
+   * Rotates and thresholds the image and finds the clusters with the PuzzleEngine, and fills the x, y, widths and
+   * heights arrays, so that the letters can be saved afterwards. Used by run() and by the headless batch mode.
+   *    
+   * @param ImageProcessor ip The grayscale image processor of the page       
+   */
+
+  public void process(ImageProcessor ip)
+  {
+    setPage(getEngine().process(ip, metrics));
+  }
+
+  /**
+   * Run the detection part of the plugin on a page straight from its file, without creating any windows.
+   *    
+   * Only the letters can be saved afterwards; there is no image of the page to show, see PuzzleEngine.process(MappedPage, ...).
+   *    
+   * @param MappedPage source The page       
+   */
+
+  public void process(MappedPage source)
+  {
+    setPage(getEngine().process(source, metrics));
+  }
+
+  /**
+   * Take over the results of a page.
+   */
+
+  protected void setPage(PuzzleEngine.Page page)
+  {
+    this.page = page;
+    
+    //the rest of the plugin works with the results of the page
+    ipNew = page.ipNew;
+    w = page.w;
+    h = page.h;
+    mask = page.mask;
+    x = page.x;
+    y = page.y;
+    widths = page.widths;
+    heights = page.heights;
+  }
+
+  /**
+   * Get an engine with the settings of this object, for finding the clusters.
+   * 
+   * @return PuzzleEngine The engine         
+   */
+
+  public PuzzleEngine getEngine()
+  {
+    PuzzleEngine engine = new PuzzleEngine(options, measurements, minSize, maxSize, minCirc, maxCirc);
+    engine.setClusterEngine(clusterEngine);
+    engine.setTiledClusterDetector(getTiledClusterDetector());
+    engine.setPageThreshold(pageThreshold);
+    engine.setClusterCache(clusterCache);
+    return engine;
+  }
+
+  /**
+   * @return PuzzleEngine.Page The results of the page, after process()         
+   */
+
+  public PuzzleEngine.Page getPage()
+  {
+    return page;
   }
   
   /**
@@ -181,87 +515,180 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
 
   /**
    * Add the rectangles around each cluster to the image.
+   * 
+   * The rectangles are drawn as an overlay, so the pixels of the images are not touched. The same overlay
+   * is shared by all images of the results stack.
    */
   protected void addRectangles()
   {
-     //set rectangle color
-     r = 0; g = 0; b = 255;
-     //convert the r, g, b components back to an integer
-     rColor = ((r & 0xff) << 16) +
-            ((g & 0xff) << 8) +
-            (b & 0xff);
-          //update the pixel in the color image
-
-     //draw the rectangles
-     for (i=0; i<x.length; i++)
+     //the tile viewer draws the visible rectangles itself
+     if (useTileViewer())
+     {
+       rectangles = new Overlay();
+       return;
+     }
+     
+     //the rectangles of all slices of a stack, each one on its own images
+     if (stackPages != null)
+     {
+       rectangles = stackPages.getOverlay(VIEWS);
+       return;
+     }
+     
+     metrics.start(PipelineMetrics.RECTANGLES);
+     rectangles = new Overlay();
+     
+     //create the rectangles
+     for (int i = 0; i < x.length; i++)
      {
-        if (heights[i] > 5 && widths[i] > 5) //arbitrary minimum dimensions for the rectangle
+        if (isRectangleShown(i, minRectangleSize))
         {
-          //calculate the x and y positions of the borders of the rectangle
-          yTopBorder = (int) y[i];
-          yBottomBorder = yTopBorder + (int) heights[i];
-          xLeftBorder = (int) x[i];
-          xRightBorder = xLeftBorder + (int) widths[i];
-        
-          if (yBottomBorder >= h || xRightBorder > w)
-          {
-            continue;
-          }
-        
-          //draw the top and bottom borders of the rectangle
-          for(u = (int) x[i]; u < (int) (x[i] + widths[i]); u++)
-          {
-            //draw top border
-            ipNewWithRectangles.set(u, yTopBorder, rColor);
-            ipOrigWithRectangles.set(u, yTopBorder, rColor);
-            
-            //draw bottom border            
-            ipNewWithRectangles.set(u, yBottomBorder, rColor);
-            ipOrigWithRectangles.set(u, yBottomBorder, rColor);  
-          }
-          
-          //draw the left and right borders of the rectangle
-          for(v = (int) y[i]; v < (int) (y[i] + heights[i]); v++)
-          {
-            //draw top border
-            ipNewWithRectangles.set(xLeftBorder, v, rColor);
-            ipOrigWithRectangles.set(xLeftBorder, v, rColor);
-            
-            //draw bottom border
-            ipNewWithRectangles.set(xRightBorder, v, rColor);
-            ipOrigWithRectangles.set(xRightBorder, v, rColor);  
-          }
+          Roi rectangle = new Roi((int) x[i], (int) y[i], (int) widths[i], (int) heights[i]);
+          rectangle.setStrokeColor(rectangleColor);
+          rectangles.add(rectangle);
         }
      }
+     metrics.stop(PipelineMetrics.RECTANGLES);
+  }
+
+  /**
+   * Check whether the rectangle around a cluster is shown.
+   * 
+   * @param int i Index of the rectangle
+   * @param int minSize The minimum width and height
+   * @return boolean True if it is larger than the minimum and within the image         
+   */
+
+  protected boolean isRectangleShown(int i, int minSize)
+  {
+    //minimum dimensions for the rectangle
+    if (heights[i] <= minSize || widths[i] <= minSize)
+    {
+      return false;
+    }
+    //skip the rectangles whose bottom or right border would be outside the image
+    return (int) y[i] + (int) heights[i] < h && (int) x[i] + (int) widths[i] <= w;
+  }
+
+  /**
+   * @return boolean True if the results are shown with the TileCanvas, because they are too large to show as images         
+   */
+
+  protected boolean useTileViewer()
+  {
+    int pages = stackPages != null ? stackPages.getPages().length : 1;
+    return (long) w * h * pages > tileViewerPixels;
+  }
+
+  /**
+   * Show or hide the rectangles.
+   * 
+   * @param boolean visible True to show the rectangles         
+   */
+
+  public void setRectanglesVisible(boolean visible)
+  {
+    rectanglesVisible = visible;
+    updateRectangles();
+  }
+
+  /**
+   * Change the color of the rectangles.
+   * 
+   * @param Color color The new color         
+   */
+
+  public void setRectangleColor(Color color)
+  {
+    rectangleColor = color;
+    if (rectangles != null)
+    {
+      rectangles.setStrokeColor(color);
+      updateRectangles();
+    }
+  }
+
+  /**
+   * Only show the rectangles that are wider and higher than a minimum size.
+   * 
+   * @param int size The minimum width and height in pixels (5 by default)         
+   */
+
+  public void setMinRectangleSize(int size)
+  {
+    minRectangleSize = size;
+    addRectangles();
+    if (imRes != null)
+    {
+      imRes.setOverlay(rectangles);
+    }
+    updateRectangles();
+  }
+
+  /**
+   * Show the rectangles on the results images, except on the original image (the first of each page) or when they are switched off.         
+   */
+
+  protected void updateRectangles()
+  {
+    if (imRes != null)
+    {
+      imRes.setHideOverlay(!rectanglesVisible || (imRes.getCurrentSlice() - 1) % VIEWS == 0);
+      //the tile viewer has no overlay
+      if (canvas instanceof TileCanvas)
+      {
+        canvas.repaint();
+      }
+    }
   }
 
   /**
    * Display the images.
+   * 
+   * Each page has VIEWS images in the results stack; a stack has all of its slices one after the other.
    */
   protected void displayResults()
   {
-    //create a copy of the original image
-    ImagePlus imOrig = new ImagePlus("original", ipOrig);
-
-    //create an image stack
-    ImageStack stack = imOrig.getStack();
+    Puzzle_Expert[] pages = stackPages != null ? stackPages.getPages() : new Puzzle_Expert[] {this};
+    boolean tiles = useTileViewer();
     
-    //add the image with the rectangles to the stack
-    stack.addSlice("with rectangles", ipOrigWithRectangles);
+    //create an image stack
+    ImageStack stack = new ImageStack(w, h);
     
-    //add the black and white version with the rectangles to the stack
-    stack.addSlice("black & white", ipNewWithRectangles);
+    for (int s = 0; s < pages.length; s++)
+    {
+      String suffix = stackPages != null ? " " + (s + 1) : "";
+      
+      //the original image, without the threshold lookup table
+      stack.addSlice("original" + suffix, new ByteProcessor(w, h, (byte[]) pages[s].ipNew.getPixels()));
+      
+      //the image with the rectangles shows the same pixels, the rectangles come from the overlay
+      stack.addSlice("with rectangles" + suffix, pages[s].ipNew.getPixels());
+      
+      //add the black and white version to the stack; the tile viewer draws it from the mask
+      stack.addSlice("black & white" + suffix, tiles ? pages[s].ipNew.getPixels() : pages[s].mask.toByteProcessor());
+    }
 
-    //display the stack: the user presses keyboard left or right to toggle the images
+    //display the stack: the user presses keyboard left or right to toggle the images, page up or down to change the slice
     imRes = new ImagePlus("results", stack);
-    imRes.show();
+    if (tiles)
+    {
+      //the window keeps the size ImageJ gives it, which fits the screen
+      new StackWindow(imRes, new TileCanvas(imRes, this, pages, tileCacheBytes));
+      win = imRes.getWindow();
+    } else
+    {
+      imRes.setOverlay(rectangles);
+      updateRectangles();
+      imRes.show();
+      
+      win = imRes.getWindow();
+      //due to image rotation, change the dimensions of the window
+      Rectangle bounds = win.getBounds();
+      win.setLocationAndSize(bounds.x, bounds.y, 2*bounds.height, 2*bounds.width);
+    }
     
     //add mouse onclick events
-    win = imRes.getWindow();
-    //due to image rotation, change the dimensions of the window
-    Rectangle bounds = win.getBounds();
-    win.setLocationAndSize(bounds.x, bounds.y, 2*bounds.height, 2*bounds.width);
-    
     canvas = win.getCanvas();
 
     win.addMouseListener(this);
@@ -273,25 +700,182 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
     win.addKeyListener(this);
     canvas.addKeyListener(this);
     ImagePlus.addImageListener(this);
+    //the letters saved before are the examples the letters of these pages are guessed from
+    if (classify && classifier == null)
+    {
+      classifier = GlyphClassifier.load(new File("tmp"));
+    }
+    boolean guesses = classifier != null && classifier.size() > 0;
+    
     //add window to save data from onclick and keyboard events
     String title = "Key mapping table";
-    String headings = "x\ty\tletter\t";
+    //with a stack, the letters have the slice they are on as well, and the guessed letters have a confidence
+    String headings = (stackPages != null ? "slice\t" : "") + "x\ty\tletter\t" + (guesses ? "confidence\t" : "");
     tw = new LetterTextWindow(title, headings, "", 400, 500, this);
+    if (guesses)
+    {
+      addGuesses(pages);
+    }
   }
-  
-  /**
-   * Saves the position of the last place the user clicked on with the mouse.         
-   */
-  
-  protected class CurrentSelectedPosition
-  {
-    public int x = 0;
-    public int y = 0;
-  };
 
   /**
-   * Onclick event: when user clicks, save the coordinate position, and the next time they press
-   * a letter key, print the coordinates and that letter to the window.
+   * Fill the key mapping table with the guessed letters of the rectangles that look like letters, the least confident
+   * guesses first, so that the user only has to check the top of the table. When the user assigns a letter to a rectangle,
+   * it replaces the line of the guess.
+   * 
+   * @param Array pages The pages of the results window         
+   */
+
+  protected void addGuesses(Puzzle_Expert[] pages)
+  {
+    long start = System.currentTimeMillis();
+    ArrayList<GlyphClassifier.Prediction> predictions = new ArrayList<GlyphClassifier.Prediction>();
+    ArrayList<int[]> rectangles = new ArrayList<int[]>();
+    guessLines = new int[pages.length][];
+    for (int s = 0; s < pages.length; s++)
+    {
+      GlyphClassifier.Prediction[] page = pages[s].classifyLetters(classifier);
+      guessLines[s] = new int[page.length];
+      Arrays.fill(guessLines[s], -1);
+      for (int i = 0; i < page.length; i++)
+      {
+        if (page[i] != null)
+        {
+          predictions.add(page[i]);
+          rectangles.add(new int[] {s, i});
+        }
+      }
+    }
+    
+    //the least confident first
+    Integer[] order = new Integer[predictions.size()];
+    for (int k = 0; k < order.length; k++)
+    {
+      order[k] = k;
+    }
+    final ArrayList<GlyphClassifier.Prediction> sorted = predictions;
+    Arrays.sort(order, new java.util.Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(sorted.get(a).confidence, sorted.get(b).confidence);
+      }
+    });
+    
+    //at the center of each rectangle, like the positions the user clicks on
+    ArrayList<String> lines = new ArrayList<String>();
+    int firstLine = tw.getTextPanel().getLineCount();
+    for (int k = 0; k < order.length; k++)
+    {
+      int[] rectangle = rectangles.get(order[k]);
+      Puzzle_Expert page = pages[rectangle[0]];
+      int i = rectangle[1];
+      String slice = stackPages != null ? (rectangle[0] + 1) + "\t" : "";
+      lines.add(slice + (int) (page.x[i] + page.widths[i]/2) + "\t" + (int) (page.y[i] + page.heights[i]/2) + "\t" +
+        predictions.get(order[k]).letter + "\t" + IJ.d2s(predictions.get(order[k]).confidence, 2));
+      guessLines[rectangle[0]][i] = firstLine + k;
+    }
+    tw.getTextPanel().append(lines);
+    
+    if (logLetters)
+    {
+      IJ.log("Guessed " + lines.size() + " letters from " + classifier.size() + " saved letters (" + (System.currentTimeMillis() - start) + " ms)");
+    }
+  }
+
+  /**
+   * Guess the letter of every rectangle that looks like a letter, in parallel on the common ForkJoinPool.
+   * 
+   * @param GlyphClassifier classifier The classifier
+   * @return Array The guess for each rectangle; null for the rectangles that do not look like letters         
+   */
+
+  public GlyphClassifier.Prediction[] classifyLetters(final GlyphClassifier classifier)
+  {
+    final GlyphClassifier.Prediction[] predictions = new GlyphClassifier.Prediction[x.length];
+    if (classifier.size() == 0)
+    {
+      return predictions;
+    }
+    metrics.start(PipelineMetrics.CLASSIFY);
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int chunks = Math.max(1, Math.min(4 * pool.getParallelism(), x.length / 16));
+    ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int c = 0; c < chunks; c++)
+    {
+      final int from = x.length * c / chunks, to = x.length * (c + 1) / chunks;
+      tasks.add(new Callable<Void>() {
+        public Void call() {
+          //each task cuts the letters out with its own buffers
+          GlyphExtractor extractor = new GlyphExtractor(GlyphExtractor.SIZE, glyphScaling);
+          byte[] bits = new byte[GlyphDatasetWriter.BW_SIZE];
+          for (int i = from; i < to; i++)
+          {
+            if (!looksLikeLetter(i))
+            {
+              continue;
+            }
+            page.extract(i, extractor);
+            extractor.packBw(bits, 0);
+            predictions[i] = classifier.classify(bits, 0);
+          }
+          return null;
+        }
+      });
+    }
+    try
+    {
+      for (Future<Void> future : pool.invokeAll(tasks))
+      {
+        future.get();
+      }
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    } finally
+    {
+      metrics.stop(PipelineMetrics.CLASSIFY);
+    }
+    return predictions;
+  }
+
+  /**
+   * Find the line of the key mapping table with the guessed letter of the rectangle at a position.
+   * 
+   * @param CurrentSelectedPosition position The position and slice
+   * @return int The line, or -1 if there is no guess for it         
+   */
+
+  protected int getGuessLine(CurrentSelectedPosition position)
+  {
+    if (guessLines == null)
+    {
+      return -1;
+    }
+    Puzzle_Expert page = stackPages != null ? stackPages.getPages()[position.slice - 1] : this;
+    int i = page.getRectangleAt(position.x, position.y);
+    if (i == -1 || guessLines[position.slice - 1][i] >= tw.getTextPanel().getLineCount())
+    {
+      return -1;
+    }
+    return guessLines[position.slice - 1][i];
+  }
+  
+  /**
+   * Saves the position of the last place the user clicked on with the mouse.         
+   */
+  
+  protected class CurrentSelectedPosition
+  {
+    public int x = 0;
+    public int y = 0;
+    public int slice = 1;
+  };
+
+  /**
+   * Onclick event: when user clicks, save the coordinate position, and the next time they press
+   * a letter key, print the coordinates and that letter to the window.
    * 
    * @param MouseEvent The onclick event                  
    */
@@ -304,6 +888,7 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
     
     currentSelectedPosition.x = offscreenX;
     currentSelectedPosition.y = offscreenY;
+    currentSelectedPosition.slice = (imRes.getCurrentSlice() - 1) / VIEWS + 1;
   }
 
   /**
@@ -327,12 +912,24 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
         {
           return;
         }
-        tw.append(currentSelectedPosition.x+"\t"+currentSelectedPosition.y+"\t"+KeyEvent.getKeyText(keyCode));
+        String slice = stackPages != null ? currentSelectedPosition.slice+"\t" : "";
+        String line = slice+currentSelectedPosition.x+"\t"+currentSelectedPosition.y+"\t"+KeyEvent.getKeyText(keyCode);
+        //the letter replaces the guess for the same rectangle, if there is one
+        int guess = getGuessLine(currentSelectedPosition);
+        if (guess != -1)
+        {
+          tw.getTextPanel().setLine(guess, line);
+        } else
+        {
+          tw.append(line);
+        }
         currentSelectedPosition.x = currentSelectedPosition.y = 0;
     } else
     {
         //little hack: we have to restore the functionality of the direction keys because they were canceled when we
         //removed all window events in order to cancel the keyboard macros
+        int page = (imRes.getCurrentSlice() - 1) / VIEWS, view = (imRes.getCurrentSlice() - 1) % VIEWS;
+        int pages = imRes.getStackSize() / VIEWS;
         if (keyCode == KeyEvent.VK_UP)
         {
             //up key: zoom in
@@ -343,26 +940,24 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
             canvas.zoomOut(canvas.getWidth()/2, canvas.getHeight()/2);
         } else if (keyCode == KeyEvent.VK_RIGHT)
         {
-            //right key: show next image in stack
-            if (sliceNumber > 2)
-            {
-              sliceNumber = 1;
-            } else
-            {
-              sliceNumber++; 
-            }
-            imRes.setSlice(sliceNumber);
+            //right key: show next image of the page
+            imRes.setSlice(page * VIEWS + (view + 1) % VIEWS + 1);
+            updateRectangles();
         } else if (keyCode == KeyEvent.VK_LEFT)
         {
-            //left key: show previous image in stack
-            if (sliceNumber < 2)
-            {
-              sliceNumber = 3;
-            } else
-            {
-              sliceNumber--; 
-            }
-            imRes.setSlice(sliceNumber);
+            //left key: show previous image of the page
+            imRes.setSlice(page * VIEWS + (view + VIEWS - 1) % VIEWS + 1);
+            updateRectangles();
+        } else if (keyCode == KeyEvent.VK_PAGE_DOWN || keyCode == KeyEvent.VK_PAGE_UP)
+        {
+            //page down or up: show the same image of the next or previous slice of a stack
+            page = (page + (keyCode == KeyEvent.VK_PAGE_DOWN ? 1 : pages - 1)) % pages;
+            imRes.setSlice(page * VIEWS + view + 1);
+            updateRectangles();
+        } else if (keyCode == KeyEvent.VK_SPACE)
+        {
+            //space key: show or hide the rectangles
+            setRectanglesVisible(!rectanglesVisible);
         }
      }
   }
@@ -391,7 +986,11 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
   public void keyReleased(KeyEvent e) {}
   public void keyTyped(KeyEvent e) {}
   public void imageOpened(ImagePlus imp) {}
-  public void imageUpdated(ImagePlus imp) {}
+  public void imageUpdated(ImagePlus imp) {
+    //the slice may also have been changed with the slider
+    if (imp == imRes)
+      updateRectangles();
+  }
 
   /**
    * Manual threshold calculation.
@@ -434,210 +1033,643 @@ public class Puzzle_Expert extends ParticleAnalyzer implements PlugInFilter, Mou
   }*/
 
   /**
-   * Class holds the coordinates of a rectangle around a cluster, allowing us to manipulate them easily.
-   *             
-   */ 
-
-  protected class RectangleCoordinates
+   * Saves all of the letters in the image as individual 12x12 images.
+   * 
+   * This function is called when the "LetterTextWindow" (the results table holding the coordinates
+   * of the letters) is closed by the user.
+   *      
+   * @param AnnotationTable annotations The positions where the user has clicked, and the letter the user has assigned to each
+   * @param String text The contents of the results window, saved as results.txt; null to leave results.txt alone           
+   *        
+   */
+  
+  public void saveLettersAsImages(AnnotationTable annotations, String text)
   {
-  /**
-   * Coordinates of a rectangle: x-position of top-left corner, y-position of top-left corner,
-   * width of rectangle, height of rectangle         
-   */ 
-	  public int xTopLeft, yTopLeft, rW, rH;
+	  createOutputDirectories();
+	  openDataset();
 
-  /**
-   * Adjust the rectangle dimensions to a square.
-   *    
-   * This helps because later we want to resize the image to 12x12.         
-   */ 
+	  //for each rectangle, the first click that falls within its bounds, or -1 if the user has not clicked on it
+	  int[] clickForRectangle = new int[x.length];
+	  Arrays.fill(clickForRectangle, -1);
+	  
+	  //look up the rectangles under each click; rectangles that are obviously not letters are not in the index
+	  RectangleIndex index = getRectangleIndex();
+	  int[] hits = new int[index.getMaxCellSize()];
+	  for(int j = 0; j < annotations.size(); j++)
+	  {
+		  int n = index.query(annotations.getX(j), annotations.getY(j), hits);
+		  for(int k = 0; k < n; k++)
+		  {
+			  if (clickForRectangle[hits[k]] == -1)
+			  {
+				  clickForRectangle[hits[k]] = j;
+			  }
+		  }
+	  }
 
-    public void adjustToSquare()
+	  //cycle through all the rectangles we identified from the image, in order, and save the ones the user has clicked on
+	  int[] rectangles = new int[x.length];
+	  String[] letters = new String[x.length];
+	  int n = 0;
+	  for(int i = 0; i < x.length; i++)
+	  {
+		  if (clickForRectangle[i] != -1)
+		  {
+			  //user has clicked on this rectangle and identified the shape it contains as a particular letter
+			  rectangles[n] = i;
+			  letters[n] = annotations.getLabel(clickForRectangle[i]);
+			  n++;
+		  }
+	  }
+	  saveLetters(rectangles, letters, n);
+	  saveGrid(rectangles, letters, n);
+
+    //finally, save the table mapping the image coordinates to letters
+    if (text != null)
     {
-    	//IJ.log("original coordinates: xTopLeft="+xTopLeft+", yTopLeft="+yTopLeft+", rW="+rW+", rH="+rH);
-    	
-    	//we need a square shape for the resizing, so adjust the parameters slightly
-		if (rH > rW)
-		{
-			if ((rH - rW) % 2 != 0)
-			{
-				rH = rH + 1;
-			}
-			//make sure the horizontal position of the center does not change, unless it violates the boundaries of the image
-			if ((xTopLeft - (rH - rW)/2) > -1)
-			{
-				xTopLeft = xTopLeft - (rH - rW)/2;
-			} else
-			{
-				xTopLeft = 0;
-			}
-			rW = rH;
-		} else if (rW > rH)
-		{
-			if ((rW - rH) % 2 != 0)
-			{
-				rH = rH + 1;
-			}
-			//make sure the vertical position of the center does not change, unless it violates the boundaries of the image
-			if ((yTopLeft - (rW - rH)/2) > -1)
-			{
-				yTopLeft = yTopLeft - (rW - rH)/2;
-			} else
-			{
-				yTopLeft = 0;
-			}
-			rH = rW;
-		}
-		
-		//IJ.log("final coordinates: xTopLeft="+xTopLeft+", yTopLeft="+yTopLeft+", rW="+rW+", rH="+rH);
+      saveResultsText(text);
     }
-  };
-  
+    closeDataset();
+    
+    //the background writer is still busy, saveLettersInBackground() finishes the run
+    if (pngWriter == null)
+    {
+      finishRun();
+    }
+  }
+
   /**
-   * Saves all of the letters in the image as individual 12x12 images.
+   * Saves the letters like saveLettersAsImages(), but on a background thread, and returns right away.
    * 
-   * This function is called when the "LetterTextWindow" (the results table holding the coordinates
-   * of the letters) is closed by the user.
+   * See saveLettersWithWriter(). The letters of a stack are saved slice by slice, see PuzzleStack.saveLetters().
    *      
-   * @param Array xUserClick Array of x-positions where the user has clicked
-   * @param Array yUserClick Array of y-positions where the user has clicked
-   * @param Array letters Array of letters that user has assigned manually to each spot where they have clicked           
-   *        
+   * @param AnnotationTable annotations The positions where the user has clicked, and the letter the user has assigned to each
+   * @param String text The contents of the results window, saved as results.txt
+   * @return Thread The thread saving the letters        
    */
-  
-  public void saveLettersAsImages(Integer[] xUserClick, Integer[] yUserClick, String[] letters, String text)
-  {
-    //holds number of occurrences of each letter
-	  Integer letterCount;
-    //holds the letter
-	  String letter;
-    //ImageProcessor object holding the individual letter image
-	  ImageProcessor letterIp, letterIpBw;
-    //ImagePlus object holding the individual letter image
-    ImagePlus letterIm, letterImBw;
-    //holds the coordinates of each rectangle, which we may want to manipulate before saving
-	  RectangleCoordinates rectangleCoordinates = new RectangleCoordinates();
-	  //keep track of how many of each letter we need to store as an image, for image naming purposes
-	  HashMap<String, Integer> letterCountMap = new HashMap<String, Integer>();
+
+  public Thread saveLettersInBackground(final AnnotationTable annotations, final String text)
+  {
+	  Thread thread = new Thread(new Runnable() {
+		  public void run() {
+			  //the letters of a stack are split up by slice
+			  if (stackPages != null)
+			  {
+				  stackPages.saveLetters(annotations, text);
+			  } else
+			  {
+				  saveLettersWithWriter(annotations, text);
+			  }
+		  }
+	  }, "Save letters");
+	  thread.start();
+	  return thread;
+  }
+
+  /**
+   * Saves the letters like saveLettersAsImages(), with the PNG files written by several encoder threads, and waits for them.
+   * 
+   * The progress is shown in the status bar, and when everything is saved a message is written to the log window;
+   * if anything could not be saved, the errors are shown.
+   *      
+   * @param AnnotationTable annotations The positions where the user has clicked, and the letter the user has assigned to each
+   * @param String text The contents of the results window, saved as results.txt
+   */
+
+  protected void saveLettersWithWriter(AnnotationTable annotations, String text)
+  {
+	  AsyncGlyphWriter writer = new AsyncGlyphWriter(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 256);
+	  long start = System.currentTimeMillis();
+	  //one line per letter would slow everything down, there is a summary at the end instead
+	  boolean log = logLetters;
+	  logLetters = false;
+	  pngWriter = writer;
+	  try
+	  {
+		  IJ.showStatus("Saving letters...");
+		  saveLettersAsImages(annotations, text);
+	  } catch (RuntimeException e)
+	  {
+		  writer.reportError(e.toString());
+	  } finally
+	  {
+		  writer.finish();
+		  pngWriter = null;
+		  logLetters = log;
+	  }
+	  metrics.count(PipelineMetrics.FILES_WRITTEN, writer.getWritten() - writer.getFailed());
+	  finishRun();
 	  
-	  //create file structure to hold images: the 12x12 letter images for each big image are stored in /tmp/[big image name]
-	  File dir = new File("tmp");
-	  if (!dir.exists())
+	  java.util.List<String> errors = writer.getErrors();
+	  if (errors.isEmpty())
+	  {
+		  //the letters that were already saved are not handed to the writer, so its file count says nothing about them
+		  IJ.log("Saved " + (lettersWritten + lettersUnchanged) + " letters in tmp/" + imageTitle + ": " + lettersWritten + " written, " +
+			  lettersUnchanged + " unchanged, " + lettersDeleted + " deleted (" + (System.currentTimeMillis() - start) + " ms)");
+		  IJ.showStatus("Letters saved");
+	  } else
 	  {
-		  dir.mkdir();
+		  //show the first errors, the rest go to the log window
+		  StringBuilder message = new StringBuilder(errors.size() + " error(s) while saving the letters of " + imageTitle + ":\n");
+		  for (int k = 0; k < errors.size(); k++)
+		  {
+			  if (k < 10)
+			  {
+				  message.append(errors.get(k)).append("\n");
+			  }
+			  IJ.log("Error: " + errors.get(k));
+		  }
+		  IJ.error("Save letters", message.toString());
 	  }
-	  dir = new File("tmp/" + imageTitle);
-	  if (!dir.exists())
+  }
+
+  /**
+   * Saves the letters again from a previously saved tmp/[big image name]/results.txt, without the results window.
+   * 
+   * Lines of the file that cannot be read are skipped and reported.
+   * 
+   * @return boolean False if there is no results.txt for this image         
+   */
+
+  public boolean saveLettersFromResults()
+  {
+	  File file = new File("tmp/" + imageTitle + "/results.txt");
+	  if (!file.exists())
 	  {
-		  dir.mkdir();
+		  return false;
+	  }
+	  AnnotationTable annotations;
+	  try{
+		  annotations = AnnotationTable.read(file);
+	  }catch (IOException e){
+		  reportError(file.getPath() + ": " + e.getMessage());
+		  return false;
 	  }
-    //create extra directory for the black and white versions
-	  dir = new File("tmp/" + imageTitle + "/bw");
-	  if (!dir.exists())
+	  for (String error : annotations.getErrors())
 	  {
-		  dir.mkdir();
+		  reportError(file.getPath() + ", " + error);
 	  }
+	  saveLettersAsImages(annotations, null);
+	  return true;
+  }
+
+  /**
+   * Saves every rectangle that looks like a letter as an unlabeled 12x12 image.
+   * 
+   * Used by the headless batch mode, where nobody assigns letters: each glyph is saved under
+   * the name UNLABELED, and results.txt lists the center of each glyph so that the letters
+   * can be filled in later.      
+   */
 
-	  //cycle through all the rectangles we identified from the image, see if the user has clicked on any of them
+  public void saveAllLetters()
+  {
+	  StringBuilder text = new StringBuilder("x\ty\tletter\t\n");
+	  int[] rectangles = new int[x.length];
+	  String[] letters = new String[x.length];
+	  int n = 0;
+	  
+	  createOutputDirectories();
+	  openDataset();
+	  
 	  for(int i = 0; i < x.length; i++)
 	  {
-		  //exclude rectangle if it is so big that it is obviously not a letter (e.g. a big rectangle around part of the image)
-		  if (((float) heights[i] >= 0.2f * (float) h) || ((float) widths[i] >= 0.2f * (float) w))
+		  if (!looksLikeLetter(i))
 		  {
 			  continue;
 		  }
-		  
-		  for(int j = 0; j < xUserClick.length; j++)
-		  {			  
-			  //check if the user click falls within the bounds of the rectangle
-			  if (
-					  (xUserClick[j] > x[i])
-					  && (xUserClick[j] < (x[i] + widths[i]))
-					  && (yUserClick[j] > y[i])
-					  && (yUserClick[j] < (y[i] + heights[i]))
-			  )
+		  rectangles[n] = i;
+		  letters[n] = UNLABELED;
+		  n++;
+		  text.append((int) (x[i] + widths[i]/2) + "\t" + (int) (y[i] + heights[i]/2) + "\t" + UNLABELED + "\n");
+	  }
+	  saveLetters(rectangles, letters, n);
+	  saveGrid(rectangles, letters, n);
+	  
+	  saveResultsText(text.toString());
+	  closeDataset();
+	  finishRun();
+  }
+
+  /**
+   * Get the spatial index over the rectangles that may contain a letter, building it if necessary.
+   * 
+   * @return RectangleIndex The index         
+   */
+
+  public RectangleIndex getRectangleIndex()
+  {
+	  return page.getRectangleIndex();
+  }
+
+  /**
+   * Get the word-search grid of the rectangles that may contain a letter, finding it if necessary.
+   * 
+   * @return LetterGrid The grid         
+   */
+
+  public LetterGrid getLetterGrid()
+  {
+	  return page.getLetterGrid();
+  }
+
+  /**
+   * Save the word-search grid with the letters that have been saved: tmp/[big image name]/grid.txt has the size,
+   * pitch and rotation of the grid on its first line and then the letters row by row, see LetterGrid.getText();
+   * tmp/[big image name]/cells.txt lists the row, column and center of the rectangle of every cell with a rectangle,
+   * with its letter, so that a cell can be traced back to its rectangle.
+   *    
+   * @param Array rectangles Indexes of the rectangles that have letters
+   * @param Array letters The letter assigned to each rectangle
+   * @param int n Number of letters            
+   */
+
+  protected void saveGrid(int[] rectangles, String[] letters, int n)
+  {
+	  LetterGrid grid = getLetterGrid();
+	  String[] letterOf = new String[x.length];
+	  for (int k = 0; k < n; k++)
+	  {
+		  letterOf[rectangles[k]] = letters[k];
+	  }
+	  
+	  StringBuilder cells = new StringBuilder("row\tcolumn\tx\ty\tletter\t\n");
+	  for (int r = 0; r < grid.getRows(); r++)
+	  {
+		  for (int c = 0; c < grid.getColumns(); c++)
+		  {
+			  int i = grid.getRectangle(r, c);
+			  if (i != -1)
 			  {
-				  //user has clicked on this rectangle and identified the shape it contains as a particular letter
-          letter = letters[j];
-				  rectangleCoordinates.xTopLeft = (int) x[i];
-				  rectangleCoordinates.yTopLeft = (int) y[i];
-				  rectangleCoordinates.rW = (int) widths[i];
-				  rectangleCoordinates.rH = (int) heights[i];
-				  
-				  //we need a square shape for the resizing, so adjust the parameters of the rectangle slightly
-				  rectangleCoordinates.adjustToSquare();
-				  
-          //log our progress in a window
-				  IJ.log(letter + ": top left position=(" + rectangleCoordinates.xTopLeft + ", " + rectangleCoordinates.yTopLeft +
-				    	    "), height=" + rectangleCoordinates.rH + ", width=" + rectangleCoordinates.rW);
-				  //standard version
-          letterIp = new ByteProcessor(rectangleCoordinates.rW, rectangleCoordinates.rH);
-          //black and white version
-          letterIpBw = new ByteProcessor(rectangleCoordinates.rW, rectangleCoordinates.rH);
-          
-				  //copy the rectangle from the original image to a new image
-				  for(u = 0; u < rectangleCoordinates.rW; u++)
-					{
-						for(v = 0; v < rectangleCoordinates.rH; v++)
-						{
-							p = ipOrig.get((rectangleCoordinates.xTopLeft + u), (rectangleCoordinates.yTopLeft + v));
-							letterIp.set(u, v, p);
-              p = ipNewBw.get((rectangleCoordinates.xTopLeft + u), (rectangleCoordinates.yTopLeft + v));
-							letterIpBw.set(u, v, p);
-						}
-					}
-
-				  //resize the image to an 12x12 image using linear interpolation
-				  letterIp.setInterpolationMethod(ImageProcessor.BILINEAR);
-				  letterIp = letterIp.resize(12);
-          
-          letterIpBw.setInterpolationMethod(ImageProcessor.BILINEAR);
-				  letterIpBw = letterIpBw.resize(12);
-				    
-				  //keep track of how many of each letter we have
-				  letterCount = letterCountMap.get(letter);
-				  if (letterCount != null)
-				  {
-				   	letterCount++;
-				  } else
-				  {
-				   	letterCount = 1;
-				  }
-				  letterCountMap.put(letter, letterCount);
-
-				  letterIm = new ImagePlus(letter, letterIp);
-          letterImBw = new ImagePlus(letter, letterIpBw);
-				  //letterImBw.show();
-				  
-          //save the 12x12 letter image in the /tmp/[big image name]/ folder  
-				  IJ.saveAs(letterIm, "png", "tmp/" + imageTitle + "/" + letter + letterCount + ".png");
-          //save the black and white version in the /tmp/[big image name]/bw/ folder
-          IJ.saveAs(letterImBw, "png", "tmp/" + imageTitle + "/bw/" + letter + letterCount + ".png");
-				  
-          IJ.log("image saved as tmp/" + imageTitle + "/" + letter + letterCount + ".png");
-            
-				  break;
+				  cells.append(r + "\t" + c + "\t" + (int) (x[i] + widths[i]/2) + "\t" + (int) (y[i] + heights[i]/2) + "\t" +
+					  (letterOf[i] != null ? letterOf[i] : UNLABELED) + "\n");
 			  }
 		  }
 	  }
+	  String heading = grid.getRows() + " x " + grid.getColumns() + ", pitch " + IJ.d2s(grid.getPitchX(), 1) + " x " +
+		  IJ.d2s(grid.getPitchY(), 1) + ", angle " + IJ.d2s(grid.getAngle(), 2) + "\n";
+	  writeText(new File("tmp/" + imageTitle + "/grid.txt"), heading + grid.getText(letterOf));
+	  writeText(new File("tmp/" + imageTitle + "/cells.txt"), cells.toString());
+  }
 
-    //finally, save the table mapping the image coordinates to letters
+  /**
+   * Find the rectangle under a position in the image, e.g. the mouse position in the canvas.
+   * 
+   * @param int px x-position in image coordinates
+   * @param int py y-position in image coordinates
+   * @return int Index of the rectangle, or -1 if the position is not inside a rectangle that may contain a letter         
+   */
+
+  public int getRectangleAt(int px, int py)
+  {
+	  return getRectangleIndex().find(px, py);
+  }
+
+  /**
+   * Check whether a rectangle may contain a letter: the same minimum dimensions as the drawn rectangles, and not
+   * obviously too big.
+   *    
+   * @param int i Index of the rectangle
+   * @return boolean True if the rectangle may contain a letter         
+   */
+
+  protected boolean looksLikeLetter(int i)
+  {
+	  return page.looksLikeLetter(i);
+  }
+
+  /**
+   * Check whether a rectangle is so big that it is obviously not a letter (e.g. a big rectangle around part of the image).
+   *    
+   * @param int i Index of the rectangle
+   * @return boolean True if the rectangle should be excluded         
+   */
+
+  protected boolean isTooBig(int i)
+  {
+	  return page.isTooBig(i);
+  }
+
+  /**
+   * Create the file structure to hold the images: the 12x12 letter images for each big image are stored in /tmp/[big image name]
+   * and, for PNG output, the black and white versions in /tmp/[big image name]/bw.         
+   */
+
+  protected void createOutputDirectories()
+  {
+	  File dir = new File("tmp/" + imageTitle + ((outputFormat & OUTPUT_PNG) != 0 ? "/bw" : ""));
+	  savedFormat = "image saved as tmp/" + imageTitle.replace("%", "%%") + "/%s%d.png";
+	  if (!dir.exists() && !dir.mkdirs())
+	  {
+		  reportError(dir.getPath() + ": could not create the directory");
+	  }
+  }
+
+  /**
+   * Save a list of letters, only writing the images that are not already saved.
+   * 
+   * The images saved before are listed in tmp/[big image name]/manifest.txt, see GlyphManifest. A letter cut from the same
+   * square as before keeps its number, and its files are left alone if the pixels have not changed; new letters get the
+   * lowest free numbers, in the order of the rectangles; the files of letters that are no longer there are deleted.
+   * The dataset, if any, gets every letter; it replaces the record of a square that it already has, see GlyphDatasetWriter.
+   *    
+   * @param Array rectangles Indexes of the rectangles
+   * @param Array letters The letter assigned to each rectangle
+   * @param int n Number of letters            
+   */
+
+  protected void saveLetters(int[] rectangles, String[] letters, int n)
+  {
+	  boolean png = (outputFormat & OUTPUT_PNG) != 0;
+	  lettersWritten = 0;
+	  lettersUnchanged = 0;
+	  lettersDeleted = 0;
+	  File manifestFile = new File("tmp/" + imageTitle + "/manifest.txt");
+	  GlyphManifest previous = png ? GlyphManifest.read(manifestFile) : new GlyphManifest();
+	  GlyphManifest manifest = new GlyphManifest();
+	  GlyphManifest.Entry[] entries = new GlyphManifest.Entry[n], previousEntries = new GlyphManifest.Entry[n];
+	  
+	  //first the letters that were saved before keep their numbers
+	  for(int k = 0; k < n; k++)
+	  {
+		  PuzzleEngine.RectangleCoordinates square = getSquare(rectangles[k]);
+		  entries[k] = new GlyphManifest.Entry();
+		  entries[k].letter = letters[k];
+		  entries[k].x = square.xTopLeft;
+		  entries[k].y = square.yTopLeft;
+		  entries[k].size = square.rW;
+		  previousEntries[k] = previous.take(letters[k], square.xTopLeft, square.yTopLeft, square.rW);
+		  if (previousEntries[k] != null)
+		  {
+			  entries[k].number = previousEntries[k].number;
+			  manifest.add(entries[k]);
+		  }
+	  }
+	  //then the new ones get the numbers that are left
+	  for(int k = 0; k < n; k++)
+	  {
+		  if (previousEntries[k] == null)
+		  {
+			  entries[k].number = manifest.nextNumber(letters[k]);
+			  manifest.add(entries[k]);
+		  }
+	  }
+
+	  //tell the background writer how many images to expect at most, for the progress bar
+	  if (pngWriter != null)
+	  {
+		  pngWriter.setExpected(2 * n);
+	  }
+	  
+	  for(int k = 0; k < n; k++)
+	  {
+		  saveLetter(rectangles[k], entries[k], previousEntries[k]);
+	  }
+	  
+	  if (!png)
+	  {
+		  return;
+	  }
+	  
+	  //delete the images of the letters that are gone, unless a new letter has taken their name
+	  metrics.start(PipelineMetrics.IO);
+	  for (GlyphManifest.Entry entry : previous.getUntaken())
+	  {
+		  if (!manifest.uses(entry.letter, entry.number))
+		  {
+			  new File("tmp/" + imageTitle + "/" + entry.getFileName()).delete();
+			  new File("tmp/" + imageTitle + "/bw/" + entry.getFileName()).delete();
+			  events.add("image deleted: %s%d.png", entry.letter, entry.number);
+			  lettersDeleted++;
+		  }
+	  }
+	  try{
+		  manifest.write(manifestFile);
+	  }catch (IOException e){
+		  reportError(manifestFile.getPath() + ": " + e.getMessage());
+	  }
+	  metrics.stop(PipelineMetrics.IO);
+  }
+
+  /**
+   * Get the square a rectangle is cut out as.
+   *    
+   * @param int i Index of the rectangle
+   * @return PuzzleEngine.RectangleCoordinates The square            
+   */
+
+  protected PuzzleEngine.RectangleCoordinates getSquare(int i)
+  {
+	  return page.getSquare(i);
+  }
+
+  /**
+   * Cut one rectangle out of the image, resize it to 12x12 and save it, in color and in black and white.
+   *    
+   * @param int i Index of the rectangle
+   * @param GlyphManifest.Entry entry The letter, number and square of the images; receives the hash of the pixels
+   * @param GlyphManifest.Entry previous The same images when they were saved before, or null            
+   */
+
+  protected void saveLetter(int i, GlyphManifest.Entry entry, GlyphManifest.Entry previous)
+  {
+    //ImagePlus object holding the individual letter image
+    ImagePlus letterIm, letterImBw;
+    String letter = entry.letter;
+	  
+    //keep track of our progress, without formatting anything yet
+	  events.add("%s: top left position=(%d, %d), height=%d, width=%d", letter, entry.x, entry.y, entry.size, entry.size);
+
+	  //cut the rectangle out of the original and the black and white image and resize it to 12x12 using linear interpolation
+	  metrics.start(PipelineMetrics.EXTRACT);
+	  page.extract(entry.x, entry.y, entry.size, glyphExtractor);
+	  entry.hash = GlyphManifest.hash(glyphExtractor.getGray(), glyphExtractor.getBw());
+	  metrics.stop(PipelineMetrics.EXTRACT);
+	  metrics.count(PipelineMetrics.GLYPHS, 1);
+
+	  String path = "tmp/" + imageTitle + "/" + entry.getFileName();
+	  String bwPath = "tmp/" + imageTitle + "/bw/" + entry.getFileName();
+	  
+	  metrics.start(PipelineMetrics.IO);
+	  //the images are already saved if nothing has changed since last time
+	  boolean unchanged = previous != null && previous.hash == entry.hash && new File(path).exists() && new File(bwPath).exists();
+	  if ((outputFormat & OUTPUT_PNG) != 0 && unchanged)
+	  {
+		  events.add("image unchanged: %s%d.png", letter, entry.number);
+		  lettersUnchanged++;
+	  } else if ((outputFormat & OUTPUT_PNG) != 0 && pngWriter != null)
+	  {
+		  //hand the letter to the background writer
+		  pngWriter.save(glyphExtractor.getGray(), path);
+		  pngWriter.save(glyphExtractor.getBw(), bwPath);
+		  lettersWritten++;
+	  } else if ((outputFormat & OUTPUT_PNG) != 0)
+	  {
+		  lettersWritten++;
+		  letterIm = new ImagePlus(letter, glyphExtractor.getGrayProcessor());
+	    letterImBw = new ImagePlus(letter, glyphExtractor.getBwProcessor());
+		  
+	    //save the 12x12 letter image in the /tmp/[big image name]/ folder  
+		  if (new FileSaver(letterIm).saveAsPng(path))
+		  {
+			  metrics.count(PipelineMetrics.FILES_WRITTEN, 1);
+		  }
+	    //save the black and white version in the /tmp/[big image name]/bw/ folder
+	    if (new FileSaver(letterImBw).saveAsPng(bwPath))
+	    {
+		    metrics.count(PipelineMetrics.FILES_WRITTEN, 1);
+	    }
+		  
+		  events.add(savedFormat, letter, entry.number);
+	  }
+	  
+	  if ((outputFormat & OUTPUT_DATASET) != 0)
+	  {
+		  //add the letter to the dataset file, or replace the record of its square
+		  if ((outputFormat & OUTPUT_PNG) == 0)
+		  {
+			  lettersWritten++;
+		  }
+		  glyphExtractor.packBw(bwBits, 0);
+		  try{
+			  dataset.write(imageTitle, letter, entry.x, entry.y, entry.size, entry.size, glyphExtractor.getGray(), bwBits);
+		  }catch (IOException e){
+			  reportError("dataset: " + e.getMessage());
+		  }
+	  }
+	  metrics.stop(PipelineMetrics.IO);
+  }
+
+  /**
+   * Open the default dataset file, /tmp/glyphs.dat, if the letters are saved into a dataset and none was set.         
+   */
+
+  protected void openDataset()
+  {
+	  if ((outputFormat & OUTPUT_DATASET) == 0 || dataset != null)
+	  {
+		  return;
+	  }
+	  try{
+		  dataset = new GlyphDatasetWriter(new File("tmp/glyphs.dat"));
+		  ownDataset = true;
+	  }catch (IOException e){
+		  reportError("tmp/glyphs.dat: " + e.getMessage());
+		  outputFormat &= ~OUTPUT_DATASET;
+	  }
+  }
+
+  /**
+   * Close the dataset file if it was opened by openDataset().         
+   */
+
+  protected void closeDataset()
+  {
+	  if (!ownDataset)
+	  {
+		  return;
+	  }
+	  try{
+		  dataset.close();
+	  }catch (IOException e){
+		  reportError("tmp/glyphs.dat: " + e.getMessage());
+	  }
+	  dataset = null;
+	  ownDataset = false;
+  }
+
+  /**
+   * Save the table mapping the image coordinates to letters as /tmp/[big image name]/results.txt.
+   *    
+   * @param String text The contents of the table         
+   */
+
+  protected void saveResultsText(String text)
+  {
+    writeText(new File("tmp/" + imageTitle + "/results.txt"), text);
+  }
+
+  /**
+   * Write a text file of the results of this page.
+   *
+   * @param File file The file
+   * @param String text The contents
+   */
+
+  protected void writeText(File file, String text)
+  {
+    metrics.start(PipelineMetrics.IO);
     try{
       // Create file 
-      FileWriter fstream = new FileWriter("tmp/" + imageTitle + "/results.txt");
+      FileWriter fstream = new FileWriter(file);
       BufferedWriter out = new BufferedWriter(fstream);
-      out.write(text);
-      //Close the output stream
-      out.close();
+      try{
+        out.write(text);
+      }finally{
+        //Close the output stream, also when the write failed
+        out.close();
+      }
+      metrics.count(PipelineMetrics.FILES_WRITTEN, 1);
     }catch (Exception e){//Catch exception if any
-      System.err.println("Error: " + e.getMessage());
+      reportError(file.getPath() + ": " + e.getMessage());
+    }finally{
+      metrics.stop(PipelineMetrics.IO);
     }
+  }
+
+  /**
+   * Finish the statistics of this page: write them to tmp/[big image name]/metrics.txt, write the events to
+   * tmp/[big image name]/events.log and, unless running headless, to the log window, and add the statistics to
+   * the totals shown through JMX.
+   */
 
+  protected void finishRun()
+  {
+    try{
+      metrics.writeSummary(new File("tmp/" + imageTitle + "/metrics.txt"));
+      if (events.size() > 0)
+      {
+        events.writeTo(new File("tmp/" + imageTitle + "/events.log"));
+      }
+    }catch (IOException e){
+      reportError("tmp/" + imageTitle + ": " + e.getMessage());
+    }
+    if (logLetters && events.size() > 0)
+    {
+      //one call for all of the letters, the log window is slow to update
+      String text = events.toString();
+      IJ.log(text.substring(0, text.length() - 1));
+    }
+    events.clear();
+    metrics.finish();
+  }
 
-    //out.write("xxx");
+  /**
+   * Get the statistics of the stages of this page so far.
+   * 
+   * @return PipelineMetrics.Run The statistics         
+   */
 
+  public PipelineMetrics.Run getMetrics()
+  {
+    return metrics;
+  }
 
+  /**
+   * Report an error that occurred while saving: collected by the background writer if the letters are being
+   * saved in the background, otherwise printed.
+   *    
+   * @param String message Description of the error         
+   */
 
+  protected void reportError(String message)
+  {
+    if (pngWriter != null)
+    {
+      pngWriter.reportError(message);
+    } else
+    {
+      System.err.println("Error: " + message);
+    }
   }
 
   
@@ -0,0 +1,243 @@
+  /**
+   * Spatial index over the rectangles around the clusters, for finding the rectangles under a point quickly.
+   *
+   * The image is divided into a uniform grid of square cells about the size of an average rectangle, and each cell
+   * lists the rectangles that overlap it, in ascending order. Looking up a point only checks the rectangles of one cell,
+   * instead of all of them. The cell lists are stored in two flat arrays: cellStart[c] is the position of the first
+   * rectangle of cell c in cellItems, and cellStart[c + 1] is the position after the last one.
+   */
+
+public class RectangleIndex {
+
+  //the rectangles, same layout as the columns of the results table
+  protected float[] x, y, widths, heights;
+
+  //size of a grid cell in pixels, and the number of cells in each direction
+  protected int cellSize, columns, rows;
+
+  //position of each cell's list in cellItems, and the lists themselves
+  protected int[] cellStart, cellItems;
+
+  //the largest number of rectangles in a single cell
+  protected int maxCellSize;
+
+  /**
+   * Constructor: build the index.
+   *
+   * Rectangles at least maxWidth wide or maxHeight high are left out of the index; they are obviously not letters,
+   * and would otherwise fill a large number of cells.
+   *
+   * @param Array x x-positions of the top left-hand corners of the rectangles
+   * @param Array y y-positions of the top left-hand corners of the rectangles
+   * @param Array widths Widths of the rectangles
+   * @param Array heights Heights of the rectangles
+   * @param int imageWidth Width of the image
+   * @param int imageHeight Height of the image
+   * @param float maxWidth Rectangles this wide or wider are not indexed
+   * @param float maxHeight Rectangles this high or higher are not indexed
+   */
+
+  public RectangleIndex(float[] x, float[] y, float[] widths, float[] heights, int imageWidth, int imageHeight, float maxWidth, float maxHeight) {
+    this.x = x;
+    this.y = y;
+    this.widths = widths;
+    this.heights = heights;
+
+    //use the average size of the indexed rectangles as the cell size, so that each rectangle covers a few cells at most
+    double sum = 0;
+    int count = 0;
+    for (int i = 0; i < x.length; i++)
+    {
+      if (isIndexed(i, maxWidth, maxHeight))
+      {
+        sum += Math.max(widths[i], heights[i]);
+        count++;
+      }
+    }
+    cellSize = Math.max(8, count > 0 ? (int) Math.ceil(sum / count) : 8);
+    columns = Math.max(1, (imageWidth + cellSize - 1) / cellSize);
+    rows = Math.max(1, (imageHeight + cellSize - 1) / cellSize);
+
+    //first pass: count the rectangles in each cell
+    cellStart = new int[columns * rows + 1];
+    for (int i = 0; i < x.length; i++)
+    {
+      if (!isIndexed(i, maxWidth, maxHeight))
+      {
+        continue;
+      }
+      for (int row = firstCell(y[i], rows); row <= lastCell(y[i] + heights[i], rows); row++)
+      {
+        for (int column = firstCell(x[i], columns); column <= lastCell(x[i] + widths[i], columns); column++)
+        {
+          cellStart[row * columns + column + 1]++;
+        }
+      }
+    }
+    for (int c = 0; c < columns * rows; c++)
+    {
+      maxCellSize = Math.max(maxCellSize, cellStart[c + 1]);
+      cellStart[c + 1] += cellStart[c];
+    }
+
+    //second pass: fill in the lists, in ascending order of rectangle
+    cellItems = new int[cellStart[columns * rows]];
+    int[] fill = new int[columns * rows];
+    for (int i = 0; i < x.length; i++)
+    {
+      if (!isIndexed(i, maxWidth, maxHeight))
+      {
+        continue;
+      }
+      for (int row = firstCell(y[i], rows); row <= lastCell(y[i] + heights[i], rows); row++)
+      {
+        for (int column = firstCell(x[i], columns); column <= lastCell(x[i] + widths[i], columns); column++)
+        {
+          int c = row * columns + column;
+          cellItems[cellStart[c] + fill[c]++] = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Check whether a rectangle belongs in the index.
+   */
+
+  private boolean isIndexed(int i, float maxWidth, float maxHeight) {
+    return widths[i] < maxWidth && heights[i] < maxHeight;
+  }
+
+  /**
+   * The cell containing the start of a rectangle side, clamped to the grid.
+   */
+
+  private int firstCell(float position, int cells) {
+    return Math.min(cells - 1, Math.max(0, (int) position / cellSize));
+  }
+
+  /**
+   * The cell containing the end of a rectangle side, clamped to the grid.
+   */
+
+  private int lastCell(float position, int cells) {
+    return Math.min(cells - 1, Math.max(0, (int) Math.ceil(position) / cellSize));
+  }
+
+  /**
+   * Find all indexed rectangles that contain a point; the edges of a rectangle do not count as inside.
+   *
+   * @param int px x-position of the point
+   * @param int py y-position of the point
+   * @param Array hits Receives the indices of the rectangles, in ascending order; must hold at least getMaxCellSize() items
+   * @return int The number of rectangles found
+   */
+
+  public int query(int px, int py, int[] hits) {
+    if (px < 0 || py < 0)
+    {
+      return 0;
+    }
+    int column = px / cellSize;
+    int row = py / cellSize;
+    if (column >= columns || row >= rows)
+    {
+      return 0;
+    }
+    int c = row * columns + column;
+    int n = 0;
+    for (int k = cellStart[c]; k < cellStart[c + 1]; k++)
+    {
+      int i = cellItems[k];
+      if (px > x[i] && px < x[i] + widths[i] && py > y[i] && py < y[i] + heights[i])
+      {
+        hits[n++] = i;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Find the first indexed rectangle that contains a point, e.g. for hit-testing a mouse position in the canvas.
+   *
+   * @param int px x-position of the point
+   * @param int py y-position of the point
+   * @return int The index of the rectangle, or -1 if there is none
+   */
+
+  public int find(int px, int py) {
+    if (px < 0 || py < 0 || px / cellSize >= columns || py / cellSize >= rows)
+    {
+      return -1;
+    }
+    int c = (py / cellSize) * columns + px / cellSize;
+    for (int k = cellStart[c]; k < cellStart[c + 1]; k++)
+    {
+      int i = cellItems[k];
+      if (px > x[i] && px < x[i] + widths[i] && py > y[i] && py < y[i] + heights[i])
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find all indexed rectangles that overlap an area, e.g. the part of the image that is visible in the canvas.
+   *
+   * Only the cells that overlap the area are visited. A rectangle that covers several of them is only reported by the
+   * first one, the cell where both its own extent and the area start.
+   *
+   * @param int left x-position of the left side of the area
+   * @param int top y-position of the top of the area
+   * @param int right x-position after the right side of the area
+   * @param int bottom y-position after the bottom of the area
+   * @return Array The indices of the rectangles, in no particular order
+   */
+
+  public int[] queryRange(int left, int top, int right, int bottom) {
+    int[] hits = new int[16];
+    int n = 0;
+    if (right <= left || bottom <= top)
+    {
+      return new int[0];
+    }
+    //the cells are clamped to the grid, like the rectangles are when they are indexed
+    int firstColumn = firstCell(left, columns), lastColumn = firstCell(right - 1, columns);
+    int firstRow = firstCell(top, rows), lastRow = firstCell(bottom - 1, rows);
+    for (int row = firstRow; row <= lastRow; row++)
+    {
+      for (int column = firstColumn; column <= lastColumn; column++)
+      {
+        int c = row * columns + column;
+        for (int k = cellStart[c]; k < cellStart[c + 1]; k++)
+        {
+          int i = cellItems[k];
+          if (x[i] >= right || x[i] + widths[i] < left || y[i] >= bottom || y[i] + heights[i] < top)
+          {
+            continue;
+          }
+          //report it only once
+          if (column != Math.max(firstCell(x[i], columns), firstColumn) || row != Math.max(firstCell(y[i], rows), firstRow))
+          {
+            continue;
+          }
+          if (n == hits.length)
+          {
+            hits = java.util.Arrays.copyOf(hits, 2 * n);
+          }
+          hits[n++] = i;
+        }
+      }
+    }
+    return java.util.Arrays.copyOf(hits, n);
+  }
+
+  /**
+   * @return int The largest number of rectangles that a query can return
+   */
+
+  public int getMaxCellSize() {
+    return maxCellSize;
+  }
+}
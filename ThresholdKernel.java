@@ -0,0 +1,219 @@
+  /**
+   * The inner loops of thresholding a page: the histogram, rotating the page while its histogram is counted, and
+   * turning a row of pixels into the bits of a BinaryMask, either between two global levels or with the local Sauvola
+   * threshold.
+   *
+   * This class is the plain Java version, which runs everywhere. getInstance() returns VectorThresholdKernel instead,
+   * which does the same with SIMD instructions, when it has been compiled and the JVM was started with
+   * "--add-modules jdk.incubator.vector"; otherwise, or with -Dpuzzle.vector=false, it falls back to this class.
+   * Both give exactly the same bits.
+   */
+
+public class ThresholdKernel {
+
+  //width and height of the blocks a page is rotated in
+  public static final int BLOCK = 64;
+
+  private static ThresholdKernel instance;
+
+  /**
+   * Get the fastest kernel that works on this JVM.
+   *
+   * @return ThresholdKernel The kernel
+   */
+
+  public static synchronized ThresholdKernel getInstance() {
+    if (instance == null)
+    {
+      if (!"false".equals(System.getProperty("puzzle.vector")))
+      {
+        try
+        {
+          //loaded by name, so that this class works without the incubator module
+          instance = (ThresholdKernel) Class.forName("VectorThresholdKernel").getDeclaredConstructor().newInstance();
+        } catch (Throwable e)
+        {
+          //not compiled, or the module is missing: NoClassDefFoundError and the like
+        }
+      }
+      if (instance == null)
+      {
+        instance = new ThresholdKernel();
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * @return String The name of the kernel, for reports
+   */
+
+  public String getName() {
+    return "scalar";
+  }
+
+  /**
+   * Add pixels to a histogram.
+   *
+   * Four partial histograms are counted at once, so that runs of equal pixels do not wait for each other's increments.
+   *
+   * @param Array pixels The pixels
+   * @param int from Index of the first pixel
+   * @param int to Index after the last pixel
+   * @param Array histogram The 256-bin histogram to add to
+   */
+
+  public void addHistogram(byte[] pixels, int from, int to, int[] histogram) {
+    int[] h0 = new int[256], h1 = new int[256], h2 = new int[256], h3 = new int[256];
+    int i = from;
+    for (; i + 3 < to; i += 4)
+    {
+      h0[pixels[i] & 0xff]++;
+      h1[pixels[i + 1] & 0xff]++;
+      h2[pixels[i + 2] & 0xff]++;
+      h3[pixels[i + 3] & 0xff]++;
+    }
+    for (; i < to; i++)
+    {
+      h0[pixels[i] & 0xff]++;
+    }
+    for (int v = 0; v < 256; v++)
+    {
+      histogram[v] += h0[v] + h1[v] + h2[v] + h3[v];
+    }
+  }
+
+  /**
+   * Rotate rows of a page to the right, the same as ImageProcessor.rotateRight(), and add them to a histogram in the
+   * same pass.
+   *
+   * The page is copied in square blocks of BLOCK pixels, so that the rows read and the rows written of a block all stay
+   * in the cache; ImageProcessor.rotateRight() writes each row of the page as a column of the rotated page instead, one
+   * cache line per pixel, and the histogram would need a second pass over the page.
+   *
+   * @param Array pixels The pixels of the page
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int firstRow The first row of the page to rotate
+   * @param int lastRow The row after the last one to rotate
+   * @param Array rotated The pixels of the rotated page, height pixels wide and width pixels high
+   * @param Array histogram The 256-bin histogram to add the rotated pixels to
+   */
+
+  public void rotateRight(byte[] pixels, int width, int height, int firstRow, int lastRow, byte[] rotated, int[] histogram) {
+    int[] h0 = new int[256], h1 = new int[256];
+    for (int y0 = firstRow; y0 < lastRow; y0 += BLOCK)
+    {
+      int y1 = Math.min(lastRow, y0 + BLOCK);
+      for (int x0 = 0; x0 < width; x0 += BLOCK)
+      {
+        int x1 = Math.min(width, x0 + BLOCK);
+        //row x of the rotated page gets row y of the page at position height - 1 - y
+        for (int x = x0; x < x1; x++)
+        {
+          int out = x * height + height - 1 - y0;
+          int in = y0 * width + x;
+          int y = y0;
+          for (; y + 1 < y1; y += 2)
+          {
+            byte a = pixels[in], b = pixels[in + width];
+            rotated[out] = a;
+            rotated[out - 1] = b;
+            h0[a & 0xff]++;
+            h1[b & 0xff]++;
+            in += 2 * width;
+            out -= 2;
+          }
+          if (y < y1)
+          {
+            byte a = pixels[in];
+            rotated[out] = a;
+            h0[a & 0xff]++;
+          }
+        }
+      }
+    }
+    for (int v = 0; v < 256; v++)
+    {
+      histogram[v] += h0[v] + h1[v];
+    }
+  }
+
+  /**
+   * Set the bits of the pixels of a row that are within the threshold levels.
+   *
+   * @param Array pixels The pixels
+   * @param int offset Index of the first pixel of the row
+   * @param int width Number of pixels in the row
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param Array bits The bits of the mask, see BinaryMask
+   * @param int word Index of the first long of the row
+   */
+
+  public void threshold(byte[] pixels, int offset, int width, int lower, int upper, long[] bits, int word) {
+    for (int x0 = 0; x0 < width; x0 += 64)
+    {
+      long packed = 0;
+      int n = Math.min(64, width - x0);
+      for (int b = 0; b < n; b++)
+      {
+        int value = pixels[offset + x0 + b] & 0xff;
+        if (value >= lower && value <= upper)
+        {
+          packed |= 1L << b;
+        }
+      }
+      bits[word + (x0 >>> 6)] = packed;
+    }
+  }
+
+  /**
+   * Set the bits of the pixels of a row that are letter pixels by the Sauvola threshold
+   * t = mean * (1 + k * (deviation / range - 1)) of the window around them.
+   *
+   * The sums over the window come from prefix sums of the column sums: the window of pixel x covers the columns
+   * max(0, x - radius) to min(width - 1, x + radius) of the rows the column sums were taken over.
+   *
+   * @param Array pixels The pixels
+   * @param int offset Index of the first pixel of the row
+   * @param int width Number of pixels in the row
+   * @param Array sums Prefix sums of the column sums of the pixels, width + 1 values starting with 0
+   * @param Array squares Prefix sums of the column sums of the squared pixels, the same way
+   * @param int rows Number of rows the column sums were taken over
+   * @param int radius Half the width of the window
+   * @param double k The Sauvola k, how much the deviation lowers the threshold
+   * @param double range The Sauvola R, the largest deviation expected
+   * @param boolean darkLetters True if the letters are darker than the background
+   * @param Array bits The bits of the mask, see BinaryMask
+   * @param int word Index of the first long of the row
+   */
+
+  public void sauvola(byte[] pixels, int offset, int width, double[] sums, double[] squares, int rows, int radius,
+    double k, double range, boolean darkLetters, long[] bits, int word) {
+    for (int x = 0; x < width; x++)
+    {
+      int left = Math.max(0, x - radius), right = Math.min(width - 1, x + radius);
+      if (isLetter(pixels[offset + x] & 0xff, sums[right + 1] - sums[left], squares[right + 1] - squares[left],
+        (right - left + 1) * rows, k, range, darkLetters))
+      {
+        bits[word + (x >>> 6)] |= 1L << x;
+      }
+    }
+  }
+
+  /**
+   * The Sauvola test of one pixel; the vector version uses it for the pixels near the left and right edges.
+   */
+
+  static boolean isLetter(int value, double sum, double sumOfSquares, int count, double k, double range, boolean darkLetters) {
+    double mean = sum / count;
+    double deviation = Math.sqrt(Math.max(0.0, sumOfSquares / count - mean * mean));
+    if (darkLetters)
+    {
+      return value <= mean * (1.0 + k * (deviation / range - 1.0));
+    }
+    //the same on the inverted pixels
+    return 255 - value <= (255.0 - mean) * (1.0 + k * (deviation / range - 1.0));
+  }
+}
@@ -0,0 +1,167 @@
+import ij.*;
+import ij.gui.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+  /**
+   * The canvas of the results window for very large scans: instead of the whole image of the current slice, it only
+   * draws the tiles of a TilePyramid that are visible, at the level that suits the magnification.
+   *
+   * The results window still has VIEWS images per page, but they all share the pixels of the grayscale page, so there
+   * is no copy of the page per view; each view is put together while it is drawn: the original from the gray tiles, the
+   * one with the rectangles from the same tiles with the visible rectangles drawn on top, found with
+   * RectangleIndex.queryRange(), and the black and white one from the tiles of the mask. Zooming, scrolling and
+   * changing the slice work the same as with the normal canvas.
+   */
+
+public class TileCanvas extends ImageCanvas {
+
+  //the plugin object with the display settings, and the pages of the results window
+  protected Puzzle_Expert owner;
+  protected Puzzle_Expert[] pages;
+
+  //the pyramids of the pages, made when a page is first shown, all sharing one cache
+  protected TilePyramid[] pyramids;
+  protected TilePyramid.Cache cache;
+
+  //per page, the rectangles that are shown but not in the rectangle index because they are too big
+  protected int[][] bigRectangles;
+
+  //a tile as an image, for drawing it; and the off-screen image the canvas is drawn into, to avoid flickering
+  protected BufferedImage tileImage = new BufferedImage(TilePyramid.TILE_SIZE, TilePyramid.TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+  protected byte[] tilePixels = ((DataBufferByte) tileImage.getRaster().getDataBuffer()).getData();
+  protected BufferedImage offscreen;
+
+  /**
+   * Constructor.
+   *
+   * @param ImagePlus imp The results stack
+   * @param Puzzle_Expert owner The plugin object with the display settings
+   * @param Array pages The pages of the results stack, VIEWS images each
+   * @param long maxBytes The most memory the tiles may take
+   */
+
+  public TileCanvas(ImagePlus imp, Puzzle_Expert owner, Puzzle_Expert[] pages, long maxBytes) {
+    super(imp);
+    this.owner = owner;
+    this.pages = pages;
+    pyramids = new TilePyramid[pages.length];
+    bigRectangles = new int[pages.length][];
+    cache = new TilePyramid.Cache(maxBytes);
+  }
+
+  /**
+   * Get the pyramid of a page, making it if necessary.
+   */
+
+  protected TilePyramid getPyramid(int page) {
+    if (pyramids[page] == null)
+    {
+      Puzzle_Expert p = pages[page];
+      pyramids[page] = new TilePyramid((byte[]) p.ipNew.getPixels(), p.mask, p.w, p.h, cache);
+    }
+    return pyramids[page];
+  }
+
+  @Override
+  public void paint(Graphics g) {
+    int width = getWidth(), height = getHeight();
+    if (width <= 0 || height <= 0)
+    {
+      return;
+    }
+    if (offscreen == null || offscreen.getWidth() != width || offscreen.getHeight() != height)
+    {
+      offscreen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+    Graphics2D og = offscreen.createGraphics();
+    og.setColor(getBackground());
+    og.fillRect(0, 0, width, height);
+    og.setRenderingHint(RenderingHints.KEY_INTERPOLATION, magnification > 1.0
+      ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+    int page = (imp.getCurrentSlice() - 1) / Puzzle_Expert.VIEWS, view = (imp.getCurrentSlice() - 1) % Puzzle_Expert.VIEWS;
+    page = Math.min(page, pages.length - 1);
+    drawTiles(og, getPyramid(page), view == 2 ? TilePyramid.BLACK_AND_WHITE : TilePyramid.GRAY);
+    if (view > 0 && owner.rectanglesVisible)
+    {
+      drawRectangles(og, page);
+    }
+    Roi roi = imp.getRoi();
+    if (roi != null)
+    {
+      roi.draw(og);
+    }
+    og.dispose();
+
+    g.drawImage(offscreen, 0, 0, null);
+    setPaintPending(false);
+  }
+
+  /**
+   * Draw the visible tiles of a source.
+   */
+
+  protected void drawTiles(Graphics2D g, TilePyramid pyramid, int source) {
+    int level = pyramid.getLevel(magnification);
+    int scale = 1 << level, size = TilePyramid.TILE_SIZE;
+    int levelWidth = pyramid.getLevelWidth(level), levelHeight = pyramid.getLevelHeight(level);
+    int firstColumn = srcRect.x / scale / size, lastColumn = Math.min((levelWidth - 1) / size, (srcRect.x + srcRect.width - 1) / scale / size);
+    int firstRow = srcRect.y / scale / size, lastRow = Math.min((levelHeight - 1) / size, (srcRect.y + srcRect.height - 1) / scale / size);
+    for (int ty = firstRow; ty <= lastRow; ty++)
+    {
+      for (int tx = firstColumn; tx <= lastColumn; tx++)
+      {
+        //the buffer may be reused by the next tile, so the pixels are copied and drawn right away
+        ByteBuffer tile = pyramid.getTile(source, level, tx, ty).duplicate();
+        tile.clear();
+        tile.get(tilePixels);
+        int n = Math.min(size, levelWidth - tx * size), rows = Math.min(size, levelHeight - ty * size);
+        //the part of the page the tile covers, in the coordinates of the page and of the screen
+        int x0 = tx * size * scale, y0 = ty * size * scale;
+        int x1 = Math.min(pyramid.width, x0 + n * scale), y1 = Math.min(pyramid.height, y0 + rows * scale);
+        g.drawImage(tileImage, screenX(x0), screenY(y0), screenX(x1), screenY(y1), 0, 0, n, rows, null);
+      }
+    }
+  }
+
+  /**
+   * Draw the visible rectangles of a page, the same ones that Puzzle_Expert.addRectangles() puts on the overlay.
+   */
+
+  protected void drawRectangles(Graphics2D g, int page) {
+    Puzzle_Expert p = pages[page];
+    if (bigRectangles[page] == null)
+    {
+      ArrayList<Integer> big = new ArrayList<Integer>();
+      for (int i = 0; i < p.x.length; i++)
+      {
+        if (p.isTooBig(i))
+        {
+          big.add(i);
+        }
+      }
+      bigRectangles[page] = new int[big.size()];
+      for (int k = 0; k < big.size(); k++)
+      {
+        bigRectangles[page][k] = big.get(k);
+      }
+    }
+    g.setColor(owner.rectangleColor);
+    int[] visible = p.getRectangleIndex().queryRange(srcRect.x, srcRect.y, srcRect.x + srcRect.width, srcRect.y + srcRect.height);
+    for (int[] rectangles : new int[][] {visible, bigRectangles[page]})
+    {
+      for (int i : rectangles)
+      {
+        if (p.isRectangleShown(i, owner.minRectangleSize))
+        {
+          int x = (int) p.x[i], y = (int) p.y[i];
+          g.drawRect(screenX(x), screenY(y), screenX(x + (int) p.widths[i]) - screenX(x), screenY(y + (int) p.heights[i]) - screenY(y));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+  /**
+   * A multi-resolution pyramid of square tiles of a page, for showing very large scans without an 8-bit copy of every
+   * view of the page, see TileCanvas.
+   *
+   * Level 0 has the pixels of the page, and every next level has half the width and height, each pixel the average of
+   * 2x2 pixels of the level below, until the whole page fits in a single tile. There are two sources, the grayscale
+   * page and its black and white mask. A tile is only made when it is first shown, from the 4 tiles below it, and is kept
+   * in a Cache of direct buffers outside the Java heap; the cache has a fixed size and reuses the buffers of the tiles
+   * that were used the longest time ago.
+   */
+
+public class TilePyramid {
+
+  //width and height of a tile in pixels
+  public static final int TILE_SIZE = 256;
+
+  //the sources of the tiles
+  public static final int GRAY = 0, BLACK_AND_WHITE = 1;
+
+  //the page
+  protected byte[] pixels;
+  protected BinaryMask mask;
+  protected int width, height, levels;
+
+  //where the tiles are kept, and the number of this pyramid in its keys
+  protected Cache cache;
+  protected long id;
+
+  //numbers the pyramids sharing a cache
+  private static long nextId;
+
+  /**
+   * The tiles of any number of pyramids, at most a fixed number of bytes of them.
+   */
+
+  public static class Cache {
+
+    protected long maxBytes, bytes;
+
+    //the tiles by key, the one used the longest time ago first
+    protected LinkedHashMap<Long, ByteBuffer> tiles = new LinkedHashMap<Long, ByteBuffer>(64, 0.75f, true);
+
+    /**
+     * Constructor.
+     *
+     * @param long maxBytes The most memory the tiles may take; at least 16 tiles are kept in any case
+     */
+
+    public Cache(long maxBytes) {
+      this.maxBytes = Math.max(maxBytes, 16L * TILE_SIZE * TILE_SIZE);
+    }
+
+    /**
+     * @return ByteBuffer The tile, or null if it is not in the cache
+     */
+
+    synchronized ByteBuffer get(long key) {
+      return tiles.get(key);
+    }
+
+    synchronized void put(long key, ByteBuffer tile) {
+      tiles.put(key, tile);
+    }
+
+    /**
+     * Get a buffer for a new tile: a new one while the cache is not full, otherwise the one of the tile that was used the
+     * longest time ago, which is removed.
+     */
+
+    synchronized ByteBuffer allocate() {
+      if (bytes + TILE_SIZE * TILE_SIZE > maxBytes && !tiles.isEmpty())
+      {
+        Iterator<Map.Entry<Long, ByteBuffer>> eldest = tiles.entrySet().iterator();
+        ByteBuffer tile = eldest.next().getValue();
+        eldest.remove();
+        tile.clear();
+        return tile;
+      }
+      bytes += TILE_SIZE * TILE_SIZE;
+      return ByteBuffer.allocateDirect(TILE_SIZE * TILE_SIZE);
+    }
+
+    /**
+     * @return long The memory taken by the tiles
+     */
+
+    public synchronized long getBytes() {
+      return bytes;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param Array pixels The grayscale page
+   * @param BinaryMask mask The black and white page
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param Cache cache Where the tiles are kept
+   */
+
+  public TilePyramid(byte[] pixels, BinaryMask mask, int width, int height, Cache cache) {
+    this.pixels = pixels;
+    this.mask = mask;
+    this.width = width;
+    this.height = height;
+    this.cache = cache;
+    synchronized (TilePyramid.class)
+    {
+      id = nextId++;
+    }
+    levels = 1;
+    while (getLevelWidth(levels - 1) > TILE_SIZE || getLevelHeight(levels - 1) > TILE_SIZE)
+    {
+      levels++;
+    }
+  }
+
+  /**
+   * @return int The number of levels
+   */
+
+  public int getLevels() {
+    return levels;
+  }
+
+  /**
+   * Get the level to show at a magnification: the smallest one that still has at least one pixel per screen pixel.
+   *
+   * @param double magnification The magnification of the canvas
+   * @return int The level
+   */
+
+  public int getLevel(double magnification) {
+    int level = 0;
+    while (level + 1 < levels && (1 << (level + 1)) * magnification <= 1.0)
+    {
+      level++;
+    }
+    return level;
+  }
+
+  public int getLevelWidth(int level) {
+    return (width + (1 << level) - 1) >> level;
+  }
+
+  public int getLevelHeight(int level) {
+    return (height + (1 << level) - 1) >> level;
+  }
+
+  /**
+   * Get a tile, making it if it is not in the cache.
+   *
+   * The buffer may be reused for another tile by the next call, so its pixels should be copied out right away.
+   * The tiles at the right and bottom edges of a level are only partly filled.
+   *
+   * @param int source GRAY or BLACK_AND_WHITE
+   * @param int level The level
+   * @param int tx Column of the tile
+   * @param int ty Row of the tile
+   * @return ByteBuffer TILE_SIZE rows of TILE_SIZE pixels
+   */
+
+  public ByteBuffer getTile(int source, int level, int tx, int ty) {
+    long key = ((id * 2 + source) * 32 + level) << 40 | (long) ty << 20 | tx;
+    ByteBuffer tile = cache.get(key);
+    if (tile != null)
+    {
+      return tile;
+    }
+    tile = cache.allocate();
+    if (level == 0)
+    {
+      copyPage(source, tx, ty, tile);
+    } else
+    {
+      //one quarter of the tile at a time: a tile of the level below is not used again after the next getTile()
+      for (int quarter = 0; quarter < 4; quarter++)
+      {
+        int cx = 2 * tx + (quarter & 1), cy = 2 * ty + (quarter >> 1);
+        if (cx * TILE_SIZE < getLevelWidth(level - 1) && cy * TILE_SIZE < getLevelHeight(level - 1))
+        {
+          shrink(getTile(source, level - 1, cx, cy), level - 1, cx, cy, tile, quarter);
+        }
+      }
+    }
+    cache.put(key, tile);
+    return tile;
+  }
+
+  /**
+   * Fill a tile of level 0 from the page.
+   */
+
+  protected void copyPage(int source, int tx, int ty, ByteBuffer tile) {
+    int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+    int n = Math.min(TILE_SIZE, width - x0), rows = Math.min(TILE_SIZE, height - y0);
+    for (int row = 0; row < rows; row++)
+    {
+      int offset = (y0 + row) * width + x0;
+      if (source == GRAY)
+      {
+        tile.position(row * TILE_SIZE);
+        tile.put(pixels, offset, n);
+      } else
+      {
+        for (int x = 0; x < n; x++)
+        {
+          tile.put(row * TILE_SIZE + x, (byte) mask.getValue(x0 + x, y0 + row));
+        }
+      }
+    }
+    tile.clear();
+  }
+
+  /**
+   * Average 2x2 pixels of a tile of the level below into one quarter of a tile.
+   *
+   * At the right and bottom edges of the level below, where a pixel has no neighbour, only the pixels that exist are
+   * averaged.
+   */
+
+  protected void shrink(ByteBuffer child, int childLevel, int cx, int cy, ByteBuffer tile, int quarter) {
+    int n = Math.min(TILE_SIZE, getLevelWidth(childLevel) - cx * TILE_SIZE);
+    int rows = Math.min(TILE_SIZE, getLevelHeight(childLevel) - cy * TILE_SIZE);
+    int offset = (quarter >> 1) * (TILE_SIZE / 2) * TILE_SIZE + (quarter & 1) * (TILE_SIZE / 2);
+    for (int row = 0; row < rows; row += 2)
+    {
+      boolean twoRows = row + 1 < rows;
+      for (int x = 0; x < n; x += 2)
+      {
+        boolean twoColumns = x + 1 < n;
+        int k = row * TILE_SIZE + x;
+        int sum = child.get(k) & 0xff, count = 1;
+        if (twoColumns)
+        {
+          sum += child.get(k + 1) & 0xff;
+          count++;
+        }
+        if (twoRows)
+        {
+          sum += child.get(k + TILE_SIZE) & 0xff;
+          count++;
+          if (twoColumns)
+          {
+            sum += child.get(k + TILE_SIZE + 1) & 0xff;
+            count++;
+          }
+        }
+        tile.put(offset + (row / 2) * TILE_SIZE + x / 2, (byte) ((sum + count / 2) / count));
+      }
+    }
+  }
+}
@@ -0,0 +1,293 @@
+import ij.process.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+  /**
+   * Thresholds the image and finds the clusters in parallel, for very large scans.
+   *
+   * The image is split into horizontal stripes. Each stripe is rotated and its histogram counted in the same pass on a
+   * ForkJoinPool, and the histograms are added up to find the threshold, see rotateRight().
+   * Then each stripe is labeled on its own with a ComponentLabeler, and the clusters that continue across the border
+   * between two stripes are joined using the last row of the upper stripe and the first row of the lower one.
+   * The result is the same set of boxes, in the same order, as labeling the whole image at once.
+   */
+
+public class TiledClusterDetector {
+
+  //the pool the stripes are processed on
+  protected ForkJoinPool pool;
+
+  //minimum height of a stripe, so that the joining does not cost more than the labeling
+  protected int minStripeHeight = 64;
+
+  /**
+   * Constructor using the common ForkJoinPool.
+   */
+
+  public TiledClusterDetector() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ForkJoinPool pool The pool to process the stripes on
+   */
+
+  public TiledClusterDetector(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Split the image into stripes: a few per thread, but not thinner than minStripeHeight.
+   *
+   * @param int height Height of the image
+   * @return Array The first row of each stripe, followed by the height of the image
+   */
+
+  protected int[] getStripes(int height) {
+    int n = Math.max(1, Math.min(4 * pool.getParallelism(), height / minStripeHeight));
+    int[] stripes = new int[n + 1];
+    for (int s = 0; s <= n; s++)
+    {
+      stripes[s] = (int) ((long) height * s / n);
+    }
+    return stripes;
+  }
+
+  /**
+   * Rotate the image to the right and compute its histogram in parallel, in one pass, see ThresholdKernel.rotateRight().
+   *
+   * @param Array pixels Pixels of the image
+   * @param int width Width of the image
+   * @param int height Height of the image
+   * @param Array rotated Receives the pixels of the rotated image
+   * @param ThresholdKernel kernel The kernel that rotates each stripe
+   * @return Array The 256-bin histogram
+   */
+
+  public int[] rotateRight(final byte[] pixels, final int width, final int height, final byte[] rotated, final ThresholdKernel kernel) {
+    final int[] stripes = getStripes(height);
+    ArrayList<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+    for (int s = 0; s < stripes.length - 1; s++)
+    {
+      final int start = stripes[s], end = stripes[s + 1];
+      tasks.add(new Callable<int[]>() {
+        public int[] call() {
+          int[] histogram = new int[256];
+          kernel.rotateRight(pixels, width, height, start, end, rotated, histogram);
+          return histogram;
+        }
+      });
+    }
+
+    int[] histogram = new int[256];
+    for (Future<int[]> future : pool.invokeAll(tasks))
+    {
+      int[] part = join(future);
+      for (int i = 0; i < 256; i++)
+      {
+        histogram[i] += part[i];
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Find the clusters in the image in parallel.
+   *
+   * @param Array pixels Pixels of the image
+   * @param int width Width of the image
+   * @param int height Height of the image
+   * @param int lower Lower threshold level
+   * @param int upper Upper threshold level
+   * @param double minSize Clusters with fewer pixels are left out
+   * @param double maxSize Clusters with more pixels are left out
+   * @return Array The packed bounding boxes, see ComponentLabeler
+   */
+
+  public int[] getClusters(final byte[] pixels, final int width, int height, final int lower, final int upper, double minSize, double maxSize) {
+    final int[] stripes = getStripes(height);
+    int n = stripes.length - 1;
+
+    //label each stripe on its own
+    ArrayList<Callable<ComponentLabeler>> tasks = new ArrayList<Callable<ComponentLabeler>>();
+    for (int s = 0; s < n; s++)
+    {
+      final int start = stripes[s], end = stripes[s + 1];
+      tasks.add(new Callable<ComponentLabeler>() {
+        public ComponentLabeler call() {
+          ComponentLabeler labeler = new ComponentLabeler(width, lower, upper, start);
+          for (int y = start; y < end; y++)
+          {
+            labeler.addRow(pixels, y * width);
+          }
+          return labeler;
+        }
+      });
+    }
+    ComponentLabeler[] labelers = new ComponentLabeler[n];
+    int[] base = new int[n + 1];
+    int s = 0;
+    for (Future<ComponentLabeler> future : pool.invokeAll(tasks))
+    {
+      labelers[s] = join(future);
+      //the labels of stripe s are numbered base[s] + label in the joined forest
+      base[s + 1] = base[s] + labelers[s].count;
+      s++;
+    }
+
+    //a second union-find forest over the clusters of all stripes; each stripe's clusters start out as separate roots
+    int[] parent = new int[base[n]];
+    for (int i = 0; i < parent.length; i++)
+    {
+      parent[i] = i;
+    }
+
+    //join the clusters that touch across each border, including diagonally
+    for (s = 0; s < n - 1; s++)
+    {
+      if (labelers[s].row == labelers[s].startRow || labelers[s + 1].row == labelers[s + 1].startRow)
+      {
+        continue;
+      }
+      int[] above = labelers[s].getLastRowLabels();
+      int[] below = labelers[s + 1].getFirstRowLabels();
+      for (int x = 0; x < width; x++)
+      {
+        if (below[x] == 0)
+        {
+          continue;
+        }
+        for (int dx = -1; dx <= 1; dx++)
+        {
+          if (x + dx >= 0 && x + dx < width && above[x + dx] != 0)
+          {
+            union(parent, base[s] + above[x + dx], base[s + 1] + below[x]);
+          }
+        }
+      }
+    }
+
+    //merge the bounding boxes and pixel counts into the roots; the smallest number wins, which is the earliest stripe
+    int[] minX = new int[parent.length], minY = new int[parent.length], maxX = new int[parent.length], maxY = new int[parent.length];
+    long[] area = new long[parent.length];
+    long[] first = new long[parent.length];
+    boolean[] isCluster = new boolean[parent.length];
+    for (s = 0; s < n; s++)
+    {
+      ComponentLabeler labeler = labelers[s];
+      for (int label = 1; label < labeler.count; label++)
+      {
+        if (labeler.parent[label] != label)
+        {
+          continue;
+        }
+        int i = base[s] + label;
+        minX[i] = labeler.minX[label];
+        minY[i] = labeler.minY[label];
+        maxX[i] = labeler.maxX[label];
+        maxY[i] = labeler.maxY[label];
+        area[i] = labeler.area[label];
+        first[i] = (long) labeler.minY[label] * width + labeler.firstX[label];
+        isCluster[i] = true;
+      }
+    }
+    int clusters = 0;
+    for (int i = 0; i < parent.length; i++)
+    {
+      if (!isCluster[i])
+      {
+        continue;
+      }
+      int root = find(parent, i);
+      if (root == i)
+      {
+        continue;
+      }
+      if (minX[i] < minX[root]) minX[root] = minX[i];
+      if (minY[i] < minY[root]) minY[root] = minY[i];
+      if (maxX[i] > maxX[root]) maxX[root] = maxX[i];
+      if (maxY[i] > maxY[root]) maxY[root] = maxY[i];
+      if (first[i] < first[root]) first[root] = first[i];
+      area[root] += area[i];
+      isCluster[i] = false;
+    }
+
+    //put the clusters in the order of their first pixel, as if the whole image had been labeled in one go
+    ArrayList<long[]> order = new ArrayList<long[]>();
+    for (int i = 0; i < parent.length; i++)
+    {
+      if (isCluster[i] && area[i] >= minSize && area[i] <= maxSize)
+      {
+        order.add(new long[] {first[i], i});
+      }
+    }
+    long[][] sorted = order.toArray(new long[order.size()][]);
+    Arrays.sort(sorted, new java.util.Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+
+    int[] boxes = new int[sorted.length * ComponentLabeler.BOX_SIZE];
+    int k = 0;
+    for (long[] entry : sorted)
+    {
+      int i = (int) entry[1];
+      boxes[k++] = minX[i];
+      boxes[k++] = minY[i];
+      boxes[k++] = maxX[i] - minX[i] + 1;
+      boxes[k++] = maxY[i] - minY[i] + 1;
+    }
+    return boxes;
+  }
+
+  /**
+   * Find the root of a node in a union-find forest, shortening the path on the way.
+   */
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i)
+    {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /**
+   * Join two nodes of a union-find forest; the smaller root survives.
+   */
+
+  private static void union(int[] parent, int a, int b) {
+    a = find(parent, a);
+    b = find(parent, b);
+    if (a < b)
+    {
+      parent[b] = a;
+    } else if (b < a)
+    {
+      parent[a] = b;
+    }
+  }
+
+  /**
+   * Wait for a task, passing on its exception.
+   */
+
+  private static <T> T join(Future<T> future) {
+    try
+    {
+      return future.get();
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,164 @@
+import jdk.incubator.vector.*;
+
+  /**
+   * The SIMD version of ThresholdKernel, using the Vector API.
+   *
+   * The global threshold compares a whole vector of pixels with the two levels at once and packs the comparison into
+   * bits of the mask without leaving the vector registers, see pack(). The Sauvola threshold computes the mean, deviation and threshold of several
+   * pixels at once in double lanes, with the same operations in the same order as the scalar version, so the bits are
+   * the same. The histogram is not vectorized: counting into bins has no SIMD form, so it is inherited.
+   *
+   * This class needs the incubator module. Compile it on its own with
+   *   javac --add-modules jdk.incubator.vector -cp ij.jar:. VectorThresholdKernel.java
+   * and run ImageJ or the batch mode with "--add-modules jdk.incubator.vector"; without it, ThresholdKernel.getInstance()
+   * uses the scalar version.
+   */
+
+public class VectorThresholdKernel extends ThresholdKernel {
+
+  //the widest vectors this CPU has; their number of lanes divides 64, so one vector never spans two longs of the mask
+  static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+  static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+  //the same widths in longs
+  static final VectorSpecies<Long> BYTE_WORDS = LongVector.SPECIES_PREFERRED;
+  static final VectorSpecies<Long> DOUBLE_WORDS = VectorSpecies.of(long.class, DOUBLES.vectorShape());
+
+  //gathers the lowest bit of each of the 8 bytes of a long into its top byte, the first byte as the lowest bit
+  static final long GATHER = 0x0102040810204080L;
+
+  //per long lane, how far its 8 bits are shifted in the packed result; per double lane, its bit
+  static final LongVector BYTE_SHIFTS = LongVector.zero(BYTE_WORDS).addIndex(8);
+  static final LongVector LANE_BITS = LongVector.broadcast(DOUBLE_WORDS, 1L).lanewise(VectorOperators.LSHL, LongVector.zero(DOUBLE_WORDS).addIndex(1));
+
+  //the pixels of a row as doubles, for the Sauvola threshold
+  private final ThreadLocal<double[]> rowValues = new ThreadLocal<double[]>();
+
+  @Override
+  public String getName() {
+    return "vector " + BYTES.vectorBitSize() + " bit";
+  }
+
+  @Override
+  public void threshold(byte[] pixels, int offset, int width, int lower, int upper, long[] bits, int word) {
+    int lanes = BYTES.length();
+    byte lowerByte = (byte) lower, upperByte = (byte) upper;
+    int x = 0;
+    for (; x + lanes <= width; x += lanes)
+    {
+      ByteVector values = ByteVector.fromArray(BYTES, pixels, offset + x);
+      //the pixels are unsigned
+      VectorMask<Byte> inside = values.compare(VectorOperators.UNSIGNED_GE, lowerByte)
+        .and(values.compare(VectorOperators.UNSIGNED_LE, upperByte));
+      long packed = pack(inside);
+      if ((x & 63) == 0)
+      {
+        bits[word + (x >>> 6)] = packed;
+      } else
+      {
+        bits[word + (x >>> 6)] |= packed << (x & 63);
+      }
+    }
+    //the rest of the row
+    if (x < width)
+    {
+      long packed = 0;
+      for (int b = x; b < width; b++)
+      {
+        int value = pixels[offset + b] & 0xff;
+        if (value >= lower && value <= upper)
+        {
+          packed |= 1L << (b & 63);
+        }
+      }
+      if ((x & 63) == 0)
+      {
+        bits[word + (x >>> 6)] = packed;
+      } else
+      {
+        bits[word + (x >>> 6)] |= packed;
+      }
+    }
+  }
+
+  @Override
+  public void sauvola(byte[] pixels, int offset, int width, double[] sums, double[] squares, int rows, int radius,
+    double k, double range, boolean darkLetters, long[] bits, int word) {
+    int lanes = DOUBLES.length();
+    double[] values = rowValues.get();
+    if (values == null || values.length < width)
+    {
+      values = new double[width];
+      rowValues.set(values);
+    }
+    for (int x = 0; x < width; x++)
+    {
+      values[x] = pixels[offset + x] & 0xff;
+    }
+
+    //in the middle of the row the window is never clipped, so all of the lanes have the same count;
+    //the vectors start at multiples of the number of lanes, so their bits stay within one long
+    int start = Math.min(width, (radius + lanes - 1) / lanes * lanes);
+    int end = start;
+    if (width - radius - 1 >= start)
+    {
+      end = start + (width - radius - start) / lanes * lanes;
+    }
+    scalarSauvola(values, 0, start, width, sums, squares, rows, radius, k, range, darkLetters, bits, word);
+    scalarSauvola(values, end, width, width, sums, squares, rows, radius, k, range, darkLetters, bits, word);
+
+    double count = (2 * radius + 1) * rows;
+    DoubleVector one = DoubleVector.broadcast(DOUBLES, 1.0);
+    for (int x = start; x < end; x += lanes)
+    {
+      DoubleVector sum = DoubleVector.fromArray(DOUBLES, sums, x + radius + 1).sub(DoubleVector.fromArray(DOUBLES, sums, x - radius));
+      DoubleVector sumOfSquares = DoubleVector.fromArray(DOUBLES, squares, x + radius + 1).sub(DoubleVector.fromArray(DOUBLES, squares, x - radius));
+      DoubleVector mean = sum.div(count);
+      DoubleVector deviation = sumOfSquares.div(count).sub(mean.mul(mean)).max(0.0).lanewise(VectorOperators.SQRT);
+      DoubleVector factor = one.add(deviation.div(range).sub(1.0).mul(k));
+      DoubleVector value = DoubleVector.fromArray(DOUBLES, values, x);
+      VectorMask<Double> letter;
+      if (darkLetters)
+      {
+        letter = value.compare(VectorOperators.LE, mean.mul(factor));
+      } else
+      {
+        letter = value.neg().add(255.0).compare(VectorOperators.LE, mean.neg().add(255.0).mul(factor));
+      }
+      //the bit of each lane that is a letter pixel
+      long packed = LongVector.zero(DOUBLE_WORDS).blend(LANE_BITS, letter.cast(DOUBLE_WORDS)).reduceLanes(VectorOperators.OR);
+      bits[word + (x >>> 6)] |= packed << (x & 63);
+    }
+  }
+
+  /**
+   * Turn a mask of byte lanes into bits, the first lane as the lowest bit.
+   *
+   * VectorMask.toLong() would do this, but before Java 19 it is not compiled into vector instructions and goes through
+   * the lanes one by one. Instead, the lanes become bytes of 0 or 1, each group of 8 is gathered into 8 bits by a multiply
+   * in a long lane, and the long lanes are shifted into place and combined.
+   */
+
+  private static long pack(VectorMask<Byte> mask) {
+    LongVector words = ByteVector.zero(BYTES).blend((byte) 1, mask).reinterpretAsLongs();
+    return words.mul(GATHER).lanewise(VectorOperators.LSHR, 56).lanewise(VectorOperators.LSHL, BYTE_SHIFTS)
+      .reduceLanes(VectorOperators.OR);
+  }
+
+  /**
+   * The scalar Sauvola test for the pixels from x0 to x1.
+   */
+
+  private static void scalarSauvola(double[] values, int x0, int x1, int width, double[] sums, double[] squares, int rows,
+    int radius, double k, double range, boolean darkLetters, long[] bits, int word) {
+    for (int x = x0; x < x1; x++)
+    {
+      int left = Math.max(0, x - radius), right = Math.min(width - 1, x + radius);
+      if (isLetter((int) values[x], sums[right + 1] - sums[left], squares[right + 1] - squares[left],
+        (right - left + 1) * rows, k, range, darkLetters))
+      {
+        bits[word + (x >>> 6)] |= 1L << x;
+      }
+    }
+  }
+}
@@ -0,0 +1,354 @@
+import ij.*;
+import ij.process.*;
+import ij.measure.*;
+import ij.plugin.PNG_Writer;
+import java.io.*;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+  /**
+   * The stages of the Puzzle_Expert pipeline that benchmarks.PipelineBenchmark measures, set up on one synthetic puzzle
+   * page: a grid of letter-like strokes on a noisy, unevenly lit background, drawn from a fixed random seed, so the same
+   * size and pitch give the same pixels on every machine and no image files are needed.
+   *
+   * This class is in the default package with the plugin, which classes in a named package cannot refer to, and JMH
+   * needs the benchmarks in one. So each stage is handed over as a LongSupplier: one call is one operation (one page,
+   * or all of the letters of one page), and it returns a value that depends on the work, for JMH to consume.
+   */
+
+public class PipelineStages implements Closeable {
+
+  //the page, in color and in gray
+  final int width, height, pitch;
+  final ColorProcessor rgb;
+  final ByteProcessor gray;
+
+  //directory the PNG stage writes into
+  File pngDir;
+
+  /**
+   * Draw the page.
+   *
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int pitch Distance between the letters in pixels: a smaller pitch gives more letters per page
+   */
+
+  public PipelineStages(int width, int height, int pitch) {
+    this.width = width;
+    this.height = height;
+    this.pitch = pitch;
+    rgb = createPage(width, height, pitch, 1);
+    gray = (ByteProcessor) rgb.convertToByte(false);
+  }
+
+  /**
+   * Set up one stage.
+   *
+   * @param String name Name of the stage, which is the name of its benchmark method
+   * @return LongSupplier One operation of the stage
+   */
+
+  public LongSupplier get(String name) throws IOException {
+    if (name.equals("grayscale"))
+    {
+      return new LongSupplier() {
+        public long getAsLong() {
+          return rgb.convertToByte(false).getPixelCount();
+        }
+      };
+    }
+    if (name.equals("rotateRight"))
+    {
+      return new LongSupplier() {
+        public long getAsLong() {
+          return gray.rotateRight().getPixelCount();
+        }
+      };
+    }
+    if (name.equals("rotateHistogram"))
+    {
+      //the same rotation with the histogram counted in the same pass, as the pipeline does it
+      final ThresholdKernel kernel = ThresholdKernel.getInstance();
+      final byte[] grayPixels = (byte[]) gray.getPixels(), rotatedBlocks = new byte[width * height];
+      return new LongSupplier() {
+        public long getAsLong() {
+          int[] histogram = new int[256];
+          kernel.rotateRight(grayPixels, width, height, 0, height, rotatedBlocks, histogram);
+          return histogram[0] + rotatedBlocks[0];
+        }
+      };
+    }
+
+    final ImageProcessor rotated = gray.rotateRight();
+    final byte[] rotatedPixels = (byte[]) rotated.getPixels();
+    final int rotatedWidth = rotated.getWidth(), rotatedHeight = rotated.getHeight();
+    if (name.equals("thresholdIsoData"))
+    {
+      return new LongSupplier() {
+        public long getAsLong() {
+          rotated.resetThreshold();
+          rotated.setAutoThreshold("IsoData", false, ImageProcessor.BLACK_AND_WHITE_LUT);
+          return (long) rotated.getMaxThreshold();
+        }
+      };
+    }
+    if (name.equals("thresholdOtsu"))
+    {
+      final PageThreshold otsu = new PageThreshold(PageThreshold.OTSU);
+      return new LongSupplier() {
+        public long getAsLong() {
+          return otsu.getLevels(otsu.getHistogram(rotatedPixels), false)[1];
+        }
+      };
+    }
+    if (name.equals("maskScalar"))
+    {
+      //always the plain Java kernel, as the baseline for maskKernel, which uses the one getInstance() picks
+      final ThresholdKernel scalar = new ThresholdKernel();
+      return new LongSupplier() {
+        public long getAsLong() {
+          return BinaryMask.threshold(rotatedPixels, rotatedWidth, rotatedHeight, 0, 128, scalar).bits[0];
+        }
+      };
+    }
+    if (name.equals("maskKernel"))
+    {
+      final PageThreshold otsu = new PageThreshold(PageThreshold.OTSU);
+      return new LongSupplier() {
+        public long getAsLong() {
+          return otsu.threshold(rotatedPixels, rotatedWidth, rotatedHeight, 0, 128).bits[0];
+        }
+      };
+    }
+    if (name.equals("thresholdSauvola"))
+    {
+      final PageThreshold sauvola = new PageThreshold(PageThreshold.SAUVOLA);
+      return new LongSupplier() {
+        public long getAsLong() {
+          return sauvola.sauvola(rotatedPixels, rotatedWidth, rotatedHeight, false).bits[0];
+        }
+      };
+    }
+    if (name.startsWith("clusters"))
+    {
+      int clusterEngine = name.equals("clustersParticleAnalyzer") ? Puzzle_Expert.PARTICLE_ANALYZER
+        : name.equals("clustersTiled") ? Puzzle_Expert.TILED : Puzzle_Expert.UNION_FIND;
+      final Puzzle_Expert clusters = process(gray, clusterEngine);
+      final PuzzleEngine engine = clusters.getEngine();
+      return new LongSupplier() {
+        public long getAsLong() {
+          return engine.findClusters(clusters.getPage().detectionIp).length;
+        }
+      };
+    }
+
+    //a page that has been through the whole detection, for the stages that come after it
+    final Puzzle_Expert page = process(gray, Puzzle_Expert.UNION_FIND);
+    final int letters = page.x.length;
+    if (name.equals("addRectangles"))
+    {
+      return new LongSupplier() {
+        public long getAsLong() {
+          page.addRectangles();
+          return page.rectangles.size();
+        }
+      };
+    }
+    if (name.equals("extractCropResize"))
+    {
+      final ImageProcessor bw = page.mask.toByteProcessor();
+      return new LongSupplier() {
+        public long getAsLong() {
+          long sum = 0;
+          for (int i = 0; i < letters; i++)
+          {
+            PuzzleEngine.RectangleCoordinates square = square(page, i);
+            //copy the square into a new image and resize it, in color and in black and white, the way the letters used to be cut out
+            ByteProcessor letterIp = new ByteProcessor(square.rW, square.rH);
+            ByteProcessor letterIpBw = new ByteProcessor(square.rW, square.rH);
+            for (int u = 0; u < square.rW; u++)
+            {
+              for (int v = 0; v < square.rH; v++)
+              {
+                letterIp.set(u, v, page.ipNew.getPixel(square.xTopLeft + u, square.yTopLeft + v));
+                letterIpBw.set(u, v, bw.getPixel(square.xTopLeft + u, square.yTopLeft + v));
+              }
+            }
+            letterIp.setInterpolationMethod(ImageProcessor.BILINEAR);
+            letterIpBw.setInterpolationMethod(ImageProcessor.BILINEAR);
+            sum += letterIp.resize(GlyphExtractor.SIZE).get(0) + letterIpBw.resize(GlyphExtractor.SIZE).get(0);
+          }
+          return sum;
+        }
+      };
+    }
+    if (name.equals("extractGlyphExtractor") || name.equals("extractAreaAverage"))
+    {
+      final GlyphExtractor extractor = name.equals("extractAreaAverage")
+        ? new GlyphExtractor(GlyphExtractor.SIZE, GlyphExtractor.AREA_AVERAGE) : page.glyphExtractor;
+      final byte[] pixels = (byte[]) page.ipNew.getPixels();
+      return new LongSupplier() {
+        public long getAsLong() {
+          long sum = 0;
+          for (int i = 0; i < letters; i++)
+          {
+            PuzzleEngine.RectangleCoordinates square = square(page, i);
+            extractor.extract(pixels, page.mask, page.w, page.h, square.xTopLeft, square.yTopLeft, square.rW);
+            sum += extractor.getGray()[0];
+          }
+          return sum;
+        }
+      };
+    }
+    if (name.equals("pngWrite"))
+    {
+      pngDir = createTempDir();
+      final byte[] pixels = (byte[]) page.ipNew.getPixels();
+      return new LongSupplier() {
+        public long getAsLong() {
+          PNG_Writer pngWriter = new PNG_Writer();
+          long bytes = 0;
+          for (int i = 0; i < letters; i++)
+          {
+            PuzzleEngine.RectangleCoordinates square = square(page, i);
+            page.glyphExtractor.extract(pixels, page.mask, page.w, page.h, square.xTopLeft, square.yTopLeft, square.rW);
+            ImagePlus letterIm = new ImagePlus("", page.glyphExtractor.getGrayProcessor());
+            File file = new File(pngDir, (i % 100) + ".png");
+            try
+            {
+              pngWriter.writeImage(letterIm, file.getPath(), Prefs.getTransparentIndex());
+            } catch (Exception e)
+            {
+              throw new RuntimeException(e);
+            }
+            bytes += file.length();
+          }
+          return bytes;
+        }
+      };
+    }
+    throw new IllegalArgumentException("No stage named " + name);
+  }
+
+  /**
+   * Delete the directory of the PNG stage, if there is one.
+   */
+
+  public void close() {
+    if (pngDir != null)
+    {
+      deleteTempDir(pngDir);
+      pngDir = null;
+    }
+  }
+
+  /**
+   * Run the detection part of the pipeline on a copy of a page.
+   *
+   * @param ByteProcessor gray The grayscale page
+   * @param int clusterEngine How the clusters are found
+   * @return Puzzle_Expert The plugin object after process()
+   */
+
+  static Puzzle_Expert process(ByteProcessor gray, int clusterEngine) {
+    Puzzle_Expert puzzleExpert = new Puzzle_Expert(128, 513, new ResultsTable(), 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+    puzzleExpert.setClusterEngine(clusterEngine);
+    ImagePlus imp = new ImagePlus("benchmark", gray.duplicate());
+    puzzleExpert.setupHeadless(imp);
+    puzzleExpert.process(imp.getProcessor());
+    return puzzleExpert;
+  }
+
+  /**
+   * Get the square around a cluster, the same way saveLetter() does.
+   */
+
+  static PuzzleEngine.RectangleCoordinates square(Puzzle_Expert page, int i) {
+    PuzzleEngine.RectangleCoordinates square = new PuzzleEngine.RectangleCoordinates();
+    square.xTopLeft = (int) page.x[i];
+    square.yTopLeft = (int) page.y[i];
+    square.rW = (int) page.widths[i];
+    square.rH = (int) page.heights[i];
+    square.adjustToSquare();
+    return square;
+  }
+
+  /**
+   * Draw a synthetic puzzle page: a grid of letters made of random strokes, on a background that gets darker towards
+   * the bottom right-hand corner, with some noise. The same arguments always give the same page.
+   *
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int pitch Distance between the letters; the letters are about two thirds of it
+   * @param long seed Seed of the random numbers
+   * @return ColorProcessor The page
+   */
+
+  public static ColorProcessor createPage(int width, int height, int pitch, long seed) {
+    Random random = new Random(seed);
+    ColorProcessor page = new ColorProcessor(width, height);
+    int[] pixels = (int[]) page.getPixels();
+
+    //background
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        int value = 235 - 30 * (x + y) / (width + height) + random.nextInt(11) - 5;
+        pixels[y * width + x] = 0xff000000 | (value << 16) | ((value - 5) << 8) | (value - 15);
+      }
+    }
+
+    //letters: each one is two to four strokes between the points of a 3x3 grid inside its cell
+    int size = pitch * 2 / 3;
+    page.setLineWidth(Math.max(1, pitch / 12));
+    for (int top = pitch / 2; top + size < height; top += pitch)
+    {
+      for (int left = pitch / 2; left + size < width; left += pitch)
+      {
+        int value = 20 + random.nextInt(50);
+        page.setColor(new java.awt.Color(value, value, value));
+        int strokes = 2 + random.nextInt(3);
+        int previous = random.nextInt(9);
+        for (int s = 0; s < strokes; s++)
+        {
+          int next = random.nextInt(9);
+          page.drawLine(left + previous % 3 * size / 2, top + previous / 3 * size / 2, left + next % 3 * size / 2, top + next / 3 * size / 2);
+          //a stroke either continues from the end of the last one or starts somewhere new
+          previous = random.nextBoolean() ? next : random.nextInt(9);
+        }
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Create an empty directory for the PNG stage.
+   */
+
+  static File createTempDir() throws IOException {
+    File dir = File.createTempFile("puzzle-benchmark", "");
+    if (!dir.delete() || !dir.mkdir())
+    {
+      throw new IOException(dir.getPath() + ": could not create the directory");
+    }
+    return dir;
+  }
+
+  /**
+   * Delete the directory of the PNG stage and the files in it.
+   */
+
+  static void deleteTempDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+  /**
+   * Benchmarks of the stages of the Puzzle_Expert pipeline, so that a slower stage shows up between versions.
+   *
+   * Every benchmark runs on synthetic puzzle pages of each size and pitch (a smaller pitch gives more letters per page),
+   * drawn by PipelineStages. The time is per page, or per all of the letters of a page for the extract and PNG stages.
+   *
+   * Stages: grayscale conversion, rotateRight, the rotation with the histogram in the same pass, IsoData, Otsu and
+   * Sauvola thresholds, the black and white mask with the scalar ThresholdKernel and with the one getInstance() picks,
+   * finding the clusters with each engine, addRectangles, adjustToSquare plus crop plus resize(12) the way the letters
+   * used to be cut out, the same with GlyphExtractor, GlyphExtractor with area averaging, and writing the letters as
+   * PNG files.
+   *
+   * Usage: java -jar jmh/target/benchmarks.jar [regexp] [-p size=600x450,...] [-p pitch=48,...] [-rf json -rff file]
+   *
+   * The forks run without the jdk.incubator.vector module, so the kernel stages measure the scalar ThresholdKernel; add
+   * -jvmArgsAppend --add-modules=jdk.incubator.vector on Java 17 or newer to measure the vector one.
+   */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PipelineBenchmark {
+
+  @Param({"600x450", "1200x900", "2400x1800"})
+  public String size;
+
+  @Param({"48", "24"})
+  public int pitch;
+
+  //the page, and the stage of the running benchmark on it
+  Closeable stages;
+  LongSupplier stage;
+
+  /**
+   * Draw the page and set up the stage named like the benchmark method. PipelineStages is in the default package, so
+   * it is only reached through reflection, here and not in the measured code.
+   *
+   * @param BenchmarkParams params Which benchmark is running
+   */
+
+  @Setup(Level.Trial)
+  public void setup(BenchmarkParams params) throws Exception {
+    String[] dimensions = size.split("x");
+    String benchmark = params.getBenchmark();
+    Class<?> stagesClass = Class.forName("PipelineStages");
+    stages = (Closeable) stagesClass.getConstructor(int.class, int.class, int.class)
+      .newInstance(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), pitch);
+    stage = (LongSupplier) stagesClass.getMethod("get", String.class)
+      .invoke(stages, benchmark.substring(benchmark.lastIndexOf('.') + 1));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    stages.close();
+  }
+
+  @Benchmark
+  public long grayscale() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long rotateRight() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long rotateHistogram() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long thresholdIsoData() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long thresholdOtsu() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long maskScalar() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long maskKernel() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long thresholdSauvola() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long clustersParticleAnalyzer() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long clustersUnionFind() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long clustersTiled() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long addRectangles() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long extractCropResize() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long extractGlyphExtractor() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long extractAreaAverage() {
+    return stage.getAsLong();
+  }
+
+  @Benchmark
+  public long pngWrite() {
+    return stage.getAsLong();
+  }
+}
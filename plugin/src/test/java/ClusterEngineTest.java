@@ -0,0 +1,73 @@
+import ij.process.*;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.AfterClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests that the union-find and tiled engines find the same clusters, in the same order, as the particle analyzer.
+   */
+
+public class ClusterEngineTest {
+
+  //a pool of its own and thin stripes, so that many clusters are cut by the border between two stripes
+  static final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @AfterClass
+  public static void shutDown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Find the clusters of a page with one engine.
+   */
+
+  static int[] getBoxes(ByteProcessor page, int clusterEngine, PageThreshold pageThreshold, double minSize, double maxSize) {
+    PuzzleEngine engine = new PuzzleEngine(128, 513, minSize, maxSize, 0.0, 1.0);
+    TiledClusterDetector detector = new TiledClusterDetector(pool);
+    detector.minStripeHeight = 8;
+    engine.setClusterEngine(clusterEngine);
+    engine.setTiledClusterDetector(detector);
+    engine.setPageThreshold(pageThreshold);
+    return engine.process(page, null).boxes;
+  }
+
+  /**
+   * Compare the engines on a page.
+   */
+
+  static void assertSameClusters(ByteProcessor page, PageThreshold pageThreshold, double minSize, double maxSize) {
+    int[] expected = getBoxes(page, Puzzle_Expert.PARTICLE_ANALYZER, pageThreshold, minSize, maxSize);
+    assertTrue(expected.length > 0);
+    assertArrayEquals(expected, getBoxes(page, Puzzle_Expert.UNION_FIND, pageThreshold, minSize, maxSize));
+    assertArrayEquals(expected, getBoxes(page, Puzzle_Expert.TILED, pageThreshold, minSize, maxSize));
+  }
+
+  @Test
+  public void sameClustersAsTheParticleAnalyzer() {
+    for (int seed = 1; seed <= 3; seed++)
+    {
+      assertSameClusters(TestPages.createPage(600, 450, 48, seed), new PageThreshold(PageThreshold.ISODATA), 0.0, Double.POSITIVE_INFINITY);
+      assertSameClusters(TestPages.createPage(301, 517, 24, seed), new PageThreshold(PageThreshold.OTSU), 0.0, Double.POSITIVE_INFINITY);
+    }
+  }
+
+  @Test
+  public void sameClustersWithSizeLimits() {
+    assertSameClusters(TestPages.createPage(600, 450, 32, 4), new PageThreshold(PageThreshold.ISODATA), 5.0, 300.0);
+  }
+
+  @Test
+  public void sameClustersWithALocalThreshold() {
+    assertSameClusters(TestPages.createPage(450, 330, 40, 5), new PageThreshold(PageThreshold.SAUVOLA), 0.0, Double.POSITIVE_INFINITY);
+  }
+
+  @Test
+  public void emptyPage() {
+    ByteProcessor page = new ByteProcessor(200, 100);
+    page.setValue(255);
+    page.fill();
+    assertArrayEquals(getBoxes(page, Puzzle_Expert.PARTICLE_ANALYZER, new PageThreshold(PageThreshold.ISODATA), 0.0, Double.POSITIVE_INFINITY),
+      getBoxes(page, Puzzle_Expert.UNION_FIND, new PageThreshold(PageThreshold.ISODATA), 0.0, Double.POSITIVE_INFINITY));
+  }
+}
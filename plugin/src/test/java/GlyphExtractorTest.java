@@ -0,0 +1,163 @@
+import ij.process.*;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests that the letters GlyphExtractor cuts out of the grayscale page and the packed mask have the same pixels as
+   * copying the square out of the RGB versions of the page and calling resize(12), the way they used to be cut out, and
+   * that area averaging gives the average of the part of the square each output pixel covers.
+   */
+
+public class GlyphExtractorTest {
+
+  /**
+   * Cut a square out of an RGB page and resize it to 12x12 with bilinear interpolation.
+   */
+
+  static byte[] cropAndResize(ImageProcessor rgb, int left, int top, int size) {
+    ImageProcessor letterIp = new ByteProcessor(size, size);
+    for (int u = 0; u < size; u++)
+    {
+      for (int v = 0; v < size; v++)
+      {
+        letterIp.set(u, v, rgb.get(left + u, top + v));
+      }
+    }
+    letterIp.setInterpolationMethod(ImageProcessor.BILINEAR);
+    return (byte[]) letterIp.resize(GlyphExtractor.SIZE).getPixels();
+  }
+
+  /**
+   * Process a synthetic page with the default threshold.
+   */
+
+  static PuzzleEngine.Page process(int width, int height, int pitch, long seed) {
+    PuzzleEngine engine = new PuzzleEngine(128, 513, 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+    engine.setClusterEngine(Puzzle_Expert.UNION_FIND);
+    return engine.process(TestPages.createPage(width, height, pitch, seed), null);
+  }
+
+  @Test
+  public void theMaskIsTheThresholdedPage() {
+    PuzzleEngine.Page page = process(333, 250, 30, 1);
+    ImageProcessor bw = page.ipNew.convertToRGB();
+    byte[] pixels = (byte[]) page.mask.toByteProcessor().getPixels();
+    for (int p = 0; p < pixels.length; p++)
+    {
+      assertEquals(bw.get(p) & 0xff, pixels[p] & 0xff);
+    }
+  }
+
+  @Test
+  public void lettersAreTheSameAsCropAndResize() {
+    PuzzleEngine.Page page = process(600, 450, 40, 2);
+    ImageProcessor orig = new ByteProcessor(page.w, page.h, (byte[]) page.ipNew.getPixels()).convertToRGB();
+    ImageProcessor bw = page.ipNew.convertToRGB();
+    GlyphExtractor extractor = new GlyphExtractor();
+    int letters = 0;
+    for (int i = 0; i < page.x.length; i++)
+    {
+      PuzzleEngine.RectangleCoordinates square = page.getSquare(i);
+      //the old way read squares sticking out of the page from the next row
+      if (!page.looksLikeLetter(i) || square.xTopLeft + square.rW > page.w || square.yTopLeft + square.rH > page.h)
+      {
+        continue;
+      }
+      page.extract(i, extractor);
+      assertArrayEquals(cropAndResize(orig, square.xTopLeft, square.yTopLeft, square.rW), extractor.getGray());
+      assertArrayEquals(cropAndResize(bw, square.xTopLeft, square.yTopLeft, square.rW), extractor.getBw());
+      letters++;
+    }
+    assertTrue(letters > 100);
+  }
+
+  @Test
+  public void squaresOfEverySizeAreTheSameAsCropAndResize() {
+    PuzzleEngine.Page page = process(300, 200, 24, 3);
+    ImageProcessor orig = new ByteProcessor(page.w, page.h, (byte[]) page.ipNew.getPixels()).convertToRGB();
+    ImageProcessor bw = page.ipNew.convertToRGB();
+    GlyphExtractor extractor = new GlyphExtractor();
+    Random random = new Random(3);
+    for (int size = 1; size <= 150; size++)
+    {
+      int left = random.nextInt(page.w - size + 1), top = random.nextInt(page.h - size + 1);
+      page.extract(left, top, size, extractor);
+      assertArrayEquals("size " + size, cropAndResize(orig, left, top, size), extractor.getGray());
+      assertArrayEquals("size " + size, cropAndResize(bw, left, top, size), extractor.getBw());
+    }
+  }
+
+  /**
+   * Scale a square by area averaging the slow way: every output pixel is the average of the source pixels weighted by
+   * how much of them it covers, rounded. Pixels outside the page are 0.
+   *
+   * @return Array The gray version followed by the black and white version
+   */
+
+  static byte[][] areaAverage(byte[] pixels, BinaryMask mask, int width, int height, int left, int top, int size, int outputSize) {
+    byte[][] letter = new byte[2][outputSize * outputSize];
+    for (int v = 0; v < outputSize; v++)
+    {
+      for (int u = 0; u < outputSize; u++)
+      {
+        double gray = 0, bw = 0;
+        for (int j = 0; j < size; j++)
+        {
+          //the overlap of source row j and output row v, in units of 1 / outputSize source pixel
+          double overlapY = Math.min((j + 1) * (double) outputSize, (v + 1) * (double) size) - Math.max(j * (double) outputSize, v * (double) size);
+          for (int i = 0; i < size && overlapY > 0; i++)
+          {
+            double overlapX = Math.min((i + 1) * (double) outputSize, (u + 1) * (double) size) - Math.max(i * (double) outputSize, u * (double) size);
+            if (overlapX <= 0)
+            {
+              continue;
+            }
+            int x = left + i, y = top + j;
+            boolean inside = x >= 0 && y >= 0 && x < width && y < height;
+            gray += overlapX * overlapY * (inside ? pixels[y * width + x] & 0xff : 0);
+            bw += overlapX * overlapY * mask.getValue(x, y);
+          }
+        }
+        letter[0][v * outputSize + u] = (byte) Math.round(gray / ((double) size * size));
+        letter[1][v * outputSize + u] = (byte) Math.round(bw / ((double) size * size));
+      }
+    }
+    return letter;
+  }
+
+  @Test
+  public void areaAverageIsTheAverageOfTheCoveredPixels() {
+    Random random = new Random(5);
+    int width = 300, height = 200;
+    byte[] pixels = new byte[width * height];
+    random.nextBytes(pixels);
+    BinaryMask mask = BinaryMask.threshold(pixels, width, height, 0, 100, new ThresholdKernel());
+    for (int outputSize : new int[] {GlyphExtractor.SIZE, 10, 7, 16})
+    {
+      GlyphExtractor extractor = new GlyphExtractor(outputSize, GlyphExtractor.AREA_AVERAGE);
+      for (int t = 0; t < 200; t++)
+      {
+        //some of the squares stick out of the page
+        int size = 2 + random.nextInt(100), left = random.nextInt(width + 40) - 30, top = random.nextInt(height + 40) - 30;
+        extractor.extract(pixels, mask, width, height, left, top, size);
+        byte[][] expected = areaAverage(pixels, mask, width, height, left, top, size, outputSize);
+        String message = "size " + size + " at (" + left + ", " + top + ") to " + outputSize;
+        assertArrayEquals(message, expected[0], extractor.getGray());
+        assertArrayEquals(message, expected[1], extractor.getBw());
+      }
+    }
+  }
+
+  @Test
+  public void areaAverageOfAConstantPageIsConstant() {
+    byte[] pixels = new byte[300 * 200];
+    java.util.Arrays.fill(pixels, (byte) 77);
+    GlyphExtractor extractor = new GlyphExtractor(GlyphExtractor.SIZE, GlyphExtractor.AREA_AVERAGE);
+    extractor.extract(pixels, BinaryMask.threshold(pixels, 300, 200, 0, 100, new ThresholdKernel()), 300, 200, 10, 10, 97);
+    for (byte value : extractor.getGray())
+    {
+      assertEquals(77, value);
+    }
+  }
+}
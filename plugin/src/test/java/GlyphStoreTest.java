@@ -0,0 +1,114 @@
+import ij.*;
+import ij.io.FileSaver;
+import ij.process.*;
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests of loading a GlyphStore from a directory of saved letters.
+   */
+
+public class GlyphStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * A packed glyph with the pixels from first to last set.
+   */
+
+  static byte[] glyph(int first, int last) {
+    byte[] bits = new byte[GlyphDatasetWriter.BW_SIZE];
+    for (int p = first; p <= last; p++)
+    {
+      bits[p >> 3] |= 0x80 >> (p & 7);
+    }
+    return bits;
+  }
+
+  /**
+   * Save a glyph the way the PNG output does, as tmp/[page]/bw/[letter][number].png with a line in the manifest.
+   */
+
+  static void savePng(File page, GlyphManifest manifest, String letter, int x, byte[] bits) throws Exception {
+    ByteProcessor ip = new ByteProcessor(GlyphExtractor.SIZE, GlyphExtractor.SIZE);
+    int foreground = Prefs.blackBackground ? 255 : 0;
+    for (int p = 0; p < GlyphDatasetWriter.GRAY_SIZE; p++)
+    {
+      boolean set = (bits[p >> 3] & (0x80 >> (p & 7))) != 0;
+      ip.set(p % GlyphExtractor.SIZE, p / GlyphExtractor.SIZE, set ? foreground : 255 - foreground);
+    }
+    GlyphManifest.Entry entry = new GlyphManifest.Entry();
+    entry.letter = letter;
+    entry.number = manifest.nextNumber(letter);
+    entry.x = x;
+    entry.size = 12;
+    manifest.add(entry);
+    new File(page, "bw").mkdirs();
+    assertTrue(new FileSaver(new ImagePlus("", ip)).saveAsPng(new File(page, "bw/" + entry.getFileName()).getPath()));
+    manifest.write(new File(page, "manifest.txt"));
+  }
+
+  @Test
+  public void lettersInTheDatasetAreNotReadAgainFromTheImages() throws Exception {
+    File dir = folder.getRoot();
+    byte[] gray = new byte[GlyphDatasetWriter.GRAY_SIZE];
+    byte[] a = glyph(0, 20), b = glyph(30, 70), c = glyph(100, 143);
+
+    //page "both" was saved in both formats, page "png" as PNG files only
+    GlyphDatasetWriter dataset = new GlyphDatasetWriter(new File(dir, "glyphs.dat"));
+    dataset.write("both", "a", 0, 0, 12, 12, gray, a);
+    dataset.write("both", "b", 20, 0, 12, 12, gray, b);
+    dataset.write("both", Puzzle_Expert.UNLABELED, 40, 0, 12, 12, gray, c);
+    dataset.close();
+    File both = new File(dir, "both"), png = new File(dir, "png");
+    GlyphManifest bothManifest = new GlyphManifest(), pngManifest = new GlyphManifest();
+    savePng(both, bothManifest, "a", 0, a);
+    savePng(both, bothManifest, "b", 20, b);
+    savePng(png, pngManifest, "c", 0, c);
+
+    GlyphStore store = GlyphStore.load(dir);
+    assertEquals(3, store.size());
+    assertEquals("a", store.getLetter(0));
+    assertEquals("b", store.getLetter(1));
+    assertEquals("c", store.getLetter(2));
+  }
+
+  @Test
+  public void theSameGlyphWithTheSameLetterIsKeptOnce() throws Exception {
+    File dir = folder.getRoot();
+    byte[] gray = new byte[GlyphDatasetWriter.GRAY_SIZE];
+    byte[] a = glyph(0, 20), b = glyph(30, 70);
+
+    //two pages with the same glyph as "a", and once as "b"
+    GlyphDatasetWriter dataset = new GlyphDatasetWriter(new File(dir, "glyphs.dat"));
+    dataset.write("page1", "a", 0, 0, 12, 12, gray, a);
+    dataset.write("page1", "b", 20, 0, 12, 12, gray, b);
+    dataset.write("page2", "a", 0, 0, 12, 12, gray, a);
+    dataset.write("page2", "b", 20, 0, 12, 12, gray, a);
+    dataset.close();
+
+    GlyphStore store = GlyphStore.load(dir);
+    assertEquals(3, store.size());
+    long[] packed = new long[GlyphStore.LONGS];
+    GlyphStore.pack(b, 0, packed);
+    assertEquals(1, store.find(packed));
+    GlyphStore.pack(a, 0, packed);
+    assertEquals(0, store.find(packed));
+    assertEquals("b", store.getLetter(2));
+  }
+
+  @Test
+  public void noNeighboursAreFoundForKZero() throws Exception {
+    GlyphDatasetWriter dataset = new GlyphDatasetWriter(new File(folder.getRoot(), "glyphs.dat"));
+    dataset.write("page", "a", 0, 0, 12, 12, new byte[GlyphDatasetWriter.GRAY_SIZE], glyph(0, 20));
+    dataset.close();
+    GlyphStore store = GlyphStore.load(folder.getRoot());
+    long[] packed = new long[GlyphStore.LONGS];
+    GlyphStore.pack(glyph(0, 20), 0, packed);
+    assertEquals(0, store.nearest(packed, 0, new int[0], new int[0]));
+  }
+}
@@ -0,0 +1,68 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests of putting the letter grid together from rectangles.
+   */
+
+public class LetterGridTest {
+
+  static final int PITCH = 30, SIZE = 16;
+
+  /**
+   * Rectangles on a grid of rows x columns with the top left-hand one at (100, 100), followed by the extra ones.
+   */
+
+  static LetterGrid build(int rows, int columns, float[][] extra) {
+    int n = rows * columns + extra.length;
+    float[] x = new float[n], y = new float[n], widths = new float[n], heights = new float[n];
+    int[] letters = new int[n];
+    for (int i = 0; i < n; i++)
+    {
+      if (i < rows * columns)
+      {
+        x[i] = 100 + i % columns * PITCH;
+        y[i] = 100 + i / columns * PITCH;
+      } else
+      {
+        x[i] = extra[i - rows * columns][0];
+        y[i] = extra[i - rows * columns][1];
+      }
+      widths[i] = SIZE;
+      heights[i] = SIZE;
+      letters[i] = i;
+    }
+    return LetterGrid.build(x, y, widths, heights, letters, n);
+  }
+
+  @Test
+  public void findsTheRowsAndColumns() {
+    LetterGrid grid = build(8, 12, new float[0][]);
+    assertEquals(8, grid.getRows());
+    assertEquals(12, grid.getColumns());
+    assertEquals(PITCH, grid.getPitchX(), 1e-6);
+    assertEquals(0, grid.getAngle(), 1e-6);
+    assertEquals(13, grid.getRectangle(1, 1));
+  }
+
+  @Test
+  public void aRectangleFarFromTheGridIsLeftOut() {
+    //a mark in the corner of the page, far below and to the right of the grid
+    LetterGrid grid = build(8, 12, new float[][] {{100 + 60 * PITCH, 100 + 50 * PITCH}});
+    assertEquals(8, grid.getRows());
+    assertEquals(12, grid.getColumns());
+    assertEquals(-1, grid.getRow(8 * 12));
+    assertEquals(-1, grid.getColumn(8 * 12));
+    assertEquals(0, grid.getRectangle(0, 0));
+  }
+
+  @Test
+  public void sparseRowsAtTheEdgeAreTrimmed() {
+    //a word list of three words under the grid
+    LetterGrid grid = build(8, 12, new float[][] {{100, 100 + 9 * PITCH}, {100 + 4 * PITCH, 100 + 9 * PITCH},
+      {100 + 8 * PITCH, 100 + 9 * PITCH}});
+    assertEquals(8, grid.getRows());
+    assertEquals(12, grid.getColumns());
+    assertEquals(-1, grid.getRow(8 * 12));
+  }
+}
@@ -0,0 +1,174 @@
+import ij.*;
+import ij.io.FileSaver;
+import ij.process.*;
+import java.io.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests that a page read through memory mapping gives the same pixels, clusters and letters as the same file opened
+   * by ImageJ.
+   */
+
+public class MappedPageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Write a page as a binary PGM file, with a comment in the header.
+   */
+
+  static File writePgm(File file, ByteProcessor page) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try
+    {
+      out.write(("P5\n# scan\n" + page.getWidth() + " " + page.getHeight() + "\n255\n").getBytes("US-ASCII"));
+      out.write((byte[]) page.getPixels());
+    } finally
+    {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Write a page as a big-endian TIFF file with PhotometricInterpretation WhiteIsZero and a few rows per strip, with the
+   * strips after the IFD.
+   */
+
+  static File writeTiff(File file, ByteProcessor page, int rowsPerStrip) throws IOException {
+    int width = page.getWidth(), height = page.getHeight();
+    byte[] pixels = (byte[]) page.getPixels();
+    int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+    int[][] tags = {{256, 3, 1, width}, {257, 3, 1, height}, {258, 3, 1, 8}, {259, 3, 1, 1}, {262, 3, 1, 0}, {273, 4, strips, 0},
+      {277, 3, 1, 1}, {278, 3, 1, rowsPerStrip}, {279, 4, strips, 0}};
+    //the IFD at 8, followed by the strip offsets and the strip byte counts, followed by the strips
+    int arrays = 8 + 2 + tags.length * 12 + 4, start = arrays + strips * 8;
+    tags[5][3] = arrays;
+    tags[8][3] = arrays + strips * 4;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try
+    {
+      out.writeBytes("MM");
+      out.writeShort(42);
+      out.writeInt(8);
+      out.writeShort(tags.length);
+      for (int[] tag : tags)
+      {
+        out.writeShort(tag[0]);
+        out.writeShort(tag[1]);
+        out.writeInt(tag[2]);
+        if (tag[1] == 3)
+        {
+          out.writeShort(tag[3]);
+          out.writeShort(0);
+        } else
+        {
+          out.writeInt(tag[3]);
+        }
+      }
+      out.writeInt(0);
+      for (int s = 0; s < strips; s++)
+      {
+        out.writeInt(start + s * rowsPerStrip * width);
+      }
+      for (int s = 0; s < strips; s++)
+      {
+        out.writeInt(Math.min(rowsPerStrip, height - s * rowsPerStrip) * width);
+      }
+      out.write(pixels);
+    } finally
+    {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Compare a mapped page with the same file opened by ImageJ.
+   */
+
+  static void assertSameAsImagePlus(File file) throws IOException {
+    MappedPage mapped = MappedPage.open(file);
+    assertNotNull(file.getName(), mapped);
+    ImagePlus imp = IJ.openImage(file.getPath());
+    ByteProcessor ip = (ByteProcessor) imp.getProcessor();
+    assertEquals(imp.getWidth(), mapped.getWidth());
+    assertEquals(imp.getHeight(), mapped.getHeight());
+    assertEquals(ip.isInvertedLut(), mapped.isInvertedLut());
+    assertArrayEquals((byte[]) ip.getPixels(), (byte[]) mapped.getProcessor().getPixels());
+
+    //the rotated rows, read a few at a time
+    byte[] rotated = (byte[]) ip.rotateRight().getPixels(), rows = new byte[5 * imp.getHeight()];
+    for (int first = 0; first < imp.getWidth(); first += 5)
+    {
+      int n = Math.min(5, imp.getWidth() - first);
+      mapped.getRotatedRows(first, n, rows);
+      for (int p = 0; p < n * imp.getHeight(); p++)
+      {
+        assertEquals(rotated[first * imp.getHeight() + p], rows[p]);
+      }
+    }
+
+    //the clusters and the letters
+    PuzzleEngine engine = new PuzzleEngine(128, 513, 0.0, Double.POSITIVE_INFINITY, 0.0, 1.0);
+    PuzzleEngine.Page expected = engine.process(imp, null), page = engine.process(mapped, null);
+    assertTrue(expected.boxes.length > 0);
+    assertArrayEquals(expected.boxes, page.boxes);
+    GlyphExtractor expectedLetter = new GlyphExtractor(), letter = new GlyphExtractor();
+    for (int i = 0; i < page.x.length; i++)
+    {
+      if (page.looksLikeLetter(i))
+      {
+        expected.extract(i, expectedLetter);
+        page.extract(i, letter);
+        assertArrayEquals(expectedLetter.getGray(), letter.getGray());
+        assertArrayEquals(expectedLetter.getBw(), letter.getBw());
+      }
+    }
+  }
+
+  @Test
+  public void pgm() throws IOException {
+    assertSameAsImagePlus(writePgm(folder.newFile("page.pgm"), TestPages.createPage(333, 257, 30, 1)));
+  }
+
+  @Test
+  public void bigEndianTiffWithStrips() throws IOException {
+    assertSameAsImagePlus(writeTiff(folder.newFile("page.tif"), TestPages.createPage(333, 257, 30, 2), 7));
+  }
+
+  @Test
+  public void tiffSavedByImageJ() throws IOException {
+    File file = new File(folder.getRoot(), "imagej.tif");
+    assertTrue(new FileSaver(new ImagePlus("imagej", TestPages.createPage(250, 410, 36, 3))).saveAsTiff(file.getPath()));
+    assertSameAsImagePlus(file);
+  }
+
+  @Test
+  public void aColorTiffIsNotMapped() throws IOException {
+    File file = new File(folder.getRoot(), "color.tif");
+    assertTrue(new FileSaver(new ImagePlus("color", TestPages.createPage(100, 80, 30, 4).convertToRGB())).saveAsTiff(file.getPath()));
+    assertNull(MappedPage.open(file));
+  }
+
+  @Test
+  public void aTiffWithoutRowsInItsStripsIsNotMapped() throws IOException {
+    File file = writeTiff(folder.newFile("zero.tif"), TestPages.createPage(100, 80, 30, 5), 7);
+    //the value of RowsPerStrip, the eighth entry of the IFD
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try
+    {
+      out.seek(8 + 2 + 7 * 12 + 8);
+      out.writeShort(0);
+    } finally
+    {
+      out.close();
+    }
+    assertNull(MappedPage.open(file));
+  }
+}
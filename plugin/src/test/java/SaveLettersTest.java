@@ -0,0 +1,138 @@
+import ij.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests that saving the letters of a page again only writes the images that are missing or have changed.
+   */
+
+public class SaveLettersTest {
+
+  static final String TITLE = "save-letters-test";
+
+  //the directory the letters of the page are saved in, relative to the working directory
+  static final File DIR = new File("tmp/" + TITLE);
+
+  //a time long before the test ran
+  static final long OLD = 1000000000000L;
+
+  @Before
+  public void deleteLetters() {
+    for (File dir : new File[] {new File(DIR, "bw"), DIR})
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+      {
+        for (File file : files)
+        {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the clusters of the synthetic page and save all of its letters as PNG files, the way the batch mode does.
+   */
+
+  static Puzzle_Expert save() {
+    Puzzle_Expert puzzleExpert = new Puzzle_Expert();
+    puzzleExpert.setClusterEngine(Puzzle_Expert.UNION_FIND);
+    ImagePlus imp = new ImagePlus(TITLE, TestPages.createPage(400, 300, 40, 1));
+    puzzleExpert.setupHeadless(imp);
+    puzzleExpert.process(imp.getProcessor());
+    puzzleExpert.saveAllLetters();
+    return puzzleExpert;
+  }
+
+  /**
+   * Count the rectangles that are saved as letters.
+   */
+
+  static int countLetters(Puzzle_Expert puzzleExpert) {
+    int n = 0;
+    for (int i = 0; i < puzzleExpert.x.length; i++)
+    {
+      if (puzzleExpert.looksLikeLetter(i))
+      {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Test
+  public void theFirstSaveNumbersTheLetters() {
+    Puzzle_Expert puzzleExpert = save();
+    int n = countLetters(puzzleExpert);
+    assertTrue(n > 20);
+    assertEquals(n, puzzleExpert.lettersWritten);
+    for (int k = 1; k <= n; k++)
+    {
+      assertTrue(new File(DIR, Puzzle_Expert.UNLABELED + k + ".png").exists());
+      assertTrue(new File(DIR, "bw/" + Puzzle_Expert.UNLABELED + k + ".png").exists());
+    }
+    assertFalse(new File(DIR, Puzzle_Expert.UNLABELED + (n + 1) + ".png").exists());
+    assertEquals(n, GlyphManifest.read(new File(DIR, "manifest.txt")).size());
+  }
+
+  /**
+   * Date all of the saved images back to OLD, so that the ones written again can be told apart.
+   */
+
+  static void makeOld(int n) {
+    for (int k = 1; k <= n; k++)
+    {
+      assertTrue(new File(DIR, Puzzle_Expert.UNLABELED + k + ".png").setLastModified(OLD));
+      assertTrue(new File(DIR, "bw/" + Puzzle_Expert.UNLABELED + k + ".png").setLastModified(OLD));
+    }
+  }
+
+  @Test
+  public void savingTheSamePageAgainWritesNothing() throws Exception {
+    int n = countLetters(save());
+    byte[][] contents = new byte[n][];
+    for (int k = 1; k <= n; k++)
+    {
+      contents[k - 1] = Files.readAllBytes(new File(DIR, Puzzle_Expert.UNLABELED + k + ".png").toPath());
+    }
+    makeOld(n);
+
+    Puzzle_Expert puzzleExpert = save();
+    assertEquals(0, puzzleExpert.lettersWritten);
+    assertEquals(n, puzzleExpert.lettersUnchanged);
+    assertEquals(0, puzzleExpert.lettersDeleted);
+    for (int k = 1; k <= n; k++)
+    {
+      File file = new File(DIR, Puzzle_Expert.UNLABELED + k + ".png");
+      assertEquals(OLD, file.lastModified());
+      assertEquals(OLD, new File(DIR, "bw/" + file.getName()).lastModified());
+      assertTrue(Arrays.equals(contents[k - 1], Files.readAllBytes(file.toPath())));
+    }
+  }
+
+  @Test
+  public void aMissingImageIsWrittenAgain() throws Exception {
+    int n = countLetters(save());
+    File missing = new File(DIR, "bw/" + Puzzle_Expert.UNLABELED + 3 + ".png");
+    byte[] contents = Files.readAllBytes(missing.toPath());
+    makeOld(n);
+    assertTrue(missing.delete());
+
+    //both images of the letter are written again, and nothing else
+    Puzzle_Expert puzzleExpert = save();
+    assertEquals(1, puzzleExpert.lettersWritten);
+    assertEquals(n - 1, puzzleExpert.lettersUnchanged);
+    assertTrue(Arrays.equals(contents, Files.readAllBytes(missing.toPath())));
+    for (int k = 1; k <= n; k++)
+    {
+      assertEquals(k == 3, new File(DIR, Puzzle_Expert.UNLABELED + k + ".png").lastModified() != OLD);
+      assertEquals(k == 3, new File(DIR, "bw/" + Puzzle_Expert.UNLABELED + k + ".png").lastModified() != OLD);
+    }
+    assertEquals(n, GlyphManifest.read(new File(DIR, "manifest.txt")).size());
+  }
+}
@@ -0,0 +1,76 @@
+import ij.process.*;
+import java.util.Random;
+
+  /**
+   * Synthetic grayscale puzzle pages for the tests, so that no image files are needed.
+   */
+
+public class TestPages {
+
+  /**
+   * Draw a page: a grid of letters made of random strokes on a noisy background, with specks of one or two pixels, a
+   * few long lines that join letters of different rows, and marks cut off by the edges of the page. The same arguments
+   * always give the same page.
+   *
+   * @param int width Width of the page
+   * @param int height Height of the page
+   * @param int pitch Distance between the letters; the letters are about two thirds of it
+   * @param long seed Seed of the random numbers
+   * @return ByteProcessor The page
+   */
+
+  static ByteProcessor createPage(int width, int height, int pitch, long seed) {
+    Random random = new Random(seed);
+    ByteProcessor page = new ByteProcessor(width, height);
+    byte[] pixels = (byte[]) page.getPixels();
+
+    //background, darker towards the bottom right-hand corner
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        pixels[y * width + x] = (byte) (230 - 30 * (x + y) / (width + height) + random.nextInt(11) - 5);
+      }
+    }
+
+    //letters: two to four strokes between the points of a 3x3 grid inside each cell, starting half a cell outside the
+    //page so that some of them are cut off
+    int size = pitch * 2 / 3;
+    page.setLineWidth(Math.max(1, pitch / 12));
+    for (int top = -pitch / 2; top < height; top += pitch)
+    {
+      for (int left = -pitch / 2; left < width; left += pitch)
+      {
+        page.setValue(20 + random.nextInt(50));
+        int strokes = 2 + random.nextInt(3);
+        int previous = random.nextInt(9);
+        for (int s = 0; s < strokes; s++)
+        {
+          int next = random.nextInt(9);
+          page.drawLine(left + previous % 3 * size / 2, top + previous / 3 * size / 2, left + next % 3 * size / 2, top + next / 3 * size / 2);
+          previous = random.nextBoolean() ? next : random.nextInt(9);
+        }
+      }
+    }
+
+    //lines across several letters
+    page.setLineWidth(1);
+    for (int i = 0; i < 4; i++)
+    {
+      page.setValue(40);
+      page.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width), random.nextInt(height));
+    }
+
+    //specks, some of them touching only at a corner
+    for (int i = width * height / 400; i > 0; i--)
+    {
+      int x = random.nextInt(width - 1), y = random.nextInt(height - 1);
+      pixels[y * width + x] = 30;
+      if (random.nextBoolean())
+      {
+        pixels[(y + 1) * width + x + 1] = 30;
+      }
+    }
+    return page;
+  }
+}
@@ -0,0 +1,141 @@
+import ij.process.*;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+  /**
+   * Tests that the kernel ThresholdKernel.getInstance() picks gives the same bits as the scalar kernel, that the
+   * global levels are the ones ImageJ sets, and that the rotation with the histogram in the same pass gives the same
+   * pixels and histogram as ImageJ.
+   */
+
+public class ThresholdKernelTest {
+
+  //widths around the 64-pixel words and the vector lanes
+  static final int[] WIDTHS = {1, 7, 31, 63, 64, 65, 100, 127, 129, 333};
+
+  /**
+   * Skip the test unless the vector kernel is there, i.e. it was compiled and the module was added.
+   */
+
+  static ThresholdKernel getVectorKernel() {
+    ThresholdKernel kernel = ThresholdKernel.getInstance();
+    Assume.assumeTrue("no vector kernel on this JVM", kernel.getClass() != ThresholdKernel.class);
+    return kernel;
+  }
+
+  /**
+   * Threshold a page with the Sauvola method using one kernel.
+   */
+
+  static long[] sauvola(ThresholdKernel kernel, byte[] pixels, int width, int height, boolean invertedLut) {
+    PageThreshold sauvola = new PageThreshold(PageThreshold.SAUVOLA);
+    sauvola.kernel = kernel;
+    return sauvola.sauvola(pixels, width, height, invertedLut).bits;
+  }
+
+  @Test
+  public void vectorThresholdGivesTheSameBits() {
+    ThresholdKernel vector = getVectorKernel(), scalar = new ThresholdKernel();
+    Random random = new Random(1);
+    for (int width : WIDTHS)
+    {
+      //the rows start at odd offsets
+      int height = 5;
+      byte[] pixels = new byte[width * height + 3];
+      random.nextBytes(pixels);
+      for (int[] levels : new int[][] {{0, 127}, {128, 255}, {0, 255}, {50, 50}, {200, 100}})
+      {
+        BinaryMask expected = new BinaryMask(width, height), mask = new BinaryMask(width, height);
+        for (int y = 0; y < height; y++)
+        {
+          scalar.threshold(pixels, 3 + y * width, width, levels[0], levels[1], expected.bits, y * expected.stride);
+          vector.threshold(pixels, 3 + y * width, width, levels[0], levels[1], mask.bits, y * mask.stride);
+        }
+        assertArrayEquals("width " + width + ", levels " + levels[0] + "-" + levels[1], expected.bits, mask.bits);
+      }
+    }
+  }
+
+  @Test
+  public void vectorSauvolaGivesTheSameBits() {
+    ThresholdKernel vector = getVectorKernel(), scalar = new ThresholdKernel();
+    Random random = new Random(2);
+    for (int width : WIDTHS)
+    {
+      int height = 40;
+      byte[] pixels = new byte[width * height];
+      random.nextBytes(pixels);
+      for (boolean invertedLut : new boolean[] {false, true})
+      {
+        assertArrayEquals("width " + width, sauvola(scalar, pixels, width, height, invertedLut), sauvola(vector, pixels, width, height, invertedLut));
+      }
+    }
+    ByteProcessor page = TestPages.createPage(451, 333, 30, 2);
+    byte[] pixels = (byte[]) page.getPixels();
+    assertArrayEquals(sauvola(scalar, pixels, 451, 333, false), sauvola(vector, pixels, 451, 333, false));
+  }
+
+  @Test
+  public void levelsAreTheOnesImageJSets() {
+    for (int seed = 1; seed <= 3; seed++)
+    {
+      ByteProcessor page = TestPages.createPage(300, 200, 24, seed);
+      for (boolean invertedLut : new boolean[] {false, true})
+      {
+        if (invertedLut)
+        {
+          page.invertLut();
+        }
+        for (int method : new int[] {PageThreshold.ISODATA, PageThreshold.OTSU})
+        {
+          PageThreshold pageThreshold = new PageThreshold(method);
+          int[] levels = pageThreshold.getLevels(pageThreshold.getHistogram((byte[]) page.getPixels()), invertedLut);
+          page.resetThreshold();
+          page.setAutoThreshold(method == PageThreshold.OTSU ? "Otsu" : "IsoData", false, ImageProcessor.BLACK_AND_WHITE_LUT);
+          assertEquals((int) page.getMinThreshold(), levels[0]);
+          assertEquals((int) page.getMaxThreshold(), levels[1]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rotationIsTheSameAsRotateRight() {
+    Random random = new Random(3);
+    ForkJoinPool pool = new ForkJoinPool(3);
+    TiledClusterDetector detector = new TiledClusterDetector(pool);
+    detector.minStripeHeight = 8;
+    try
+    {
+      for (int[] size : new int[][] {{1, 1}, {63, 65}, {130, 67}, {333, 257}})
+      {
+        int width = size[0], height = size[1];
+        ByteProcessor page = new ByteProcessor(width, height);
+        random.nextBytes((byte[]) page.getPixels());
+        byte[] pixels = (byte[]) page.getPixels(), expected = (byte[]) page.rotateRight().getPixels();
+        int[] expectedHistogram = page.getHistogram();
+        String message = width + "x" + height;
+
+        //the whole page, and the stripes of the tiled engine
+        byte[] rotated = new byte[width * height];
+        int[] histogram = new int[256];
+        new ThresholdKernel().rotateRight(pixels, width, height, 0, height, rotated, histogram);
+        assertArrayEquals(message, expected, rotated);
+        assertArrayEquals(message, expectedHistogram, histogram);
+        rotated = new byte[width * height];
+        assertArrayEquals(message, expectedHistogram, detector.rotateRight(pixels, width, height, rotated, ThresholdKernel.getInstance()));
+        assertArrayEquals(message, expected, rotated);
+
+        histogram = new int[256];
+        ThresholdKernel.getInstance().addHistogram(pixels, 0, pixels.length, histogram);
+        assertArrayEquals(message, expectedHistogram, histogram);
+      }
+    } finally
+    {
+      pool.shutdown();
+    }
+  }
+}